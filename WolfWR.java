@@ -2,13 +2,69 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
 import java.sql.PreparedStatement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * WolfWR JDBC Implementation
@@ -16,10 +72,15 @@ import java.util.Set;
 public class WolfWR {
     // link to the stored db
     static final String jdbcURL = ""; /* Removed for security */
+    static final String jdbcUser = ""; /* Removed for security */
+    static final String jdbcPassword = ""; /* Removed for security */
 
 	private static Connection connection = null;
 	private static Statement statement = null;
 	private static ResultSet result = null;
+
+	// Connection bound to the current thread by its workload lane (null means use the shared connection)
+	private static final ThreadLocal<Connection> boundConnection = new ThreadLocal<>();
 	
 	private static final List<String> allCommands = Arrays.asList(
 		    "insertStore", "updateStore", "deleteStore",
@@ -30,10 +91,11 @@ public class WolfWR {
 		    "insertSignUp", "updateSignUp", "deleteSignUp",
 		    "insertBill", "updateBill", "deleteBill",
 		    "insertMerch", "updateMerch", "deleteMerch",
-		    "transferItems", "calculateTransaction", "calculateReward", "updateReward",
+		    "transferItems", "transferManifest", "calculateTransaction", "scanCheckout", "calculateReward", "updateReward",
 		    "getMerchStockByStore", "getMerchStockByItem",
 		    "getSalesByDay", "getSalesinRange", "getSalesGrowth",
-		    "getCustGrowth", "getCustActivity", "exit"
+		    "getCustGrowth", "getCustActivity", "laneStats",
+		    "setReportTimeout", "runningReports", "cancelReport", "replicaStatus", "maintainPartitions", "archiveTransactions", "queueStats", "groupCommitStats", "transferStats", "purgeStatus", "cdcStatus", "reportCacheStats", "clearReportCache", "coherenceStats", "memberCacheStats", "searchProducts", "productIndexStats", "escrowStats", "lowStock", "issueReorders", "setReorderLevel", "expiryStatus", "runExpiry", "payBills", "payables", "rebalanceAdvice", "applyRebalance", "exit"
 	);
 
 
@@ -58,6 +120,24 @@ public class WolfWR {
             createSchema();
 
             initializeDemoData();
+
+            warmMembershipCache();
+
+            warmProductIndex();
+
+            warmReorderEngine();
+
+            openCheckoutQueue();
+
+            resumePurges();
+
+            startChangeRelay();
+
+            startCoherencePoller();
+
+            startStockEscrow();
+
+            startExpiryTracker();
             
             //System.out.println("Database schema created successfully.");
         } catch (ClassNotFoundException | SQLException e) {
@@ -71,10 +151,8 @@ public class WolfWR {
     private static void connectToDatabase() throws ClassNotFoundException, SQLException {
 
 		Class.forName("org.mariadb.jdbc.Driver");
-		String user = ""; /* Removed for security */
-		String password = ""; /* Removed for security */
 
-		connection = DriverManager.getConnection(jdbcURL, user, password);
+		connection = openConnection(jdbcURL);
 		statement = connection.createStatement();
 
 		try {
@@ -91,6 +169,13 @@ public class WolfWR {
             statement.executeUpdate("DROP TABLE IF EXISTS StaffMembers");
             statement.executeUpdate("DROP TABLE IF EXISTS Stores");
             statement.executeUpdate("DROP TABLE IF EXISTS SignUps");
+            statement.executeUpdate("DROP TABLE IF EXISTS Sequences");
+            statement.executeUpdate("DROP TABLE IF EXISTS TransactionIDs");
+            statement.executeUpdate("DROP TABLE IF EXISTS ArchivedMonths");
+            statement.executeUpdate("DROP TABLE IF EXISTS ChangeOutbox");
+            statement.executeUpdate("DROP TABLE IF EXISTS ChangeRelayProgress");
+            statement.executeUpdate("DROP TABLE IF EXISTS StockEscrow");
+            statement.executeUpdate("DROP TABLE IF EXISTS Payables");
             statement.execute("SET FOREIGN_KEY_CHECKS = 1");
 
 		} catch (SQLException e) {
@@ -98,6 +183,27 @@ public class WolfWR {
 		}
 	}
 
+    /**
+     * Open a new connection to the given database endpoint with the WolfWR credentials.
+     */
+    private static Connection openConnection(String url) throws SQLException {
+        return DriverManager.getConnection(url, jdbcUser, jdbcPassword);
+    }
+
+    /**
+     * The connection queries on this thread should run on.
+     * Lane workers bind their own pooled connection, everything else shares the main one.
+     */
+    private static Connection db() {
+        Connection bound = boundConnection.get();
+        return bound != null ? bound : connection;
+    }
+
+    // The connection for tables that only live on the primary, also while this thread is pinned to a shard
+    private static Connection primaryDb() {
+        return boundShard.get() == null ? db() : connection;
+    }
+
     /**
      * Define schema and create all needed tables
      */
@@ -118,7 +224,8 @@ public class WolfWR {
         String createStores = "CREATE TABLE Stores ( " +
                 "storeID INT PRIMARY KEY, " +
                 "storeNum VARCHAR(32) NOT NULL, " +
-                "storeAddr VARCHAR(256) NOT NULL" +
+                "storeAddr VARCHAR(256) NOT NULL, " +
+                "retired BOOLEAN NOT NULL DEFAULT FALSE" +
                 ")";
         statement.executeUpdate(createStores);
 
@@ -151,7 +258,8 @@ public class WolfWR {
                 "custEmail VARCHAR(128) NOT NULL, " +
                 "custPhone VARCHAR(15) NOT NULL, " +
                 "custAddr VARCHAR(256) NOT NULL, " +
-                "custStatus VARCHAR(32) NOT NULL CHECK (custStatus IN ('Active', 'Inactive'))" +
+                "custStatus VARCHAR(32) NOT NULL CHECK (custStatus IN ('Active', 'Inactive')), " +
+                "version INT NOT NULL DEFAULT 0" +
                 ")";
         statement.executeUpdate(createClubMembers);
 
@@ -181,15 +289,39 @@ public class WolfWR {
                 "FOREIGN KEY (staffID) REFERENCES StaffMembers(staffID) ON DELETE SET NULL, " +
                 "FOREIGN KEY (storeID) REFERENCES Stores(storeID) ON DELETE SET NULL" +
                 ")";
+        // Partitioned by purchaseDate range when enabled. MariaDB cannot partition a table that has
+        // foreign keys, and the partition column must be in the primary key, so that variant keeps
+        // the same columns without the FKs and keys rows on (transactionID, purchaseDate).
+        if (partitionTransactions()) {
+            createTransactions = "CREATE TABLE Transactions ( " +
+                    "transactionID INT NOT NULL, " +
+                    "purchaseDate DATE NOT NULL, " +
+                    "totalPrice DECIMAL(10,2), " +
+                    "customerID INT, " +
+                    "staffID INT, " +
+                    "storeID INT, " +
+                    "productList VARCHAR(128) NOT NULL," +
+                    "PRIMARY KEY (transactionID, purchaseDate)" +
+                    ") " + transactionPartitionClause();
+        }
         statement.executeUpdate(createTransactions);
 
+        // Create TransactionIDs table. A partitioned Transactions table is keyed on
+        // (transactionID, purchaseDate), so each transactionID is claimed here as well
+        // and reusing one still fails with a duplicate key
+        String createTransactionIDs = "CREATE TABLE TransactionIDs ( " +
+                "transactionID INT PRIMARY KEY" +
+                ")";
+        statement.executeUpdate(createTransactionIDs);
+
         // Create Suppliers table
         String createSuppliers = "CREATE TABLE Suppliers ( " +
                 "supplierID INT PRIMARY KEY, " +
                 "supplierName VARCHAR(128) NOT NULL, " +
                 "supplierNum VARCHAR(15) NOT NULL UNIQUE, " +
                 "supplierEmail VARCHAR(128) NOT NULL UNIQUE, " +
-                "location VARCHAR(256) NOT NULL" +
+                "location VARCHAR(256) NOT NULL, " +
+                "retired BOOLEAN NOT NULL DEFAULT FALSE" +
                 ")";
         statement.executeUpdate(createSuppliers);
 
@@ -204,6 +336,10 @@ public class WolfWR {
                 "productionDate DATE NOT NULL, " +
                 "expirationDate DATE, " +
                 "supplierID INT NOT NULL, " +
+                "version INT NOT NULL DEFAULT 0, " +
+                "reorderLevel INT NOT NULL DEFAULT " + DEFAULT_REORDER_LEVEL + ", " +
+                // Bill that reorders the row since it last ran low, so a restart doesn't bill it again
+                "reorderBillID INT, " +
                 "FOREIGN KEY (storeID) REFERENCES Stores(storeID) ON DELETE CASCADE, " +
                 "FOREIGN KEY (supplierID) REFERENCES Suppliers(supplierID) ON DELETE CASCADE, " +
                 "PRIMARY KEY (storeID, productID)" +
@@ -222,6 +358,17 @@ public class WolfWR {
                 ")";
         statement.executeUpdate(createBills);
 
+        // Create Payables table, the running balance owed to and paid to each supplier
+        String createPayables = "CREATE TABLE Payables ( " +
+                "supplierID INT PRIMARY KEY, " +
+                "unpaidAmount DECIMAL(14,2) NOT NULL DEFAULT 0, " +
+                "unpaidBills INT NOT NULL DEFAULT 0, " +
+                "paidAmount DECIMAL(14,2) NOT NULL DEFAULT 0, " +
+                "paidBills INT NOT NULL DEFAULT 0, " +
+                "FOREIGN KEY (supplierID) REFERENCES Suppliers(supplierID) ON DELETE CASCADE" +
+                ")";
+        statement.executeUpdate(createPayables);
+
         // Create Rewards table
         String createRewards = "CREATE TABLE Rewards ( " +
                 "rewardID INT PRIMARY KEY, " +
@@ -259,6 +406,50 @@ public class WolfWR {
                 "FOREIGN KEY (staffID) REFERENCES StaffMembers(staffID) ON DELETE CASCADE" +
                 ")";
         statement.executeUpdate(createTransfers);
+
+        // Create ArchivedMonths table. A month's row commits with the delete of its archived
+        // Transactions; published turns true once the archive file is in place
+        String createArchivedMonths = "CREATE TABLE ArchivedMonths ( " +
+                "month DATE PRIMARY KEY, " +
+                "archivedRows INT NOT NULL, " +
+                "published BOOLEAN NOT NULL DEFAULT FALSE" +
+                ")";
+        statement.executeUpdate(createArchivedMonths);
+
+        // Create Sequences table, the high-water mark of each block-allocated ID
+        String createSequences = "CREATE TABLE Sequences ( " +
+                "name VARCHAR(32) PRIMARY KEY, " +
+                "nextValue BIGINT NOT NULL" +
+                ")";
+        statement.executeUpdate(createSequences);
+
+        // Create StockEscrow table, stock of hot items set aside for one register's checkouts
+        String createStockEscrow = "CREATE TABLE StockEscrow ( " +
+                "storeID INT NOT NULL, " +
+                "productID INT NOT NULL, " +
+                "registerID INT NOT NULL, " +
+                "reserved INT NOT NULL, " +
+                "lastUsed TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP, " +
+                "PRIMARY KEY (storeID, productID, registerID), " +
+                "FOREIGN KEY (storeID, productID) REFERENCES Merchandise(storeID, productID) ON DELETE CASCADE ON UPDATE CASCADE" +
+                ")";
+        statement.executeUpdate(createStockEscrow);
+
+        // Create ChangeOutbox table, one compact row per changed row, filled by triggers
+        String createChangeOutbox = "CREATE TABLE ChangeOutbox " + CHANGE_OUTBOX_COLUMNS;
+        statement.executeUpdate(createChangeOutbox);
+        // Create ChangeRelayProgress table, how far the relay has delivered this database's outbox
+        statement.executeUpdate("CREATE TABLE ChangeRelayProgress " + CHANGE_RELAY_PROGRESS_COLUMNS);
+        // Keep eventIDs rising across a rebuilt schema so the relay's saved offset stays valid
+        long relayed = readRelayOffset(CDC_OFFSET_FILE);
+        if (relayed > 0) {
+            statement.executeUpdate("ALTER TABLE ChangeOutbox AUTO_INCREMENT = " + (relayed + 1));
+        }
+        // Triggers only when a relay or poller reads the outbox, so nothing piles up unread
+        if (captureEnabled()) {
+            createChangeTriggers(statement, null);
+            installShardCapture();
+        }
     }
 
     /**
@@ -356,13 +547,13 @@ public class WolfWR {
             
             //Insert Transactions
             
-            insertTransaction(701, "2024-02-10", 45.0, 502, 203, 1002, "Organic Apples, Whole Grain Bread");
+            insertTransaction(701, "2024-02-10", 4500, 502, 203, 1002, "Organic Apples, Whole Grain Bread");
             
-            insertTransaction(702, "2024-09-12", 60.75, 502, 208, 1002, "Almond Milk, Brown Rice, Olive Oil");
+            insertTransaction(702, "2024-09-12", 6075, 502, 208, 1002, "Almond Milk, Brown Rice, Olive Oil");
             
-            insertTransaction(703, "2024-09-23", 78.9, 502, 208, 1002, "Dark Chocolate, Olive Oil, Almond Milk");
+            insertTransaction(703, "2024-09-23", 7890, 502, 208, 1002, "Dark Chocolate, Olive Oil, Almond Milk");
             
-            insertTransaction(704, "2024-07-23", 32.5, 504, 203, 1002, "Whole Chicken");
+            insertTransaction(704, "2024-07-23", 3250, 504, 203, 1002, "Whole Chicken");
             
             //update store 1 with proper manager field
             
@@ -405,15 +596,16 @@ public class WolfWR {
                 	allowedCommands.addAll(allCommands);
                     break;
                 case 3:
-                    allowedCommands.addAll(Arrays.asList("insertMerch", "updateMerch", "deleteMerch", "transferItems", "exit"));
+                    allowedCommands.addAll(Arrays.asList("insertMerch", "updateMerch", "deleteMerch", "transferItems", "transferManifest", "searchProducts", "lowStock", "setReorderLevel", "expiryStatus", "rebalanceAdvice", "applyRebalance", "exit"));
                     break;
                 case 4:
                     allowedCommands.addAll(Arrays.asList(
                         "getMerchStockByStore", "getMerchStockByItem", "getSalesByDay", "getSalesinRange", 
-                        "getSalesGrowth", "getCustGrowth", "getCustActivity", "insertBill", "updateBill", "deleteBill", "calculateReward", "updateReward", "exit"));
+                        "getSalesGrowth", "getCustGrowth", "getCustActivity", "insertBill", "updateBill", "deleteBill", "calculateReward", "updateReward",
+                        "setReportTimeout", "runningReports", "cancelReport", "reportCacheStats", "clearReportCache", "searchProducts", "lowStock", "issueReorders", "payBills", "payables", "rebalanceAdvice", "exit"));
                     break;
              case 5:
-                    allowedCommands.addAll(Arrays.asList("calculateTransaction", "exit"));
+                    allowedCommands.addAll(Arrays.asList("calculateTransaction", "scanCheckout", "searchProducts", "exit"));
                     break;
                 default:
                     System.out.println("Invalid selection. Please try again.");
@@ -421,6 +613,9 @@ public class WolfWR {
             }
         }
         
+        // The database work of this session's commands runs on the selected view's lane and draws from its connection budget
+        int laneNumber = viewSelection;
+
         // Print allowed commands before entering command loop
         System.out.println("\nCommands you can use are: " + String.join(", ", allowedCommands));
 
@@ -435,12 +630,165 @@ public class WolfWR {
         	    continue;
         	}
 
-        	switch (command) {
-        	case "exit":
+        	if (command.equals("exit")) {
         		System.out.println("exiting functions");
         		tester = false;
+        		continue;
+        	}
+
+        	// Prompts stay on this thread; each database call of the command is handed to this view's lane
+        	runCommand(command, input, laneNumber);
+    	}
+    }
+
+    // Prompt for and run one console command; takeInput has already checked that the view allows it.
+    // The prompts run here on the console thread and only the database calls go to the session's lane,
+    // so a lane worker and its connection are never held while someone is typing.
+    private static void runCommand(String command, Scanner input, int lane) {
+        	switch (command) {
+        	case "laneStats":
+        		System.out.println(laneStats());
+        		break;
+        	case "setReportTimeout": {
+        		System.out.println("Please enter report command name:");
+        		String reportName = input.nextLine();
+        		System.out.println("Please enter timeout in seconds:");
+        		int timeoutSeconds = input.nextInt();
+        		input.nextLine();
+        		System.out.println(setReportTimeout(reportName, timeoutSeconds));
+        		break;
+        	}
+        	case "maintainPartitions":
+        		try {
+        			onLane(lane, () -> maintainPartitions());
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	case "archiveTransactions": {
+        		System.out.println("Please enter the date to archive before (whole months before it are archived):");
+        		String archiveBefore = input.nextLine();
+        		try {
+        			onLane(lane, () -> archiveTransactions(archiveBefore));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "queueStats":
+        		System.out.println(checkoutQueueStats());
+        		break;
+        	case "purgeStatus":
+        		System.out.println(purgeStatus());
+        		break;
+        	case "cdcStatus":
+        		System.out.println(changeRelayStatus());
         		break;
-        	case "insertStore":
+        	case "reportCacheStats":
+        		System.out.println(reportCacheStats());
+        		break;
+        	case "clearReportCache":
+        		System.out.println(clearReportCache());
+        		break;
+        	case "coherenceStats":
+        		System.out.println(coherenceStats());
+        		break;
+        	case "memberCacheStats":
+        		System.out.println(memberCacheStats());
+        		break;
+        	case "searchProducts": {
+        		System.out.println("Please enter storeID (0 for the whole chain):");
+        		int searchStoreID = input.nextInt();
+        		input.nextLine();
+        		System.out.println("Please enter product name or the start of it:");
+        		String typedName = input.nextLine();
+        		try {
+        			onLane(lane, () -> searchProducts(searchStoreID, typedName));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "productIndexStats":
+        		System.out.println(productIndexStats());
+        		break;
+        	case "escrowStats":
+        		System.out.println(escrowStats());
+        		break;
+        	case "lowStock":
+        		try {
+        			onLane(lane, () -> lowStockReport());
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	case "issueReorders": {
+        		System.out.println("Please enter staffID issuing the bills:");
+        		int issuingStaffID = input.nextInt();
+        		input.nextLine();
+        		try {
+        			onLane(lane, () -> issueReorderBills(issuingStaffID));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "expiryStatus": {
+        		System.out.println("Please enter how many days ahead to list:");
+        		int expiryDays = input.nextInt();
+        		input.nextLine();
+        		System.out.println(expiryStatus(expiryDays));
+        		break;
+        	}
+        	case "runExpiry":
+        		try {
+        			onLane(lane, () -> runExpiry());
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	case "setReorderLevel": {
+        		System.out.println("Please enter storeID:");
+        		int reorderStoreID = input.nextInt();
+        		System.out.println("Please enter productID:");
+        		int reorderProductID = input.nextInt();
+        		System.out.println("Please enter reorder level:");
+        		int reorderLevel = input.nextInt();
+        		input.nextLine();
+        		try {
+        			onLane(lane, () -> setReorderLevel(reorderStoreID, reorderProductID, reorderLevel));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "groupCommitStats":
+        		System.out.println(groupCommitStats());
+        		break;
+        	case "transferStats":
+        		System.out.println(transferStats());
+        		break;
+        	case "replicaStatus":
+        		System.out.println(replicaStatus());
+        		break;
+        	case "runningReports":
+        		System.out.println(runningReports());
+        		break;
+        	case "cancelReport": {
+        		System.out.println(runningReports());
+        		System.out.println("Please enter the report number, or server:connectionID from the server list, to cancel:");
+        		String reportTarget = input.nextLine().trim();
+        		System.out.println(cancelReport(reportTarget));
+        		break;
+        	}
+        	case "insertStore": {
         		System.out.println("Please enter storeID:");
         		int storeID = input.nextInt();
         		System.out.println("Please enter managerID:");
@@ -451,46 +799,55 @@ public class WolfWR {
         		System.out.println("Please enter store phone number");
         		String storePhone = input.nextLine();
         		try {
-        			if(managerID < 0) {
-        				enterStoreInfo(storeID, null, storeAddress, storePhone);
-        			}
-        			else {
-        				enterStoreInfo(storeID, managerID, storeAddress, storePhone);
-        			}
+        			onLane(lane, () -> {
+        				if(managerID < 0) {
+        					enterStoreInfo(storeID, null, storeAddress, storePhone);
+        				}
+        				else {
+        					enterStoreInfo(storeID, managerID, storeAddress, storePhone);
+        				}
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateStore":
+        	}
+        	case "updateStore": {
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		System.out.println("Please enter managerID:");
-        		managerID = input.nextInt();
+        		int managerID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter store Address");
-        		storeAddress = input.nextLine();
+        		String storeAddress = input.nextLine();
         		System.out.println("Please enter store phone number");
-        		storePhone = input.nextLine();
+        		String storePhone = input.nextLine();
         		try {
-        			updateStoreInfo(storeID, managerID, storeAddress, storePhone);
+        			onLane(lane, () -> {
+        				updateStoreInfo(storeID, managerID, storeAddress, storePhone);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteStore":
+        	}
+        	case "deleteStore": {
         		System.out.println("Please enter storeID");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
+        		input.nextLine();
         		try {
-        			deleteStoreInfo(storeID);
+        			onLane(lane, () -> deleteStoreInfo(storeID));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
-        		input.nextLine();
         		break;
-        	case "insertMember":
+        	}
+        	case "insertMember": {
         		System.out.println("Please enter memberID:");
         		int memberID = input.nextInt();
         		input.nextLine();
@@ -509,60 +866,88 @@ public class WolfWR {
         		System.out.println("Please enter account Status");
         		String activeStatus = input.nextLine();
         		try {
-        			enterMemberInfo(memberID, firstName, lastName, membershipLevel, email, phone, homeAddress, activeStatus);
+        			onLane(lane, () -> {
+        				enterMemberInfo(memberID, firstName, lastName, membershipLevel, email, phone, homeAddress, activeStatus);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateMember":
+        	}
+        	case "updateMember": {
         		System.out.println("Please enter memberID:");
-        		memberID = input.nextInt();
+        		int memberID = input.nextInt();
         		input.nextLine();
+        		int[] memberVersion = new int[1];
+        		try {
+        			String refused = execute(lane, () -> {
+        				memberVersion[0] = getMemberVersion(memberID);
+        				return null;
+        			});
+        			if (refused != null) {
+        				System.out.println(refused);
+        				break;
+        			}
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        			break;
+        		}
+        		System.out.println("Current version: " + memberVersion[0]);
         		System.out.println("Please enter first name:");
-        		firstName = input.nextLine();
+        		String firstName = input.nextLine();
         		System.out.println("Please enter last name:");
-        		lastName = input.nextLine();
+        		String lastName = input.nextLine();
         		System.out.println("Please enter membershipLevel:");
-        		membershipLevel = input.nextLine();
+        		String membershipLevel = input.nextLine();
         		System.out.println("Please enter home Address");
-        		homeAddress = input.nextLine();
+        		String homeAddress = input.nextLine();
         		System.out.println("Please enter phone number");
-        		phone = input.nextLine();
+        		String phone = input.nextLine();
         		System.out.println("Please enter email");
-        		email = input.nextLine();
+        		String email = input.nextLine();
         		System.out.println("Please enter account Status");
-        		activeStatus = input.nextLine();
+        		String activeStatus = input.nextLine();
+        		System.out.println("Please enter the version you are editing (blank for the version shown above):");
+        		String expectedMemberVersion = input.nextLine().trim();
         		try {
-        			updateMemberInfo(memberID, firstName, lastName, membershipLevel, email, phone, homeAddress, activeStatus);
+        			int expected = expectedMemberVersion.isEmpty() ? memberVersion[0] : Integer.parseInt(expectedMemberVersion);
+        			onLane(lane, () -> updateMemberInfoIfVersion(memberID, expected, firstName, lastName, membershipLevel, email, phone, homeAddress, activeStatus));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteMember":
+        	}
+        	case "deleteMember": {
         		System.out.println("Please enter memberID:");
-        		memberID = input.nextInt();
+        		int memberID = input.nextInt();
         		input.nextLine();
         		try {
-        			deleteMemberInfo(memberID);
+        			onLane(lane, () -> {
+        				deleteMemberInfo(memberID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "insertStaff":
+        	}
+        	case "insertStaff": {
         		System.out.println("Please enter staffID:");
         		int staffID = input.nextInt();
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter name:");
         		String name = input.nextLine();
         		System.out.println("Please enter age:");
         		String age = input.nextLine();
         		System.out.println("Please enter home Address");
-        		homeAddress = input.nextLine();
+        		String homeAddress = input.nextLine();
         		System.out.println("Please enter phone number");
         		String phoneNumber = input.nextLine();
         		System.out.println("Please enter email");
@@ -572,106 +957,127 @@ public class WolfWR {
         		System.out.println("Please enter Time of Employment:");
         		String timeOfEmployment = input.nextLine();
         		try {
-        			enterStaffInfo(staffID, storeID, name, age, homeAddress, jobTitle, phoneNumber, emailAddress, timeOfEmployment);
+        			onLane(lane, () -> {
+        				enterStaffInfo(staffID, storeID, name, age, homeAddress, jobTitle, phoneNumber, emailAddress, timeOfEmployment);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateStaff":
+        	}
+        	case "updateStaff": {
         		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter name:");
-        		name = input.nextLine();
+        		String name = input.nextLine();
         		System.out.println("Please enter age:");
-        		age = input.nextLine();
+        		String age = input.nextLine();
         		System.out.println("Please enter home Address");
-        		homeAddress = input.nextLine();
+        		String homeAddress = input.nextLine();
         		System.out.println("Please enter phone number");
-        		phoneNumber = input.nextLine();
+        		String phoneNumber = input.nextLine();
         		System.out.println("Please enter email");
-        		emailAddress = input.nextLine();
+        		String emailAddress = input.nextLine();
         		System.out.println("Please enter job title:");
-        		jobTitle = input.nextLine();
+        		String jobTitle = input.nextLine();
         		System.out.println("Please enter Time of Employment:");
-        		timeOfEmployment = input.nextLine();
+        		String timeOfEmployment = input.nextLine();
         		try {
-        			updateStaffInfo(staffID, storeID, name, age, homeAddress, jobTitle, phoneNumber, emailAddress, timeOfEmployment);
+        			onLane(lane, () -> {
+        				updateStaffInfo(staffID, storeID, name, age, homeAddress, jobTitle, phoneNumber, emailAddress, timeOfEmployment);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteStaff":
+        	}
+        	case "deleteStaff": {
         		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		input.nextLine();
         		try {
-        			deleteStaffInfo(staffID);
+        			onLane(lane, () -> {
+        				deleteStaffInfo(staffID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "insertSupplier":
+        	}
+        	case "insertSupplier": {
         		System.out.println("Please enter supplierID:");
         		int supplierID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter name of supplier:");
         		String supplierName = input.nextLine();
         		System.out.println("Please enter phone number");
-        		phone = input.nextLine();
+        		String phone = input.nextLine();
         		System.out.println("Please enter email");
-        		emailAddress = input.nextLine();
+        		String emailAddress = input.nextLine();
         		System.out.println("Please enter location:");
         		String location = input.nextLine();
         		try {
-        			enterSupplierInfo(supplierID, supplierName, phone, emailAddress, location);
+        			onLane(lane, () -> {
+        				enterSupplierInfo(supplierID, supplierName, phone, emailAddress, location);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateSupplier":
+        	}
+        	case "updateSupplier": {
         		System.out.println("Please enter supplierID:");
-        		supplierID = input.nextInt();
+        		int supplierID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter name of supplier:");
-        		supplierName = input.nextLine();
+        		String supplierName = input.nextLine();
         		System.out.println("Please enter phone number");
-        		phone = input.nextLine();
+        		String phone = input.nextLine();
         		System.out.println("Please enter email");
-        		emailAddress = input.nextLine();
+        		String emailAddress = input.nextLine();
         		System.out.println("Please enter location:");
-        		location = input.nextLine();
+        		String location = input.nextLine();
         		try {
-        			updateSupplierInfo(supplierID, supplierName, phone, emailAddress, location);
+        			onLane(lane, () -> {
+        				updateSupplierInfo(supplierID, supplierName, phone, emailAddress, location);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteSupplier":
+        	}
+        	case "deleteSupplier": {
         		System.out.println("Please enter supplierID:");
-        		supplierID = input.nextInt();
+        		int supplierID = input.nextInt();
         		input.nextLine();
         		try {
-        			deleteSupplierInfo(supplierID);
+        			onLane(lane, () -> deleteSupplierInfo(supplierID));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "insertDiscount":
-        		System.out.println("Please enter discountID");
+        	}
+        	case "insertDiscount": {
+        		System.out.println("Please enter discountID (0 to assign automatically)");
         		int discountID = input.nextInt();
         		System.out.println("Please enter productID");
         		int productID = input.nextInt();
         		System.out.println("Please enter storeID");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		System.out.println("Please enter discountDetails");
         		double discountDetails = input.nextDouble();
         		input.nextLine();
@@ -680,96 +1086,120 @@ public class WolfWR {
         		System.out.println("Please enter endDate");
         		String endDate = input.nextLine();
         		try {
-        			enterDiscountInfo(discountID, productID, storeID, discountDetails, startDate, endDate);
+        			onLane(lane, () -> {
+        				enterDiscountInfo(discountID, productID, storeID, discountDetails, startDate, endDate);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateDiscount":
+        	}
+        	case "updateDiscount": {
         		System.out.println("Please enter discountID");
-        		discountID = input.nextInt();
+        		int discountID = input.nextInt();
         		System.out.println("Please enter productID");
-        		productID = input.nextInt();
+        		int productID = input.nextInt();
         		System.out.println("Please enter storeID");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		System.out.println("Please enter discountDetails");
-        		discountDetails = input.nextDouble();
+        		double discountDetails = input.nextDouble();
         		input.nextLine();
         		System.out.println("Please enter startDate");
-        		startDate = input.nextLine();
+        		String startDate = input.nextLine();
         		System.out.println("Please enter endDate");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			updateDiscountInfo(discountID, productID, storeID, discountDetails, startDate, endDate);
+        			onLane(lane, () -> {
+        				updateDiscountInfo(discountID, productID, storeID, discountDetails, startDate, endDate);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteDiscount":
+        	}
+        	case "deleteDiscount": {
         		System.out.println("Please enter discountID");
-        		discountID = input.nextInt();
+        		int discountID = input.nextInt();
+        		input.nextLine();
         		try {
-        			deleteDiscountInfo(discountID);
+        			onLane(lane, () -> {
+        				deleteDiscountInfo(discountID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
-        		input.nextLine();
         		break;
-        	case "insertSignUp":
+        	}
+        	case "insertSignUp": {
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		System.out.println("Please enter customerID:");
         		int custID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter sign-up date:");
         		String date = input.nextLine();
         		try {
-        			enterSignUp(storeID, custID, date, staffID);
+        			onLane(lane, () -> {
+        				enterSignUp(storeID, custID, date, staffID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateSignUp":
+        	}
+        	case "updateSignUp": {
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		System.out.println("Please enter customerID:");
-        		custID = input.nextInt();
+        		int custID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter sign-up date:");
-        		date = input.nextLine();
+        		String date = input.nextLine();
         		try {
-        			updateSignUp(storeID, custID, date, staffID);
+        			onLane(lane, () -> {
+        				updateSignUp(storeID, custID, date, staffID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteSignUp":
+        	}
+        	case "deleteSignUp": {
         		System.out.println("Please enter customerID:");
-        		custID = input.nextInt();
+        		int custID = input.nextInt();
         		input.nextLine();
         		try {
-        			deleteSignUp(custID);
+        			onLane(lane, () -> {
+        				deleteSignUp(custID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "insertMerch":
+        	}
+        	case "insertMerch": {
         		System.out.println("Please enter productID");
-        		productID = input.nextInt();
+        		int productID = input.nextInt();
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		System.out.println("Please enter supplierID:");
-        		supplierID = input.nextInt();
+        		int supplierID = input.nextInt();
         		System.out.println("Please enter quantity currently in stock:");
         		int stockQuantity = input.nextInt();
         		System.out.println("Please enter buy price");
@@ -784,254 +1214,387 @@ public class WolfWR {
         		System.out.println("Please enter expiration Date");
         		String expirationDate = input.nextLine();
         		try {
-        			insertInventory(storeID, productID, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID);
+        			onLane(lane, () -> {
+        				insertInventory(storeID, productID, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateMerch":
+        	}
+        	case "updateMerch": {
         		System.out.println("Please enter productID");
-        		productID = input.nextInt();
+        		int productID = input.nextInt();
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
+        		int[] merchVersion = new int[1];
+        		try {
+        			String refused = execute(lane, () -> {
+        				merchVersion[0] = getInventoryVersion(storeID, productID);
+        				return null;
+        			});
+        			if (refused != null) {
+        				System.out.println(refused);
+        				input.nextLine();
+        				break;
+        			}
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        			input.nextLine();
+        			break;
+        		}
+        		System.out.println("Current version: " + merchVersion[0]);
         		System.out.println("Please enter supplierID:");
-        		supplierID = input.nextInt();
+        		int supplierID = input.nextInt();
         		System.out.println("Please enter quantity currently in stock:");
-        		stockQuantity = input.nextInt();
+        		int stockQuantity = input.nextInt();
         		System.out.println("Please enter buy price");
-        		buyPrice = input.nextDouble();
+        		double buyPrice = input.nextDouble();
         		System.out.println("Please enter market price");
-        		marketPrice = input.nextDouble();
+        		double marketPrice = input.nextDouble();
         		input.nextLine();
         		System.out.println("Please enter product name");
-        		productName = input.nextLine();
+        		String productName = input.nextLine();
         		System.out.println("Please enter production Date");
-        		productionDate = input.nextLine();
+        		String productionDate = input.nextLine();
         		System.out.println("Please enter expiration Date");
-        		expirationDate = input.nextLine();
+        		String expirationDate = input.nextLine();
+        		System.out.println("Please enter the version you are editing (blank for the version shown above):");
+        		String expectedMerchVersion = input.nextLine().trim();
         		try {
-        			updateInventory(storeID, productID, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID);
+        			int expected = expectedMerchVersion.isEmpty() ? merchVersion[0] : Integer.parseInt(expectedMerchVersion);
+        			onLane(lane, () -> updateInventoryIfVersion(storeID, productID, expected, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteMerch":
+        	}
+        	case "deleteMerch": {
         		System.out.println("Please enter productID");
-        		productID = input.nextInt();
+        		int productID = input.nextInt();
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		input.nextLine();
         		try {
-        			deleteInventory(storeID, productID);
+        			onLane(lane, () -> {
+        				deleteInventory(storeID, productID);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "insertBill":
-        		System.out.println("Please enter billID:");
-        		int billID = input.nextInt();
-        		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
-        		System.out.println("Please enter supplierID:");
-        		supplierID = input.nextInt();
-        		System.out.println("Please enter amountOwed:");
-        		Double amountOwed = input.nextDouble();
-        		input.nextLine();
-        		System.out.println("Please enter status (must be paid or unpaid):");
-        		String status = input.nextLine();
+        	}
+        	case "rebalanceAdvice":
         		try {
-        			generateBill(billID, amountOwed, status, staffID, supplierID);
+        			onLane(lane, () -> rebalanceAdvice());
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateBill":
-        		System.out.println("Please enter billID:");
-        		billID = input.nextInt();
-        		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
-        		System.out.println("Please enter supplierID:");
-        		supplierID = input.nextInt();
-        		System.out.println("Please enter amountOwed:");
-        		amountOwed = input.nextDouble();
+        	case "applyRebalance": {
+        		System.out.println("Please enter staffID approving the transfers:");
+        		int rebalanceStaffID = input.nextInt();
         		input.nextLine();
-        		System.out.println("Please enter status (must be paid or unpaid):");
-        		status = input.nextLine();
+        		System.out.println("Please enter transfer date (YYYY-MM-DD):");
+        		String rebalanceDate = input.nextLine();
         		try {
-        			updateBill(billID, amountOwed, status, staffID, supplierID);
+        			onLane(lane, () -> applyRebalance(rebalanceDate, rebalanceStaffID));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "deleteBill":
-        		System.out.println("Please enter billID:");
-        		billID = input.nextInt();
-        		input.nextLine();
+        	}
+        	case "payBills": {
+        		System.out.println("Please enter the billIDs to pay, separated by commas:");
+        		String[] payIDs = input.nextLine().split(",");
         		try {
-        			deleteBill(billID);
+        			int[] billIDs = new int[payIDs.length];
+        			for (int i = 0; i < payIDs.length; i++) billIDs[i] = Integer.parseInt(payIDs[i].trim());
+        			onLane(lane, () -> payBills(billIDs));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "transferItems":
-        		System.out.println("Please enter first productID");
-        		Integer product1ID = input.nextInt();
-        		System.out.println("Please enter second productID");
-        		Integer product2ID = input.nextInt();
-        		System.out.println("Please enter storeID to be transformed from");
-        		Integer store1ID = input.nextInt();
-        		System.out.println("Please enter storeID to be transformed to");
-        		Integer store2ID = input.nextInt();
-        		System.out.println("Please enter staffID who made the transfer");
-        		staffID = input.nextInt();
+        	}
+        	case "payables": {
+        		System.out.println("Please enter supplierID (0 for every supplier):");
+        		int payablesSupplierID = input.nextInt();
         		input.nextLine();
-        		System.out.println("Please enter transfer Date");
-        		String transferDate = input.nextLine();
         		try {
-        			processTransfer(store1ID, store2ID, product1ID, product2ID, transferDate, staffID);
+        			onLane(lane, () -> payables(payablesSupplierID));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "getMerchStockByStore":
-        		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
-        		try {
-        			System.out.println(getMerchStockByStore(storeID));
-        		}
-        		catch(Exception e) {
-        			e.printStackTrace();
-        		}
-        		input.nextLine();
-        		break;
-        	case "getMerchStockByItem":
+        	}
+        	case "insertBill": {
+        		System.out.println("Please enter billID (0 to assign automatically):");
+        		int billID = input.nextInt();
+        		System.out.println("Please enter staffID:");
+        		int staffID = input.nextInt();
+        		System.out.println("Please enter supplierID:");
+        		int supplierID = input.nextInt();
+        		System.out.println("Please enter amountOwed:");
+        		Double amountOwed = input.nextDouble();
+        		input.nextLine();
+        		System.out.println("Please enter status (must be paid or unpaid):");
+        		String status = input.nextLine();
+        		try {
+        			onLane(lane, () -> {
+        				generateBill(billID, Money.fromDouble(amountOwed), status, staffID, supplierID);
+        				return null;
+        			});
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "updateBill": {
+        		System.out.println("Please enter billID:");
+        		int billID = input.nextInt();
+        		System.out.println("Please enter staffID:");
+        		int staffID = input.nextInt();
+        		System.out.println("Please enter supplierID:");
+        		int supplierID = input.nextInt();
+        		System.out.println("Please enter amountOwed:");
+        		Double amountOwed = input.nextDouble();
+        		input.nextLine();
+        		System.out.println("Please enter status (must be paid or unpaid):");
+        		String status = input.nextLine();
+        		try {
+        			onLane(lane, () -> {
+        				updateBill(billID, Money.fromDouble(amountOwed), status, staffID, supplierID);
+        				return null;
+        			});
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "deleteBill": {
+        		System.out.println("Please enter billID:");
+        		int billID = input.nextInt();
+        		input.nextLine();
+        		try {
+        			onLane(lane, () -> {
+        				deleteBill(billID);
+        				return null;
+        			});
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "transferItems": {
+        		System.out.println("Please enter first productID");
+        		Integer product1ID = input.nextInt();
+        		System.out.println("Please enter second productID");
+        		Integer product2ID = input.nextInt();
+        		System.out.println("Please enter storeID to be transformed from");
+        		Integer store1ID = input.nextInt();
+        		System.out.println("Please enter storeID to be transformed to");
+        		Integer store2ID = input.nextInt();
+        		System.out.println("Please enter staffID who made the transfer");
+        		int staffID = input.nextInt();
+        		input.nextLine();
+        		System.out.println("Please enter transfer Date");
+        		String transferDate = input.nextLine();
+        		try {
+        			onLane(lane, () -> {
+        				processTransfer(store1ID, store2ID, product1ID, product2ID, transferDate, staffID);
+        				return null;
+        			});
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "transferManifest": {
+        		System.out.println("Please enter staffID who made the transfer");
+        		int staffID = input.nextInt();
+        		input.nextLine();
+        		System.out.println("Please enter transfer Date");
+        		String transferDate = input.nextLine();
+        		System.out.println("Please enter one line per item as: fromStoreID toStoreID fromProductID toProductID (blank line to finish)");
+        		List<TransferLine> manifest = new ArrayList<>();
+        		String manifestLine;
+        		while (!(manifestLine = input.nextLine().trim()).isEmpty()) {
+        			String[] f = manifestLine.split("[\\s,]+");
+        			if (f.length != 4) {
+        				System.out.println("Expected four IDs, line skipped.");
+        				continue;
+        			}
+        			manifest.add(new TransferLine(Integer.parseInt(f[0]), Integer.parseInt(f[1]), Integer.parseInt(f[2]), Integer.parseInt(f[3])));
+        		}
+        		try {
+        			onLane(lane, () -> processTransferManifest(manifest, transferDate, staffID));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "getMerchStockByStore": {
+        		System.out.println("Please enter storeID:");
+        		int storeID = input.nextInt();
+        		input.nextLine();
+        		try {
+        			onLane(lane, () -> getMerchStockByStore(storeID));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	case "getMerchStockByItem": {
         		System.out.println("Please enter merchandise name:");
         		String itemName = input.nextLine();
         		try {
-        			System.out.println(getMerchStockByItem(itemName));
+        			onLane(lane, () -> getMerchStockByItem(itemName));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "getSalesByDay":
+        	}
+        	case "getSalesByDay": {
         		System.out.println("Please enter date:");
-        		date = input.nextLine();
+        		String date = input.nextLine();
         		try {
-        			System.out.println(calculateSalesByDay(date));
+        			onLane(lane, () -> calculateSalesByDay(date));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "getSalesinRange":
+        	}
+        	case "getSalesinRange": {
         		System.out.println("Please enter start date:");
-        		date = input.nextLine();
+        		String date = input.nextLine();
         		System.out.println("Please enter end date:");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			System.out.println(calculateSalesByYear(date, endDate));
+        			onLane(lane, () -> calculateSalesByYear(date, endDate));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "getSalesGrowth":
+        	}
+        	case "getSalesGrowth": {
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter start date:");
-        		date = input.nextLine();
+        		String date = input.nextLine();
         		System.out.println("Please enter end date:");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			System.out.println(calculateSalesGrowth(storeID, date, endDate));
+        			onLane(lane, () -> calculateSalesGrowth(storeID, date, endDate));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "getCustGrowth":
+        	}
+        	case "getCustGrowth": {
         		System.out.println("Please enter start date:");
-        		date = input.nextLine();
+        		String date = input.nextLine();
         		System.out.println("Please enter end date:");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			System.out.println(getCustGrowthReport(date, endDate));
+        			onLane(lane, () -> getCustGrowthReport(date, endDate));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "getCustActivity":
+        	}
+        	case "getCustActivity": {
         		System.out.println("Please enter memberID:");
-        		memberID = input.nextInt();
+        		int memberID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter start date:");
-        		date = input.nextLine();
+        		String date = input.nextLine();
         		System.out.println("Please enter end date:");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			System.out.println(getCustActivityReport(memberID, date, endDate));
+        			onLane(lane, () -> getCustActivityReport(memberID, date, endDate));
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "calculateReward":
-        		System.out.println("Please enter rewardID");
+        	}
+        	case "calculateReward": {
+        		System.out.println("Please enter rewardID (0 to assign automatically)");
         		int rewardID = input.nextInt();
         		System.out.println("Please enter staffID");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		System.out.println("Please enter customerID");
         		int customerID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter startDate");
-        		startDate = input.nextLine();
+        		String startDate = input.nextLine();
         		System.out.println("Please enter endDate");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			 createReward(rewardID, 0.0, staffID, customerID, startDate, endDate);
+        			onLane(lane, () -> {
+        				createReward(rewardID, 0L, staffID, customerID, startDate, endDate);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "updateReward":
+        	}
+        	case "updateReward": {
         		System.out.println("Please enter rewardID");
-        		rewardID = input.nextInt();
+        		int rewardID = input.nextInt();
         		System.out.println("Please enter staffID");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		System.out.println("Please enter customerID");
-        		customerID = input.nextInt();
+        		int customerID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter startDate");
-        		startDate = input.nextLine();
+        		String startDate = input.nextLine();
         		System.out.println("Please enter endDate");
-        		endDate = input.nextLine();
+        		String endDate = input.nextLine();
         		try {
-        			 updateReward(rewardID, 0.0, staffID, customerID, startDate, endDate);
+        			onLane(lane, () -> {
+        				updateReward(rewardID, 0L, staffID, customerID, startDate, endDate);
+        				return null;
+        			});
         		}
         		catch(Exception e) {
         			e.printStackTrace();
         		}
         		break;
-        	case "calculateTransaction":
-        		System.out.println("Please enter transactionID");
+        	}
+        	case "calculateTransaction": {
+        		System.out.println("Please enter transactionID (0 to assign automatically)");
         		int transactionID = input.nextInt();
         		System.out.println("Please enter customerID:");
-        		customerID = input.nextInt();
+        		int customerID = input.nextInt();
         		System.out.println("Please enter staffID:");
-        		staffID = input.nextInt();
+        		int staffID = input.nextInt();
         		System.out.println("Please enter storeID:");
-        		storeID = input.nextInt();
+        		int storeID = input.nextInt();
         		input.nextLine();
         		System.out.println("Please enter purchase Date");
         		String purchaseDate = input.nextLine();
@@ -1040,15 +1603,56 @@ public class WolfWR {
         		System.out.println("Please enter list of product amounts purchased separated by only commas (no spaces)");
         		String amounts = input.nextLine();
         		try {
-        			calculateTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productList, amounts);
-	       		}
-	       		catch(Exception e) {
-	       			e.printStackTrace();
-	       		}
-	       		break;
+        			onLane(lane, () -> {
+        				// Record the basket locally first; only go straight to the database if the queue can't take it
+        				String queued = queueTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productList, amounts);
+        				if (queued.endsWith(" queued.") || queued.startsWith("Basket rejected")) {
+        					return queued;
+        				}
+        				return queued + " Recording directly.\n" + groupCommitTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productList, amounts);
+        			});
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
         	}
-        	
-    	}
+        	case "scanCheckout": {
+        		System.out.println("Please enter transactionID (0 to assign automatically)");
+        		int scanTransactionID = input.nextInt();
+        		System.out.println("Please enter customerID:");
+        		int customerID = input.nextInt();
+        		System.out.println("Please enter staffID:");
+        		int staffID = input.nextInt();
+        		System.out.println("Please enter storeID:");
+        		int storeID = input.nextInt();
+        		input.nextLine();
+        		System.out.println("Please enter purchase Date");
+        		String scanDate = input.nextLine();
+        		System.out.println("Please enter scanned productIDs separated by commas");
+        		String[] scanned = input.nextLine().split(",");
+        		System.out.println("Please enter quantities separated by commas, in the same order");
+        		String[] counts = input.nextLine().split(",");
+        		try {
+        			int[] scannedIDs = new int[scanned.length];
+        			int[] quantities = new int[counts.length];
+        			for (int i = 0; i < scanned.length; i++) scannedIDs[i] = Integer.parseInt(scanned[i].trim());
+        			for (int i = 0; i < counts.length; i++) quantities[i] = Integer.parseInt(counts[i].trim());
+        			onLane(lane, () -> groupCommitScannedTransaction(scanTransactionID, scanDate, customerID, staffID, storeID, scannedIDs, quantities));
+        		}
+        		catch(Exception e) {
+        			e.printStackTrace();
+        		}
+        		break;
+        	}
+        	}
+    }
+
+    // Run one database call of a console command on the session's lane and print what it returns.
+    // A void call returns null and prints nothing; a lane too busy to take the call prints its refusal.
+    private static void onLane(int laneNumber, Callable<String> work) throws SQLException {
+        String result = execute(laneNumber, work);
+        if (result != null) System.out.println(result);
     }
 
     /**
@@ -1056,6 +1660,17 @@ public class WolfWR {
      */
     private static void closeDatabase() {
         // Close result, statement, and connection in reverse order
+        closeCheckoutQueue();
+        stopGroupCommitter();
+        stopStockEscrow();
+        stopExpiryTracker();
+        stopPurges();
+        stopChangeRelay();
+        stopCoherencePoller();
+        closeSequences();
+        shutdownLanes();
+        closeReplicas();
+        closeShards();
         try {
             if (result != null)    result.close();
             if (statement != null) statement.close();
@@ -1076,7 +1691,7 @@ public class WolfWR {
     // Inserts a new record into the Stores table.
     public static String enterStoreInfo(int storeID, Integer managerID, String storeAddress, String phoneNumber) throws SQLException {
         String sql = "INSERT INTO Stores (storeID, storeNum, storeAddr, managerID) VALUES (?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, storeID);
             ps.setString(2, phoneNumber);
             ps.setString(3, storeAddress);
@@ -1087,6 +1702,7 @@ public class WolfWR {
                 ps.setInt(4, managerID);
             }
             ps.executeUpdate();
+            noteWrite("Stores");
         }
         catch (Exception e) {
             throw new SQLException("Failed to insert Store. DB says: " + e.getMessage(), e);
@@ -1113,7 +1729,7 @@ public class WolfWR {
         }
         sql.append(" WHERE storeID = ?");
 
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (phoneNumber != null) {
                 ps.setString(index++, phoneNumber);
@@ -1126,6 +1742,7 @@ public class WolfWR {
             }
             ps.setInt(index, storeID);
             ps.executeUpdate();
+            noteWrite("Stores");
         } catch (Exception e) {
         	return "Failed.";
         }
@@ -1134,14 +1751,24 @@ public class WolfWR {
 
     // Delete an existing store
     public static String deleteStoreInfo(int storeID) throws SQLException {
-        String sql = "DELETE FROM Stores WHERE storeID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        // Staff and sign-ups block the delete, as their foreign keys always have
+        String blockedSQL = "SELECT EXISTS (SELECT 1 FROM StaffMembers WHERE storeID = ?) OR EXISTS (SELECT 1 FROM SignUps WHERE storeID = ?)";
+        // The store is retired at once; its merchandise is purged in the background
+        String sql = "UPDATE Stores SET retired = TRUE WHERE storeID = ?";
+        try (PreparedStatement check = db().prepareStatement(blockedSQL); PreparedStatement ps = db().prepareStatement(sql)) {
+            check.setInt(1, storeID);
+            check.setInt(2, storeID);
+            try (ResultSet rs = check.executeQuery()) {
+                if (rs.next() && rs.getBoolean(1)) return "Failed.";
+            }
             ps.setInt(1, storeID);
-            ps.executeUpdate();
+            if (ps.executeUpdate() == 0) return "Failed.";
+            noteWrite("Stores");
         } catch (Exception e) {
         	return "Failed.";
         }
-        return "Store info deleted successfully.";
+        retiredStores.add(storeID);
+        return "Store retired. " + schedulePurge(PurgeJob.STORE, storeID);
     }
 
     // Club Member operations
@@ -1150,7 +1777,7 @@ public class WolfWR {
                                      String email, String phone, String homeAddress, String activeStatus) throws SQLException {
         String sql = "INSERT INTO ClubMembers (customerID, firstName, lastName, membershipLevel, custEmail, custPhone, custAddr, custStatus) " +
                      "VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, memberID);
             ps.setString(2, firstName);
             ps.setString(3, lastName);
@@ -1160,6 +1787,8 @@ public class WolfWR {
             ps.setString(7, homeAddress);
             ps.setString(8, activeStatus);
             ps.executeUpdate();
+            noteWrite("ClubMembers");
+            memberCache.put(memberID, packMember(membershipLevel, activeStatus, 0));
         } catch (Exception e) {
         	return "Failed.";
         }
@@ -1170,6 +1799,19 @@ public class WolfWR {
     public static String updateMemberInfo(int memberID, String firstName, String lastName, String membershipLevel, 
                                       String email, String phone, String homeAddress, String activeStatus
                                       ) throws SQLException {
+        return updateMemberInfo(memberID, null, firstName, lastName, membershipLevel, email, phone, homeAddress, activeStatus);
+    }
+
+    // Update a club member only if nobody changed it since expectedVersion was read
+    public static String updateMemberInfoIfVersion(int memberID, int expectedVersion, String firstName, String lastName, String membershipLevel,
+                                      String email, String phone, String homeAddress, String activeStatus
+                                      ) throws SQLException {
+        return updateMemberInfo(memberID, Integer.valueOf(expectedVersion), firstName, lastName, membershipLevel, email, phone, homeAddress, activeStatus);
+    }
+
+    private static String updateMemberInfo(int memberID, Integer expectedVersion, String firstName, String lastName, String membershipLevel,
+                                      String email, String phone, String homeAddress, String activeStatus
+                                      ) throws SQLException {
         StringBuilder sql = new StringBuilder("UPDATE ClubMembers SET ");
         boolean first = true;
         if (firstName != null) { sql.append("firstName = ?"); first = false; }
@@ -1181,9 +1823,11 @@ public class WolfWR {
         if (activeStatus != null) { sql.append(first ? "" : ", ").append("custStatus = ?"); first = false; }
 //        if (staffID != null) { sql.append(first ? "" : ", ").append("staffID = ?"); first = false; }
 //        if (signUpDate != null) { sql.append(first ? "" : ", ").append("signUpDate = ?"); }
+        sql.append(first ? "" : ", ").append("version = version + 1");
         sql.append(" WHERE customerID = ?");
+        if (expectedVersion != null) sql.append(" AND version = ?");
 
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (firstName != null) ps.setString(index++, firstName);
             if (lastName != null) ps.setString(index++, lastName);
@@ -1194,8 +1838,14 @@ public class WolfWR {
             if (activeStatus != null) ps.setString(index++, activeStatus);
 //            if (staffID != null) ps.setInt(index++, staffID);
 //            if (signUpDate != null) ps.setDate(index++, java.sql.Date.valueOf(signUpDate));
-            ps.setInt(index, memberID);
-            ps.executeUpdate();
+            ps.setInt(index++, memberID);
+            if (expectedVersion != null) ps.setInt(index, expectedVersion);
+            if (ps.executeUpdate() == 0 && expectedVersion != null) {
+                String conflict = versionMismatch("ClubMembers", "customerID = " + memberID, "SELECT version FROM ClubMembers WHERE customerID = ?", memberID);
+                if (conflict != null) return conflict;
+            }
+            noteWrite("ClubMembers");
+            refreshMember(memberID);
         } catch (Exception e) {
         	return "Failed";
         }
@@ -1205,9 +1855,11 @@ public class WolfWR {
     // Delete an existing club member from the ClubMembers table
     public static String deleteMemberInfo(int memberID) throws SQLException {
         String sql = "DELETE FROM ClubMembers WHERE customerID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, memberID);
             ps.executeUpdate();
+            noteWrite("ClubMembers");
+            memberCache.remove(memberID);
         } catch (Exception e) {
         	return "Failed";
         }
@@ -1220,7 +1872,7 @@ public class WolfWR {
                                     String jobTitle, String phoneNumber, String emailAddress, String timeOfEmployment) throws SQLException {
         String sql = "INSERT INTO StaffMembers (staffID, Name, Age, homeAddr, employmentTime, jobTitle, staffNum, staffEmail, storeID) " +
                  "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, staffID);
             ps.setString(2, name);
             ps.setString(3, age);
@@ -1231,6 +1883,7 @@ public class WolfWR {
             ps.setString(8, emailAddress);
             ps.setInt(9, storeID);
             ps.executeUpdate();
+            noteWrite("StaffMembers");
         } catch (Exception e) {
         	return "Staff entering failed.";
         }
@@ -1252,7 +1905,7 @@ public class WolfWR {
         if (storeID != null) { sql.append(first ? "" : ", ").append("storeID = ?"); }
         sql.append(" WHERE staffID = ?");
 
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (name != null) ps.setString(index++, name);
             if (age != null) ps.setDate(index++, java.sql.Date.valueOf(age));
@@ -1264,6 +1917,7 @@ public class WolfWR {
             if (storeID != null) ps.setInt(index++, storeID);
             ps.setInt(index, staffID);
             ps.executeUpdate();
+            noteWrite("StaffMembers");
         }
         return "Staff info updated successfully.";
     }
@@ -1271,9 +1925,10 @@ public class WolfWR {
     // Delete an existing staff member from the StaffMembers Table
     public static String deleteStaffInfo(int staffID) throws SQLException {
         String sql = "DELETE FROM StaffMembers WHERE staffID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, staffID);
             ps.executeUpdate();
+            noteWrite("StaffMembers");
         }
         return "Staff info deleted successfully.";
     }
@@ -1282,13 +1937,14 @@ public class WolfWR {
     // Add a new supplier into the Suppliers Table
     public static String enterSupplierInfo(int supplierID, String supplierName, String phone, String emailAddress, String location) throws SQLException {
         String sql = "INSERT INTO Suppliers (supplierID, supplierName, supplierNum, supplierEmail, location) VALUES (?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, supplierID);
             ps.setString(2, supplierName);
             ps.setString(3, phone);
             ps.setString(4, emailAddress);
             ps.setString(5, location);
             ps.executeUpdate();
+            noteWrite("Suppliers");
         }
         return "Supplier info entered successfully.";
     }
@@ -1303,7 +1959,7 @@ public class WolfWR {
         if (location != null) { sql.append(first ? "" : ", ").append("location = ?"); }
         sql.append(" WHERE supplierID = ?");
     
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (supplierName != null) ps.setString(index++, supplierName);
             if (phone != null) ps.setString(index++, phone);
@@ -1311,67 +1967,96 @@ public class WolfWR {
             if (location != null) ps.setString(index++, location);
             ps.setInt(index, supplierID);
             ps.executeUpdate();
+            noteWrite("Suppliers");
         }
         return "Supplier info updated successfully.";
     }
 
     // Delete an existing supplier from Supplier table
     public static String deleteSupplierInfo(int supplierID) throws SQLException {
-        String sql = "DELETE FROM Suppliers WHERE supplierID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        // Bills block the delete, as their foreign key always has
+        String blockedSQL = "SELECT 1 FROM Bills WHERE supplierID = ? LIMIT 1";
+        // The supplier is retired at once; its merchandise is purged in the background
+        String sql = "UPDATE Suppliers SET retired = TRUE WHERE supplierID = ?";
+        try (PreparedStatement check = db().prepareStatement(blockedSQL); PreparedStatement ps = db().prepareStatement(sql)) {
+            check.setInt(1, supplierID);
+            try (ResultSet rs = check.executeQuery()) {
+                if (rs.next()) return "Supplier still has bills, delete them first.";
+            }
             ps.setInt(1, supplierID);
-            ps.executeUpdate();
+            if (ps.executeUpdate() == 0) return "No such supplier.";
+            noteWrite("Suppliers");
         }
-        return "Supplier info deleted successfully.";
+        retiredSuppliers.add(supplierID);
+        return "Supplier retired. " + schedulePurge(PurgeJob.SUPPLIER, supplierID);
     }
 
     // Discount operations
     // Add a new discount which applies to a given product at a given store.
     public static String enterDiscountInfo(int discountID, int productID, int storeID, double discountDetails, String validStartDate, String validEndDate) throws SQLException {
+        if (discountID <= 0) {
+            int assigned = nextId(SEQ_DISCOUNTS);
+            return "Assigned discountID " + assigned + ". " + enterDiscountInfo(assigned, productID, storeID, discountDetails, validStartDate, validEndDate);
+        }
+        String retired = retiredWrite(storeID, null);
+        if (retired != null) return retired;
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> enterDiscountInfo(discountID, productID, storeID, discountDetails, validStartDate, validEndDate));
+        }
         String sql = "INSERT INTO Discounts (discountID, productID, storeID, discountStartDate, discountEndDate, promotion) " +
-                 "VALUES (?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                 "VALUES (?, ?, ?, ?, ?, ? / 100)";
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, discountID);
             ps.setInt(2, productID);
             ps.setInt(3, storeID);
             ps.setDate(4, java.sql.Date.valueOf(validStartDate));
             ps.setDate(5, java.sql.Date.valueOf(validEndDate));
-            ps.setDouble(6, discountDetails);
+            ps.setLong(6, Money.fromDouble(discountDetails));
             ps.executeUpdate();
+            noteWrite("Discounts");
         }
         return "Discount info entered successfully.";
     }
 
     // Update values associated to an existing Discount
     public static String updateDiscountInfo(int discountID, Integer productID, Integer storeID, Double discountDetails, String validStartDate, String validEndDate) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> updateDiscountInfo(discountID, productID, storeID, discountDetails, validStartDate, validEndDate));
+        }
         StringBuilder sql = new StringBuilder("UPDATE Discounts SET ");
         boolean first = true;
         if (productID != null) { sql.append("productID = ?"); first = false; }
         if (storeID != null) { sql.append(first ? "" : ", ").append("storeID = ?"); first = false; }
         if (validStartDate != null) { sql.append(first ? "" : ", ").append("discountStartDate = ?"); first = false; }
         if (validEndDate != null) { sql.append(first ? "" : ", ").append("discountEndDate = ?"); first = false; }
-        if (discountDetails != null) { sql.append(first ? "" : ", ").append("promotion = ?"); }
+        if (discountDetails != null) { sql.append(first ? "" : ", ").append("promotion = ? / 100"); }
         sql.append(" WHERE discountID = ?");
     
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (productID != null) ps.setInt(index++, productID);
             if (storeID != null) ps.setInt(index++, storeID);
             if (validStartDate != null) ps.setDate(index++, java.sql.Date.valueOf(validStartDate));
             if (validEndDate != null) ps.setDate(index++, java.sql.Date.valueOf(validEndDate));
-            if (discountDetails != null) ps.setDouble(index++, discountDetails);
+            if (discountDetails != null) ps.setLong(index++, Money.fromDouble(discountDetails));
             ps.setInt(index, discountID);
             ps.executeUpdate();
+            noteWrite("Discounts");
         }
         return "Discount info updated successfully.";
     }
 
     // Delete a existing discount
     public static String deleteDiscountInfo(int discountID) throws SQLException {
+        // Discounts live on their store's shard; only the shard holding this ID will match
+        if (shards.length > 0 && boundShard.get() == null) {
+            return onEveryShard(() -> deleteDiscountInfo(discountID));
+        }
         String sql = "DELETE FROM Discounts WHERE discountID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, discountID);
             ps.executeUpdate();
+            noteWrite("Discounts");
         }
         return "Discount info deleted successfully.";
     }
@@ -1381,12 +2066,13 @@ public class WolfWR {
     public static String enterSignUp(int storeID, int custID, String date, int staffID) throws SQLException {
     	String sql = "INSERT INTO SignUps (storeID, customerID, signUpDate, staffID) " +
                 "VALUES (?, ?, ?, ?)";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    	try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, storeID);
             ps.setInt(2, custID);
             ps.setDate(3, java.sql.Date.valueOf(date));
             ps.setInt(4, staffID);
             ps.executeUpdate();
+            noteWrite("SignUps");
         }
         return "SignUp info entered successfully.";
     }
@@ -1401,7 +2087,7 @@ public class WolfWR {
         if (staffID != null) { sql.append(first ? "" : ", ").append("staffID = ?"); first = false; }
         sql.append(" WHERE customerID = ?");
     
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (storeID != null) ps.setInt(index++, storeID);
             if (custID != null) ps.setInt(index++, custID);
@@ -1409,6 +2095,7 @@ public class WolfWR {
             if (staffID != null) ps.setInt(index++, staffID);
             ps.setInt(index, custID);
             ps.executeUpdate();
+            noteWrite("SignUps");
         }
         return "SignUp info update successfully.";
     }
@@ -1416,9 +2103,10 @@ public class WolfWR {
     // Delete a existing Sign Up Record
     public static String deleteSignUp(int custID) throws SQLException {
         String sql = "DELETE FROM SignUps WHERE customerID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, custID);
             ps.executeUpdate();
+            noteWrite("SignUps");
         }
         return "Sign Ups info deleted successfully.";
     }
@@ -1432,124 +2120,129 @@ public class WolfWR {
 
     // Inventory operations
     private static String insertInventory(int storeID, int productID, String productName, int stockQuantity, Double buyPrice, Double marketPrice, String productionDate, String expirationDate, int supplierID) throws SQLException {
+        String retired = retiredWrite(storeID, supplierID);
+        if (retired != null) return retired;
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> insertInventory(storeID, productID, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID));
+        }
         String sql = "INSERT INTO Merchandise (storeID, productID, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID) " +
-                 "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+                 "VALUES (?, ?, ?, ?, ? / 100, ? / 100, ?, ?, ?)";
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, storeID);
             ps.setInt(2, productID);
             ps.setString(3, productName);
             ps.setInt(4, stockQuantity);
-            ps.setDouble(5, buyPrice);
-            ps.setDouble(6, marketPrice);
+            ps.setLong(5, Money.fromDouble(buyPrice));
+            ps.setLong(6, Money.fromDouble(marketPrice));
             ps.setDate(7, java.sql.Date.valueOf(productionDate));
             ps.setDate(8, java.sql.Date.valueOf(expirationDate));
             ps.setInt(9, supplierID);
             ps.executeUpdate();
+            noteWrite("Merchandise");
         }
+        indexProduct(storeID, productID, productName);
+        trackStock(storeID, productID, productName, stockQuantity, DEFAULT_REORDER_LEVEL, supplierID, Money.fromDouble(buyPrice), 0);
+        trackExpiry(storeID, productID, expirationDate);
         return "Inventory info entered successfully.";
     }
     //Update Inventory
     private static String updateInventory(int storeID, int productID, String productName, Integer stockQuantity, Double buyPrice, Double marketPrice, String productionDate, String expirationDate, Integer supplierID) throws SQLException {
+        return updateInventory(storeID, productID, null, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID);
+    }
+
+    // Update a Merchandise row only if nobody changed it since expectedVersion was read
+    private static String updateInventoryIfVersion(int storeID, int productID, int expectedVersion, String productName, Integer stockQuantity, Double buyPrice, Double marketPrice, String productionDate, String expirationDate, Integer supplierID) throws SQLException {
+        return updateInventory(storeID, productID, Integer.valueOf(expectedVersion), productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID);
+    }
+
+    private static String updateInventory(int storeID, int productID, Integer expectedVersion, String productName, Integer stockQuantity, Double buyPrice, Double marketPrice, String productionDate, String expirationDate, Integer supplierID) throws SQLException {
+        String retired = retiredWrite(storeID, supplierID);
+        if (retired != null) return retired;
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> updateInventory(storeID, productID, expectedVersion, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID));
+        }
         StringBuilder sql = new StringBuilder("UPDATE Merchandise SET ");
         boolean first = true;
         if (productName != null) { sql.append("productName = ?"); first = false; }
         if (stockQuantity != null) { sql.append(first ? "" : ", ").append("stockQuantity = ?"); first = false; }
-        if (buyPrice != null) { sql.append(first ? "" : ", ").append("buyPrice = ?"); first = false; }
-        if (marketPrice != null) { sql.append(first ? "" : ", ").append("marketPrice = ?"); first = false; }
+        if (buyPrice != null) { sql.append(first ? "" : ", ").append("buyPrice = ? / 100"); first = false; }
+        if (marketPrice != null) { sql.append(first ? "" : ", ").append("marketPrice = ? / 100"); first = false; }
         if (productionDate != null) { sql.append(first ? "" : ", ").append("productionDate = ?"); first = false; }
         if (expirationDate != null) { sql.append(first ? "" : ", ").append("expirationDate = ?"); first = false; }
-        if (supplierID != null) { sql.append(first ? "" : ", ").append("supplierID = ?"); }
+        if (supplierID != null) { sql.append(first ? "" : ", ").append("supplierID = ?"); first = false; }
+        sql.append(first ? "" : ", ").append("version = version + 1");
         sql.append(" WHERE storeID = ? AND productID = ?");
+        if (expectedVersion != null) sql.append(" AND version = ?");
     
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
             int index = 1;
             if (productName != null) ps.setString(index++, productName);
             if (stockQuantity != null) ps.setInt(index++, stockQuantity);
-            if (buyPrice != null) ps.setDouble(index++, buyPrice);
-            if (marketPrice != null) ps.setDouble(index++, marketPrice);
+            if (buyPrice != null) ps.setLong(index++, Money.fromDouble(buyPrice));
+            if (marketPrice != null) ps.setLong(index++, Money.fromDouble(marketPrice));
             if (productionDate != null) ps.setDate(index++, java.sql.Date.valueOf(productionDate));
             if (expirationDate != null) ps.setDate(index++, java.sql.Date.valueOf(expirationDate));
             if (supplierID != null) ps.setInt(index++, supplierID);
             ps.setInt(index++, storeID);
-            ps.setInt(index, productID);
-            ps.executeUpdate();
+            ps.setInt(index++, productID);
+            if (expectedVersion != null) ps.setInt(index, expectedVersion);
+            int updated = ps.executeUpdate();
+            if (updated == 0 && expectedVersion != null) {
+                String conflict = versionMismatch("Merchandise", "store " + storeID + " product " + productID,
+                        "SELECT version FROM Merchandise WHERE storeID = ? AND productID = ?", storeID, productID);
+                if (conflict != null) return conflict;
+            }
+            noteWrite("Merchandise");
+            if (updated > 0 && productName != null) indexProduct(storeID, productID, productName);
+            if (updated > 0) {
+                stockUpdated(storeID, productID, productName, stockQuantity, null, supplierID, buyPrice == null ? null : Money.fromDouble(buyPrice));
+                if (expirationDate != null) trackExpiry(storeID, productID, expirationDate);
+            }
+            if (updated > 0 && stockQuantity != null) {
+                // A counted stock level is everything on hand, so quotas held against the old level lapse
+                try (PreparedStatement lapse = db().prepareStatement("DELETE FROM StockEscrow WHERE storeID = ? AND productID = ?")) {
+                    lapse.setInt(1, storeID);
+                    lapse.setInt(2, productID);
+                    if (lapse.executeUpdate() > 0) noteWrite("StockEscrow");
+                }
+            }
         }
         return "Inventory info updated successfully.";
     }
 
     //delete an inventory item from a certain store
     private static String deleteInventory(Integer storeID, Integer productID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> deleteInventory(storeID, productID));
+        }
         String sql = "DELETE FROM Merchandise WHERE storeID = ? AND productID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
             ps.setInt(1, storeID);
             ps.setInt(2, productID);
             ps.executeUpdate();
+            noteWrite("Merchandise");
         }
+        forgetMerchandise(storeID, productID);
         return "Discount info deleted successfully.";
     }
 
+    // Drop a deleted Merchandise row from the in-memory views of it
+    private static void forgetMerchandise(int storeID, int productID) {
+        indexProduct(storeID, productID, null);
+        untrackStock(storeID, productID);
+        trackExpiry(storeID, productID, null);
+    }
+
      //Transfer operations (for moving stock between stores)
     private static String processTransfer(Integer store1ID, Integer store2ID, Integer product1ID, Integer product2ID, String transferDate, Integer staffID) throws SQLException {
-
+        // A single transfer is a one-line manifest
+        TransferLine line = new TransferLine(store1ID, store2ID, product1ID, product2ID);
         try {
-            //Start the transaction.
-            connection.setAutoCommit(false);
-            
-            int changes = 0;
-            String sql = "UPDATE Merchandise SET storeID = ?, productID = ? WHERE storeID = ? AND productID = ?";
-            PreparedStatement ps = connection.prepareStatement(sql);
-            ps.setInt(1, store2ID);
-            ps.setInt(2, product2ID);
-            ps.setInt(3, store1ID);
-            ps.setInt(4, product1ID);
-            changes = ps.executeUpdate();
-            
-            //If there were no changes after executing the update, rollback
-            if (changes == 0) {
-            	connection.rollback();
-            	connection.setAutoCommit(true);
-            	return "Transfer failed.";
-            }
-            
-            String sql2 = "INSERT INTO Transfers (store1ID, store2ID, product1ID, product2ID, transferDate, staffID) "  +
-                    "VALUES (?, ?, ?, ?, ?, ?)";
-            ps = connection.prepareStatement(sql2);
-            ps.setInt(1, store1ID);
-            ps.setInt(2, store2ID);
-            ps.setInt(3, product1ID);
-            ps.setInt(4, product2ID);
-            ps.setDate(5, java.sql.Date.valueOf(transferDate));
-            ps.setInt(6, staffID);
-            changes = ps.executeUpdate();
-            
-          //If there were no changes after executing the insert, rollback
-            if (changes == 0) {
-            	connection.rollback();
-            	connection.setAutoCommit(true);
-            	return "Transfer failed.";
-            //If there were changes, commit
-            } else {
-            	connection.commit();
-            	connection.setAutoCommit(true);
-            	return "Transfer processed successfully.";
-            }
-            
-        } catch (Exception error) {
-        	//If an error is thrown, rollback
-        	if (connection != null) {
-        		connection.rollback();
-        		connection.setAutoCommit(true);
-        		return "Transfer failed.";
-        	//If there is no connection, output an error message
-        	} else {
-        		return "Connection null.";
-        	}
-        	
-        } 
-        
-        
-        
-        
+            processTransferManifest(Collections.singletonList(line), transferDate, staffID);
+        } catch (SQLException error) {
+            return "Transfer failed.";
+        }
+        return line.applied ? "Transfer processed successfully." : "Transfer failed.";
     }
 
 //    private static String processTransfer(Integer store1ID, Integer store2ID, Integer productID, String transferDate, Integer staffID) throws SQLException {
@@ -1604,113 +2297,141 @@ public class WolfWR {
 
     // Billing operations
     //Create a bill to be paid to a supplier or not
-    private static String generateBill(Integer billID, Double amountOwed, String status, Integer staffID, Integer supplierID) throws SQLException {
+    private static String generateBill(Integer billID, long amountOwedCents, String status, Integer staffID, Integer supplierID) throws SQLException {
+    	String retired = retiredWrite(null, supplierID);
+    	if (retired != null) return retired;
+    	if (billID == null || billID <= 0) {
+    		int assigned = nextId(SEQ_BILLS);
+    		return "Assigned billID " + assigned + ". " + generateBill(assigned, amountOwedCents, status, staffID, supplierID);
+    	}
     	String sql = "INSERT INTO Bills (billID, amountOwed, status, staffID, supplierID) " +
-                "VALUES (?, ?, ?, ?, ?)";
-       try (PreparedStatement ps = connection.prepareStatement(sql)) {
-           ps.setInt(1, billID);
-           ps.setDouble(2, amountOwed);
-           ps.setString(3, status);
-           ps.setInt(4, staffID);
-           ps.setInt(5, supplierID);
-           ps.executeUpdate();
-       }
-       return "Billing info entered successfully.";
+                "VALUES (?, ? / 100, ?, ?, ?)";
+    	// The bill and its supplier's ledger row change together
+    	return inBillTransaction(() -> {
+           try (PreparedStatement ps = db().prepareStatement(sql)) {
+               ps.setInt(1, billID);
+               ps.setLong(2, amountOwedCents);
+               ps.setString(3, status);
+               ps.setInt(4, staffID);
+               ps.setInt(5, supplierID);
+               ps.executeUpdate();
+           }
+           adjustPayable(supplierID, status, amountOwedCents, 1);
+           noteWrite("Bills");
+           return "Billing info entered successfully.";
+    	});
     }
 
     //update an existing Bill amount
-    public static String updateBill(Integer billID, Double amountOwed, String status, Integer staffID, Integer supplierID) throws SQLException {
+    public static String updateBill(Integer billID, Long amountOwedCents, String status, Integer staffID, Integer supplierID) throws SQLException {
+    	if (billID == null) return "billID is required.";
     	StringBuilder sql = new StringBuilder("UPDATE Bills SET ");
         boolean first = true;
-        if (billID != null) { sql.append("billID = ?"); first = false; }
-        if (amountOwed != null) { sql.append(first ? "" : ", ").append("amountOwed = ?"); first = false; }
+        if (amountOwedCents != null) { sql.append("amountOwed = ? / 100"); first = false; }
         if (status != null) { sql.append(first ? "" : ", ").append("status = ?"); first = false; }
         if (staffID != null) { sql.append(first ? "" : ", ").append("staffID = ?"); first = false; }
         if (supplierID != null) { sql.append(first ? "" : ", ").append("supplierID = ?"); first = false; }
-    
-        try (PreparedStatement ps = connection.prepareStatement(sql.toString())) {
-            int index = 1;
-            if (billID != null) ps.setInt(index++, billID);
-            if (amountOwed != null) ps.setDouble(index++, amountOwed);
-            if (status != null) ps.setString(index++, status);
-            if (staffID != null) ps.setInt(index++, staffID);
-            if (supplierID != null) ps.setInt(index++, supplierID);
-            ps.executeUpdate();
-        }
-        return "Billing info updated successfully.";
+        if (first) return "Nothing to update.";
+        sql.append(" WHERE billID = ?");
+
+        return inBillTransaction(() -> {
+            // Take the old amount out of the ledger and put the new one in
+            long[] old = lockBill(billID);
+            if (old == null) return "No bill with ID " + billID + ".";
+            try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
+                int index = 1;
+                if (amountOwedCents != null) ps.setLong(index++, amountOwedCents);
+                if (status != null) ps.setString(index++, status);
+                if (staffID != null) ps.setInt(index++, staffID);
+                if (supplierID != null) ps.setInt(index++, supplierID);
+                ps.setInt(index, billID);
+                ps.executeUpdate();
+            }
+            String oldStatus = old[2] == 1 ? "paid" : "unpaid";
+            adjustPayable((int) old[0], oldStatus, -old[1], -1);
+            adjustPayable(supplierID != null ? supplierID : (int) old[0], status != null ? status : oldStatus,
+                    amountOwedCents != null ? amountOwedCents : old[1], 1);
+            noteWrite("Bills");
+            return "Billing info updated successfully.";
+        });
     }
     
     // Delete a existing Bill
     public static String deleteBill(int billID) throws SQLException {
         String sql = "DELETE FROM Bills WHERE billID = ?";
-        try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setInt(1, billID);
-            ps.executeUpdate();
-        }
-        return "Bills info deleted successfully.";
+        return inBillTransaction(() -> {
+            long[] old = lockBill(billID);
+            if (old == null) return "No bill with ID " + billID + ".";
+            try (PreparedStatement ps = db().prepareStatement(sql)) {
+                ps.setInt(1, billID);
+                ps.executeUpdate();
+            }
+            adjustPayable((int) old[0], old[2] == 1 ? "paid" : "unpaid", -old[1], -1);
+            noteWrite("Bills");
+            return "Bills info deleted successfully.";
+        });
     }
 
-
-    // Reward operations
     //Create a reward object if the input customer is a Platinum Member with their membership active
-    private static String createReward(Integer rewardID, Double checkAmountOwed, Integer staffID, Integer customerID, String startDate, String endDate) throws SQLException {
-        String insertSQL = "INSERT INTO Rewards (rewardID, checkAmountOwed, staffID, customerID) VALUES (?, ?, ?, ?)";
-        String selectSQL = "SELECT membershipLevel, custStatus FROM ClubMembers WHERE customerID = ?";
+    private static String createReward(Integer rewardID, long checkAmountOwedCents, Integer staffID, Integer customerID, String startDate, String endDate) throws SQLException {
+        if (rewardID == null || rewardID <= 0) {
+            int assigned = nextId(SEQ_REWARDS);
+            return "Assigned rewardID " + assigned + ". " + createReward(assigned, checkAmountOwedCents, staffID, customerID, startDate, endDate);
+        }
+        String insertSQL = "INSERT INTO Rewards (rewardID, checkAmountOwed, staffID, customerID) VALUES (?, ? / 100, ?, ?)";
 
-        checkAmountOwed = 0.0;
+        checkAmountOwedCents = 0;
 
         try {
         	//Start the transaction.
-            connection.setAutoCommit(false);
+            db().setAutoCommit(false);
 
             int changes = 0;
-            try (PreparedStatement ps = connection.prepareStatement(insertSQL)) {
+            try (PreparedStatement ps = db().prepareStatement(insertSQL)) {
                 ps.setInt(1, rewardID);
-                ps.setDouble(2, checkAmountOwed);
+                ps.setLong(2, checkAmountOwedCents);
                 ps.setInt(3, staffID);
                 ps.setInt(4, customerID);
                 changes = ps.executeUpdate();
             }
 	    //If there are no changes from the insert statement, rollback
             if (changes == 0) {
-                connection.rollback();
+                db().rollback();
                 return "Reward creation failed.";
             }
 
-            try (PreparedStatement ps2 = connection.prepareStatement(selectSQL)) {
-                ps2.setInt(1, customerID);
-                try (ResultSet rs = ps2.executeQuery()) {
-                    if (rs.next()) {
-                        String level = rs.getString("membershipLevel");
-                        String status = rs.getString("custStatus");
-
-                        if ("Platinum".equals(level) && "Active".equals(status)) {
-                            String message = calculateReward(customerID, startDate, endDate);
-                            //If the reward calculation and update fails, rollback
-                            if (!"Reward calculated successfully.".equals(message)) {
-                                connection.rollback();
-                                return "Reward calculation failed.";
-                            }
-                            //If the reward is calculated and updated successfully, commit.
-                            connection.commit();
-                            return "Reward successfully created.";
-                        //If the customer is not an active platinum customer, rollback
-                        } else {
-                            connection.rollback();
-                            return "Not an active platinum customer.";
-                        }
-                    //If there is no customer with the given ID in the database, rollback
-                    } else {
-                        connection.rollback();
-                        return "Invalid club member ID.";
+            // Membership comes from the cache; the version guard in calculateReward
+            // catches any change the cache has not caught up with yet
+            long member = memberStatus(customerID);
+            if (member != NO_MEMBER) {
+                if (isActivePlatinum(member)) {
+                    // Only valid while the membership we just checked is unchanged
+                    String message = calculateReward(customerID, startDate, endDate, memberVersion(member));
+                    //If the reward calculation and update fails, rollback
+                    if (!"Reward calculated successfully.".equals(message)) {
+                        db().rollback();
+                        return isUpdateConflict(message) ? message : "Reward calculation failed.";
                     }
+                    //If the reward is calculated and updated successfully, commit.
+                    db().commit();
+                    noteCommit();
+                    noteWrite("Rewards");
+                    return "Reward successfully created.";
+                //If the customer is not an active platinum customer, rollback
+                } else {
+                    db().rollback();
+                    return "Not an active platinum customer.";
                 }
+            //If there is no customer with the given ID in the database, rollback
+            } else {
+                db().rollback();
+                return "Invalid club member ID.";
             }
         //Handle an exception
         } catch (Exception error) {
         	//Rollback if the connection is valid.
         	if (connection != null) {
-        		connection.rollback();
+        		db().rollback();
         		return "Reward calculation failed.";
         		// Return an error if the connection is null.
         	} else {
@@ -1719,7 +2440,7 @@ public class WolfWR {
         // If the connection is not null, reset autocommit to true before returning.
         } finally {
         	if (connection != null) {
-            	connection.setAutoCommit(true);
+            	db().setAutoCommit(true);
         	}
         }
     }
@@ -1793,18 +2514,51 @@ public class WolfWR {
     
     // Calculate reward based on customerID and transaction history
     private static String calculateReward(int customerID, String startDate, String endDate) throws SQLException {
-    	String sql = "UPDATE Rewards SET checkAmountOwed=(SELECT COALESCE(SUM(totalPrice) * .02, 0) FROM Transactions WHERE purchaseDate>=? AND " +
-    			" purchaseDate<? AND customerID = ?) WHERE customerID = ?";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setDate(1, java.sql.Date.valueOf(startDate));
-            ps.setDate(2, java.sql.Date.valueOf(endDate));
-            ps.setInt(3, customerID);
-            ps.setInt(4, customerID);
-            if (ps.executeUpdate() == 0) {
-            	return "Reward calculation failed.";
-            } else {
-            	return "Reward calculated successfully.";
-            }
+        return calculateReward(customerID, startDate, endDate, null);
+    }
+
+    // With a memberVersion the reward is only written if the member row still has that version
+    private static String calculateReward(int customerID, String startDate, String endDate, Integer memberVersion) throws SQLException {
+    	// Purchases already moved to the archive are added on top of the live ones
+    	String sumSQL = "SELECT CAST(COALESCE(SUM(totalPrice), 0) * 100 AS SIGNED) FROM Transactions WHERE purchaseDate>=? AND " +
+    			" purchaseDate<? AND customerID = ?";
+    	String sql = "UPDATE Rewards SET checkAmountOwed = ? / 100 WHERE customerID = ?" +
+    			(memberVersion == null ? "" : " AND EXISTS (SELECT 1 FROM ClubMembers WHERE customerID = ? AND version = ?)");
+    	try {
+    		long salesCents = archivedSalesCents(startDate, endDate, customerID);
+    		if (isChainWide()) {
+    			// The member's purchases sit on the shards of the stores they shopped at
+    			salesCents = Math.addExact(salesCents, scatterSum("calculateReward", sumSQL, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate), customerID));
+    		} else {
+    			try (PreparedStatement ps = db().prepareStatement(sumSQL)) {
+    				ps.setDate(1, java.sql.Date.valueOf(startDate));
+    				ps.setDate(2, java.sql.Date.valueOf(endDate));
+    				ps.setInt(3, customerID);
+    				try (ResultSet rs = ps.executeQuery()) {
+    					if (rs.next()) salesCents += rs.getLong(1);
+    				}
+    			}
+    		}
+    		try (PreparedStatement ps = db().prepareStatement(sql)) {
+    			ps.setLong(1, Money.percentOf(salesCents, REWARD_RATE_BP));
+    			ps.setInt(2, customerID);
+    			if (memberVersion != null) {
+    				ps.setInt(3, customerID);
+    				ps.setInt(4, memberVersion);
+    			}
+    			if (ps.executeUpdate() == 0) {
+    				if (memberVersion != null && getMemberVersion(customerID) != memberVersion) {
+    					// The cached membership was behind; the caller's retry reloads it
+    					memberCache.remove(customerID);
+    					String conflict = versionMismatch("ClubMembers", "customerID = " + customerID, "SELECT version FROM ClubMembers WHERE customerID = ?", customerID);
+    					if (conflict != null) return conflict;
+    				}
+    				return "Reward calculation failed.";
+    			} else {
+    				noteWrite("Rewards");
+    				return "Reward calculated successfully.";
+    			}
+    		}
         } catch (SQLException error) {
         	return "Reward calculation failed.";
         }
@@ -1832,14 +2586,14 @@ public class WolfWR {
 //    }
     
     // Update reward amount based on changes in customer purchases or their membership status
-    private static String updateReward(Integer rewardID, Double checkAmountOwed, Integer staffID, Integer customerID, String startDate, String endDate) throws SQLException {
-        String sql = "UPDATE Rewards SET checkAmountOwed = ?, staffID = ?, customerID = ? WHERE rewardID = ?;";
+    private static String updateReward(Integer rewardID, long checkAmountOwedCents, Integer staffID, Integer customerID, String startDate, String endDate) throws SQLException {
+        String sql = "UPDATE Rewards SET checkAmountOwed = ? / 100, staffID = ?, customerID = ? WHERE rewardID = ?;";
         try {
 //            connection.setAutoCommit(false);
 
             int changes = 0;
-            try (PreparedStatement ps = connection.prepareStatement(sql)) {
-                ps.setDouble(1, checkAmountOwed);
+            try (PreparedStatement ps = db().prepareStatement(sql)) {
+                ps.setLong(1, checkAmountOwedCents);
                 ps.setInt(2, staffID);
                 ps.setInt(3, customerID);
                 ps.setInt(4, rewardID);
@@ -1850,33 +2604,26 @@ public class WolfWR {
 //                connection.rollback();
                 return "Reward update failed.";
             }
+            noteWrite("Rewards");
 
-            String sql2 = "SELECT membershipLevel, custStatus FROM ClubMembers WHERE customerID = ?;";
-            try (PreparedStatement ps = connection.prepareStatement(sql2)) {
-                ps.setInt(1, customerID);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) {
-                        String level = rs.getString("membershipLevel");
-                        String status = rs.getString("custStatus");
-
-                        if (level.equals("Platinum") && status.equals("Active")) {
-                            String message = calculateReward(customerID, startDate, endDate);
-                            if (!message.equals("Reward calculated successfully.")) {
-//                                connection.rollback();
-                                return "Reward calculation failed.";
-                            } else {
-//                                connection.commit();
-                                return "Reward successfully updated.";
-                            }
-                        } else {
-//                            connection.rollback();
-                            return "Not an active platinum customer.";
-                        }
-                    } else {
+            long member = memberStatus(customerID);
+            if (member != NO_MEMBER) {
+                if (isActivePlatinum(member)) {
+                    String message = calculateReward(customerID, startDate, endDate, memberVersion(member));
+                    if (!message.equals("Reward calculated successfully.")) {
 //                        connection.rollback();
-                        return "Invalid club member ID.";
+                        return isUpdateConflict(message) ? message : "Reward calculation failed.";
+                    } else {
+//                        connection.commit();
+                        return "Reward successfully updated.";
                     }
+                } else {
+//                    connection.rollback();
+                    return "Not an active platinum customer.";
                 }
+            } else {
+//                connection.rollback();
+                return "Invalid club member ID.";
             }
         } catch (SQLException error) {
             if (connection != null) {
@@ -1891,24 +2638,59 @@ public class WolfWR {
     
     // Transaction operations
     //Inserts a transaction with given attributes
-    private static String insertTransaction(int transactionID, String purchaseDate, Double totalPrice, int customerID, int staffID, int storeID, String productList) throws SQLException {
+    private static String insertTransaction(int transactionID, String purchaseDate, long totalCents, int customerID, int staffID, int storeID, String productList) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> insertTransaction(transactionID, purchaseDate, totalCents, customerID, staffID, storeID, productList));
+        }
     	String sql = "INSERT INTO Transactions (transactionID, purchaseDate, totalPrice, customerID, staffID, storeID, productList) " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?)";
-       try (PreparedStatement ps = connection.prepareStatement(sql)) {
-           ps.setInt(1, transactionID);
-           ps.setDate(2, java.sql.Date.valueOf(purchaseDate));
-           ps.setDouble(3, totalPrice);
-           ps.setInt(4, customerID);
-           ps.setInt(5, staffID);
-           ps.setInt(6, storeID);
-           ps.setString(7, productList);
-           ps.executeUpdate();
+                "VALUES (?, ?, ? / 100, ?, ?, ?, ?)";
+       // With partitions the claim and the row commit together, so a failed insert leaves the ID free for a retry
+       boolean own = partitionTransactions() && db().getAutoCommit();
+       if (own) db().setAutoCommit(false);
+       try {
+           if (partitionTransactions()) {
+               try (PreparedStatement ps = db().prepareStatement("INSERT INTO TransactionIDs (transactionID) VALUES (?)")) {
+                   ps.setInt(1, transactionID);
+                   ps.executeUpdate();
+               }
+           }
+           try (PreparedStatement ps = db().prepareStatement(sql)) {
+               ps.setInt(1, transactionID);
+               ps.setDate(2, java.sql.Date.valueOf(purchaseDate));
+               ps.setLong(3, totalCents);
+               ps.setInt(4, customerID);
+               ps.setInt(5, staffID);
+               ps.setInt(6, storeID);
+               ps.setString(7, productList);
+               ps.executeUpdate();
+           }
+           if (own) {
+               db().commit();
+               noteCommit();
+           }
+           noteWrite("Transactions");
+       } catch (SQLException e) {
+           if (own) db().rollback();
+           throw e;
+       } finally {
+           if (own) db().setAutoCommit(true);
        }
        return "Transaction entered successfully.";
     }
     
     //calculates and enters new Transaction based on purchases of user and taking into account updating merchandise stock
     private static String calculateTransaction(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, String productList, String amounts) throws SQLException {
+        if (transactionID <= 0) {
+            int assigned = nextId(SEQ_TRANSACTIONS);
+            return "Assigned transactionID " + assigned + ". " + calculateTransaction(assigned, purchaseDate, customerID, staffID, storeID, productList, amounts);
+        }
+        String retired = retiredWrite(storeID, null);
+        if (retired != null) {
+            throw new IllegalArgumentException(retired);
+        }
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> calculateTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productList, amounts));
+        }
         String[] items = productList.split(",");
         String[] parts = amounts.split(",");
         
@@ -1921,12 +2703,18 @@ public class WolfWR {
             trueAmounts[i] = Integer.parseInt(parts[i].trim());
         }
 
-        double trueTotal = 0.0;
+        long trueTotal = 0;
         int amountCounter = 0;
+        // Lines whose product wasn't found, with the names it might have meant
+        StringBuilder unsold = new StringBuilder();
+        // Lines that took stock, for the reorder engine once the transaction is recorded
+        int[] soldIDs = new int[items.length];
+        int[] soldAmounts = new int[items.length];
+        int soldLines = 0;
 
         for (String item : items) {
             item = item.trim();
-            int amount = trueAmounts[amountCounter];
+            int amount = trueAmounts[amountCounter++];
 
             System.out.println("Processing item: " + item + " | Amount: " + amount);
             
@@ -1934,22 +2722,40 @@ public class WolfWR {
             
 //            connection.setAutoCommit(false);
 
-            // Step 1: Get product info from Merchandise
-            String merchSQL = "SELECT productID, marketPrice, stockQuantity FROM Merchandise WHERE LOWER(productName) = LOWER(?) AND storeID = ?;";
-            try (PreparedStatement ps1 = connection.prepareStatement(merchSQL)) {
-                ps1.setString(1, item);
-                ps1.setInt(2, storeID);
+            // Step 1: Get product info from Merchandise, by key when the name index knows the product.
+            // Only the exact name sells; a near one is offered back, never rung up in its place.
+            ProductMatch match = null;
+            if (productIndexReady()) {
+                productLookups.incrementAndGet();
+                match = productTrie(storeID).exact(item);
+                if (match == null) {
+                    String failed = "No product found for: " + item + didYouMean(storeID, item);
+                    System.out.println(failed);
+                    unsold.append(' ').append(failed).append('.');
+                    continue;
+                }
+            }
+            String merchSQL = match != null
+                    ? "SELECT productID, CAST(marketPrice * 100 AS SIGNED) AS priceCents FROM Merchandise WHERE storeID = ? AND productID = ?;"
+                    : "SELECT productID, CAST(marketPrice * 100 AS SIGNED) AS priceCents FROM Merchandise WHERE LOWER(productName) = LOWER(?) AND storeID = ?;";
+            try (PreparedStatement ps1 = db().prepareStatement(merchSQL)) {
+                if (match != null) {
+                    ps1.setInt(1, storeID);
+                    ps1.setInt(2, match.ids[0]);
+                } else {
+                    ps1.setString(1, item);
+                    ps1.setInt(2, storeID);
+                }
 
                 try (ResultSet rs1 = ps1.executeQuery()) {
                     if (rs1.next()) {
                         int productID = rs1.getInt("productID");
-                        double price = rs1.getDouble("marketPrice");
-                        int stock = rs1.getInt("stockQuantity");
+                        long priceCents = rs1.getLong("priceCents");
 
                         // Step 2: Check if discount exists
-                        double discount = 0.0;
-                        String discountSQL = "SELECT promotion FROM Discounts WHERE productID = ? AND storeID = ? AND discountStartDate <= ? AND discountEndDate >= ?;";
-                        try (PreparedStatement ps2 = connection.prepareStatement(discountSQL)) {
+                        long discountBp = 0;
+                        String discountSQL = "SELECT CAST(promotion * 100 AS SIGNED) AS discountBp FROM Discounts WHERE productID = ? AND storeID = ? AND discountStartDate <= ? AND discountEndDate >= ?;";
+                        try (PreparedStatement ps2 = db().prepareStatement(discountSQL)) {
                             ps2.setInt(1, productID);
                             ps2.setInt(2, storeID);
                             ps2.setDate(3, java.sql.Date.valueOf(purchaseDate));
@@ -1957,30 +2763,32 @@ public class WolfWR {
 
                             try (ResultSet rs2 = ps2.executeQuery()) {
                                 if (rs2.next()) {
-                                    discount = rs2.getDouble("promotion");
+                                    discountBp = rs2.getLong("discountBp");
                                 }
                             }
                         }
 
                         // Step 3: Calculate final price
-                        double discountedPrice = price * ((100.0 - discount)*0.01);
-                        double totalForItem = discountedPrice * amount;
-                        trueTotal += totalForItem;
-
-                        // Step 4: Update stock
-                        int newStock = stock - amount;
-                        String updateStockSQL = "UPDATE Merchandise SET stockQuantity = ? WHERE productID = ? AND storeID = ?;";
-                        try (PreparedStatement ps3 = connection.prepareStatement(updateStockSQL)) {
-                            ps3.setInt(1, newStock);
-                            ps3.setInt(2, productID);
-                            ps3.setInt(3, storeID);
-                            ps3.executeUpdate();
-                        }
+                        trueTotal = Math.addExact(trueTotal, Money.discounted(priceCents, amount, discountBp));
 
-                        amountCounter++;
+                        // Step 4: Update stock, from the register's quota when it holds one.
+                        // Relative, so a quota reserved meanwhile isn't overwritten.
+                        if (!sellFromQuota(storeID, productID, staffID, amount)) {
+                            String updateStockSQL = "UPDATE Merchandise SET stockQuantity = stockQuantity - ?, version = version + 1 WHERE productID = ? AND storeID = ?;";
+                            try (PreparedStatement ps3 = db().prepareStatement(updateStockSQL)) {
+                                ps3.setInt(1, amount);
+                                ps3.setInt(2, productID);
+                                ps3.setInt(3, storeID);
+                                ps3.executeUpdate();
+                                noteWrite("Merchandise");
+                            }
+                        }
+                        soldIDs[soldLines] = productID;
+                        soldAmounts[soldLines++] = amount;
 
                     } else {
                         System.out.println("No product found for: " + item);
+                        unsold.append(" No product found for: ").append(item).append('.');
                     }
                 }
             }
@@ -1988,6 +2796,111 @@ public class WolfWR {
 
         // Step 5: Record transaction
         insertTransaction(transactionID, purchaseDate, trueTotal, customerID, staffID, storeID, productList);
+        for (int i = 0; i < soldLines; i++) {
+            stockChangedOnCommit(storeID, soldIDs[i], -soldAmounts[i]);
+        }
+
+        return "Transaction recorded successfully." + unsold;
+    }
+
+    /**
+     * Checkout for scanned items, given as parallel arrays of productIDs and quantities.
+     * Every line is read by its (storeID, productID) key in one query together with its
+     * discount, and the stock decrements go out as one batch; nothing is split or name
+     * matched. The Transactions row still lists product names, from the same query, so
+     * reports read it as before.
+     */
+    public static String calculateScannedTransaction(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, int[] productIDs, int[] quantities) throws SQLException {
+        if (productIDs.length != quantities.length) {
+            throw new IllegalArgumentException("Mismatch between number of products and amounts.");
+        }
+        for (int i = 0; i < quantities.length; i++) {
+            if (quantities[i] <= 0) {
+                throw new IllegalArgumentException("Quantity " + quantities[i] + " for productID " + productIDs[i] + " is not positive.");
+            }
+        }
+        if (transactionID <= 0) {
+            int assigned = nextId(SEQ_TRANSACTIONS);
+            return "Assigned transactionID " + assigned + ". " + calculateScannedTransaction(assigned, purchaseDate, customerID, staffID, storeID, productIDs, quantities);
+        }
+        String retired = retiredWrite(storeID, null);
+        if (retired != null) {
+            throw new IllegalArgumentException(retired);
+        }
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> calculateScannedTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productIDs, quantities));
+        }
+        if (productIDs.length == 0) {
+            return "Nothing scanned.";
+        }
+
+        // Distinct productIDs, sorted, so each line finds its row by binary search
+        int[] keys = productIDs.clone();
+        Arrays.sort(keys);
+        int distinct = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 0 || keys[i] != keys[i - 1]) keys[distinct++] = keys[i];
+        }
+        String[] names = new String[distinct];
+        long[] priceCents = new long[distinct];
+        long[] discountBp = new long[distinct];
+
+        StringBuilder sql = new StringBuilder("SELECT m.productID, m.productName, CAST(m.marketPrice * 100 AS SIGNED), " +
+                "(SELECT CAST(d.promotion * 100 AS SIGNED) FROM Discounts d WHERE d.storeID = m.storeID AND d.productID = m.productID " +
+                "AND d.discountStartDate <= ? AND d.discountEndDate >= ? LIMIT 1) " +
+                "FROM Merchandise m WHERE m.storeID = ? AND m.productID IN (");
+        for (int i = 0; i < distinct; i++) sql.append(i == 0 ? "?" : ", ?");
+        sql.append(")");
+        java.sql.Date date = java.sql.Date.valueOf(purchaseDate);
+        try (PreparedStatement ps = db().prepareStatement(sql.toString())) {
+            ps.setDate(1, date);
+            ps.setDate(2, date);
+            ps.setInt(3, storeID);
+            for (int i = 0; i < distinct; i++) ps.setInt(4 + i, keys[i]);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    int at = Arrays.binarySearch(keys, 0, distinct, rs.getInt(1));
+                    names[at] = rs.getString(2);
+                    priceCents[at] = rs.getLong(3);
+                    discountBp[at] = rs.getLong(4);
+                }
+            }
+        }
+
+        long total = 0;
+        int sold = 0;
+        int batched = 0;
+        StringBuilder productList = new StringBuilder();
+        try (PreparedStatement ps = db().prepareStatement("UPDATE Merchandise SET stockQuantity = stockQuantity - ?, version = version + 1 WHERE storeID = ? AND productID = ?")) {
+            for (int i = 0; i < productIDs.length; i++) {
+                int at = Arrays.binarySearch(keys, 0, distinct, productIDs[i]);
+                if (names[at] == null) {
+                    System.out.println("No product found for productID: " + productIDs[i]);
+                    continue;
+                }
+                total = Math.addExact(total, Money.discounted(priceCents[at], quantities[i], discountBp[at]));
+                productList.append(sold++ == 0 ? "" : ",").append(names[at]);
+                if (sellFromQuota(storeID, productIDs[i], staffID, quantities[i])) {
+                    continue;
+                }
+                ps.setInt(1, quantities[i]);
+                ps.setInt(2, storeID);
+                ps.setInt(3, productIDs[i]);
+                ps.addBatch();
+                batched++;
+            }
+            if (batched > 0) {
+                ps.executeBatch();
+                noteWrite("Merchandise");
+            }
+        }
+
+        insertTransaction(transactionID, purchaseDate, total, customerID, staffID, storeID, productList.toString());
+        for (int i = 0; i < productIDs.length; i++) {
+            if (names[Arrays.binarySearch(keys, 0, distinct, productIDs[i])] != null) {
+                stockChangedOnCommit(storeID, productIDs[i], -quantities[i]);
+            }
+        }
 
         return "Transaction recorded successfully.";
     }
@@ -2066,94 +2979,175 @@ public class WolfWR {
     }
   //Returns the total amount of sales for the store chain on the input purchaseDate
     private static String calculateSalesByDay(String purchaseDate) throws SQLException {
-    	String sql = "SELECT SUM(totalPrice) FROM Transactions WHERE purchaseDate = ?;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    	if (!computingReport.get()) {
+    		return cachedReport("getSalesByDay", SALES_TABLES, () -> calculateSalesByDay(purchaseDate), purchaseDate);
+    	}
+    	String sql = "SELECT CAST(COALESCE(SUM(totalPrice), 0) * 100 AS SIGNED) FROM Transactions WHERE purchaseDate = ?;";
+    	long archivedCents = archivedSalesCents(purchaseDate, java.time.LocalDate.parse(purchaseDate).plusDays(1).toString(), null);
+    	if (isChainWide()) {
+    		try {
+    			long cents = Math.addExact(scatterSum("getSalesByDay", sql, java.sql.Date.valueOf(purchaseDate)), archivedCents);
+    			return "Sales on " + purchaseDate + ": $" + java.math.BigDecimal.valueOf(cents, 2);
+    		} catch (SQLException e) {
+    			if (isDeadlineError(e)) return deadlineMessage("getSalesByDay");
+    			throw e;
+    		}
+    	}
+    	try (PreparedStatement ps = prepareReport("getSalesByDay", sql)) {
             ps.setDate(1, java.sql.Date.valueOf(purchaseDate));
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    double totalSales = rs.getDouble("SUM(totalPrice)");
-                    return "Sales on " + purchaseDate + ": $" + totalSales;
+                    long totalSales = Math.addExact(rs.getLong(1), archivedCents);
+                    return "Sales on " + purchaseDate + ": $" + java.math.BigDecimal.valueOf(totalSales, 2);
                     } 
                 else {
                     return "No sales on " + purchaseDate;
                     }
                 }
+            } catch (SQLException e) {
+            	if (isDeadlineError(e)) return deadlineMessage("getSalesByDay");
+            	throw e;
             }
     	}
     
     //Returns the total amount of sales for the store chain between the two input dates.
     private static String calculateSalesByMonth(String startDate, String endDate) throws SQLException {
-    	String sql = "SELECT SUM(totalPrice) FROM Transactions WHERE purchaseDate >= ? AND purchaseDate< ?;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    	if (!computingReport.get()) {
+    		return cachedReport("getSalesByMonth", SALES_TABLES, () -> calculateSalesByMonth(startDate, endDate), startDate, endDate);
+    	}
+    	String sql = "SELECT CAST(COALESCE(SUM(totalPrice), 0) * 100 AS SIGNED) FROM Transactions WHERE purchaseDate >= ? AND purchaseDate< ?;";
+    	long archivedCents = archivedSalesCents(startDate, endDate, null);
+    	if (isChainWide()) {
+    		try {
+    			long cents = Math.addExact(scatterSum("getSalesByMonth", sql, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate)), archivedCents);
+    			return "Total Sales between " + startDate + " and " + endDate + ": $" + java.math.BigDecimal.valueOf(cents, 2);
+    		} catch (SQLException e) {
+    			if (isDeadlineError(e)) return deadlineMessage("getSalesByMonth");
+    			throw e;
+    		}
+    	}
+    	try (PreparedStatement ps = prepareReport("getSalesByMonth", sql)) {
             ps.setDate(1, java.sql.Date.valueOf(startDate));
             ps.setDate(2, java.sql.Date.valueOf(endDate));
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    double totalSales = rs.getDouble("SUM(totalPrice)");
-                    return "Total Sales between " + startDate + " and " + endDate + ": $" + totalSales;
+                    long totalSales = Math.addExact(rs.getLong(1), archivedCents);
+                    return "Total Sales between " + startDate + " and " + endDate + ": $" + java.math.BigDecimal.valueOf(totalSales, 2);
                     } 
                 else {
                     return "No sales made in input month.";
                     }
                 }
+            } catch (SQLException e) {
+            	if (isDeadlineError(e)) return deadlineMessage("getSalesByMonth");
+            	throw e;
             }
     	}
     
     //Returns the total amount of sales for the store chain between the two input dates.
     private static String calculateSalesByYear(String startDate, String endDate) throws SQLException {
-    	String sql = "SELECT SUM(totalPrice) FROM Transactions WHERE purchaseDate >= ? AND purchaseDate< ?;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    	if (!computingReport.get()) {
+    		return cachedReport("getSalesinRange", SALES_TABLES, () -> calculateSalesByYear(startDate, endDate), startDate, endDate);
+    	}
+    	String sql = "SELECT CAST(COALESCE(SUM(totalPrice), 0) * 100 AS SIGNED) FROM Transactions WHERE purchaseDate >= ? AND purchaseDate< ?;";
+    	long archivedCents = archivedSalesCents(startDate, endDate, null);
+    	if (isChainWide()) {
+    		try {
+    			long cents = Math.addExact(scatterSum("getSalesinRange", sql, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate)), archivedCents);
+    			return "Total Sales between " + startDate + " and " + endDate + ": $" + java.math.BigDecimal.valueOf(cents, 2);
+    		} catch (SQLException e) {
+    			if (isDeadlineError(e)) return deadlineMessage("getSalesinRange");
+    			throw e;
+    		}
+    	}
+    	try (PreparedStatement ps = prepareReport("getSalesinRange", sql)) {
     		ps.setDate(1, java.sql.Date.valueOf(startDate));
             ps.setDate(2, java.sql.Date.valueOf(endDate));
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    String totalSales = Double.toString(rs.getDouble("SUM(totalPrice)"));
-                    return "Total Sales between " + startDate + " and " + endDate + ": $" + totalSales;
+                    long totalSales = Math.addExact(rs.getLong(1), archivedCents);
+                    return "Total Sales between " + startDate + " and " + endDate + ": $" + java.math.BigDecimal.valueOf(totalSales, 2);
                     } 
                 else {
                     return "No sales made in input year";
                     }
                 }
+            } catch (SQLException e) {
+            	if (isDeadlineError(e)) return deadlineMessage("getSalesinRange");
+            	throw e;
             }
     	}
     
     //Calculates the total sales made on each day between the startDate and the endDate and returns a string with the total cumulative sales growth
+    //The range is read one month at a time so a report that hits its deadline can still return the months it finished.
     private static String calculateSalesGrowth(Integer storeID, String startDate, String endDate) throws SQLException {
-    	String sql = "SELECT t.purchaseDate, SUM(t.totalPrice) as total, SUM(SUM(t.totalPrice)) OVER () AS cumulative_total FROM Transactions t, StaffMembers s " +
+    	if (!computingReport.get()) {
+    		return cachedReport("getSalesGrowth", SALES_GROWTH_TABLES, () -> calculateSalesGrowth(storeID, startDate, endDate), storeID, startDate, endDate);
+    	}
+    	// The whole report shares one deadline across its slices
+    	if (reportDeadline.get() == null) {
+    		return withDeadline(reportTimeout("getSalesGrowth") * 1000L, () -> calculateSalesGrowth(storeID, startDate, endDate));
+    	}
+    	if (needsShard(storeID)) {
+    		return onShard(storeID, () -> calculateSalesGrowth(storeID, startDate, endDate));
+    	}
+    	String sql = "SELECT t.purchaseDate, CAST(SUM(t.totalPrice) * 100 AS SIGNED) as total FROM Transactions t, StaffMembers s " +
     "WHERE t.storeID = ? AND s.staffID=t.staffID AND t.purchaseDate>= ? AND t.purchaseDate< ? " +
     			"GROUP BY t.purchaseDate ORDER BY t.purchaseDate;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
-    		ps.setInt(1, storeID);
-    		ps.setDate(2, java.sql.Date.valueOf(startDate));
-            ps.setDate(3, java.sql.Date.valueOf(endDate));
-    		try(ResultSet rs = ps.executeQuery()){
-    			boolean hasResults = false;
-    			String ans = "";
-    			String cumulative_total = "";
-    			while (rs.next()) {
-    			    hasResults = true;
-    			    String totalSales = Double.toString(rs.getDouble("total"));
-    			    ans = ans + "Total Sales on " + rs.getString("purchaseDate") + ": $" + totalSales + "\n";
-    			    cumulative_total = Double.toString(rs.getDouble("cumulative_total"));
-    			}
-    			if (!hasResults) {
-    			    return "No sales growth reported for store over the interval";
+    	java.time.LocalDate end = java.time.LocalDate.parse(endDate);
+    	java.time.LocalDate sliceStart = java.time.LocalDate.parse(startDate);
+    	// Archived months are merged into the live days, in cents
+    	TreeMap<java.time.LocalDate, Long> archived = archivedDailyCents(storeID, startDate, endDate);
+    	boolean hasResults = false;
+    	String ans = "";
+    	long cumulativeCents = 0;
+    	while (sliceStart.isBefore(end)) {
+    		java.time.LocalDate sliceEnd = sliceStart.withDayOfMonth(1).plusMonths(1);
+    		if (sliceEnd.isAfter(end)) sliceEnd = end;
+    		TreeMap<java.time.LocalDate, Long> days = new TreeMap<>(archived.subMap(sliceStart, sliceEnd));
+    		try (PreparedStatement ps = prepareReport("getSalesGrowth", sql)) {
+    			ps.setInt(1, storeID);
+    			ps.setDate(2, java.sql.Date.valueOf(sliceStart));
+    			ps.setDate(3, java.sql.Date.valueOf(sliceEnd));
+    			try(ResultSet rs = ps.executeQuery()){
+    				while (rs.next()) {
+    				    days.merge(rs.getDate("purchaseDate").toLocalDate(), rs.getLong("total"), Long::sum);
+    				}
     			}
-    			ans = ans + "Total Overall Sales Between " + startDate + " and " + endDate + ": $" + cumulative_total + "\n";
-    			return ans;
+    		} catch (SQLException e) {
+    			if (!isDeadlineError(e)) throw e;
+    			return ans + "Total Sales Between " + startDate + " and " + sliceStart + ": $" + java.math.BigDecimal.valueOf(cumulativeCents, 2) + "\n"
+    					+ partialMessage("getSalesGrowth");
     		}
+    		for (Map.Entry<java.time.LocalDate, Long> day : days.entrySet()) {
+    		    hasResults = true;
+    		    ans = ans + "Total Sales on " + day.getKey() + ": $" + java.math.BigDecimal.valueOf(day.getValue(), 2) + "\n";
+    		    cumulativeCents = Math.addExact(cumulativeCents, day.getValue());
+    		}
+    		sliceStart = sliceEnd;
+    	}
+    	if (!hasResults) {
+    	    return "No sales growth reported for store over the interval";
     	}
+    	ans = ans + "Total Overall Sales Between " + startDate + " and " + endDate + ": $" + java.math.BigDecimal.valueOf(cumulativeCents, 2) + "\n";
+    	return ans;
     }
     
     //Get the stock of all merchandise in a store
     private static String getMerchStockByStore(Integer storeID) throws SQLException {
-    	String sql = "SELECT productName, SUM(stockQuantity) as quant FROM Merchandise " +
-    "WHERE storeID = ? GROUP BY productName;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    	if (!computingReport.get()) {
+    		return cachedReport("getMerchStockByStore", STOCK_TABLES, () -> getMerchStockByStore(storeID), storeID);
+    	}
+    	if (needsShard(storeID)) {
+    	    return onShard(storeID, () -> getMerchStockByStore(storeID));
+    	}
+    	String sql = "SELECT m.productName, SUM(" + ON_HAND + ") as quant FROM Merchandise m " +
+    "WHERE m.storeID = ? GROUP BY m.productName;";
+    	String ans = "";
+    	boolean hasResults = false;
+    	try (PreparedStatement ps = prepareReport("getMerchStockByStore", sql)) {
             ps.setInt(1, storeID);
             try (ResultSet rs = ps.executeQuery()) {
-            	String ans = "";
-            	boolean hasResults = false;
                 while (rs.next()) {
                     String totalItems = Integer.toString(rs.getInt("quant"));
                     ans = ans + rs.getString("productName") + " Stock at store " + Integer.toString(storeID) + ": " + totalItems + "\n";
@@ -2164,15 +3158,57 @@ public class WolfWR {
                     }
                 return ans;
                 }
+            } catch (SQLException e) {
+            	if (!isDeadlineError(e)) throw e;
+            	// Keep whatever rows arrived before the deadline
+            	return ans + partialMessage("getMerchStockByStore");
             }
     }
     
     //Get the total stock of an item for all stores in the chain
     private static String getMerchStockByItem(String name) throws SQLException {
-    	String sql = "SELECT SUM(stockQuantity) as quant FROM Merchandise " +
-    "WHERE productName = ?;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
-            ps.setString(1, name);
+    	if (!computingReport.get()) {
+    		// Report on the product's own name, so typos and case variants share one cache entry
+    		if (productIndexReady()) {
+    			ProductMatch match = resolveProduct(0, name);
+    			if (match == null) {
+    				return "Merch not found" + didYouMean(0, name);
+    			}
+    			String canonical = match.name;
+    			String shown = cachedReport("getMerchStockByItem", STOCK_TABLES, () -> getMerchStockByItem(canonical), canonical);
+    			return match.edits > 0 ? "(Showing " + canonical + ") " + shown : shown;
+    		}
+    		return cachedReport("getMerchStockByItem", STOCK_TABLES, () -> getMerchStockByItem(name), name);
+    	}
+    	// Sum the product's rows by key when the name index lists them
+    	List<Long> keys = isChainWide() ? null : productKeys(name);
+    	StringBuilder query = new StringBuilder("SELECT SUM(" + ON_HAND + ") as quant FROM Merchandise m WHERE ");
+    	if (keys == null || keys.isEmpty()) {
+    		query.append("m.productName = ?;");
+    	} else {
+    		query.append("(m.storeID, m.productID) IN (");
+    		appendTuples(query, keys.size(), 2);
+    		query.append(");");
+    	}
+    	String sql = query.toString();
+    	if (isChainWide()) {
+    		try {
+    			return name + " Stock at All stores: " + scatterSum("getMerchStockByItem", sql, name);
+    		} catch (SQLException e) {
+    			if (isDeadlineError(e)) return deadlineMessage("getMerchStockByItem");
+    			throw e;
+    		}
+    	}
+    	try (PreparedStatement ps = prepareReport("getMerchStockByItem", sql)) {
+    		if (keys == null || keys.isEmpty()) {
+    			ps.setString(1, name);
+    		} else {
+    			int index = 1;
+    			for (long key : keys) {
+    				ps.setInt(index++, (int) (key >>> 32));
+    				ps.setInt(index++, (int) key);
+    			}
+    		}
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
                     String totalItems = Integer.toString(rs.getInt("quant"));
@@ -2182,13 +3218,19 @@ public class WolfWR {
                     return "Merch not found";
                     }
                 }
+            } catch (SQLException e) {
+            	if (isDeadlineError(e)) return deadlineMessage("getMerchStockByItem");
+            	throw e;
             }
     }
     
     //Get the total number of customers added between two input dates
     private static String getCustGrowthReport(String startDate, String endDate) throws SQLException {
+    	if (!computingReport.get()) {
+    		return cachedReport("getCustGrowth", CUST_GROWTH_TABLES, () -> getCustGrowthReport(startDate, endDate), startDate, endDate);
+    	}
     	String sql = "SELECT COUNT(*) as quant FROM ClubMembers c JOIN SignUps s ON c.customerID = s.customerID WHERE s.signUpDate >= ? AND s.signUpDate < ?;";
-		try (PreparedStatement ps = connection.prepareStatement(sql)) {
+		try (PreparedStatement ps = prepareReport("getCustGrowth", sql)) {
 			ps.setDate(1, java.sql.Date.valueOf(startDate));
             ps.setDate(2, java.sql.Date.valueOf(endDate));
             try (ResultSet rs = ps.executeQuery()) {
@@ -2200,27 +3242,6484 @@ public class WolfWR {
                     return "No Customers Added";
                     }
                 }
+            } catch (SQLException e) {
+            	if (isDeadlineError(e)) return deadlineMessage("getCustGrowth");
+            	throw e;
             }
     }
     
     //Get the total amount of money a customer spent between two input dates.
     private static String getCustActivityReport(Integer custID, String startDate, String endDate) throws SQLException{
-    	String sql = "SELECT customerID, SUM(totalPrice) AS TotalPurchases FROM Transactions WHERE " +
+    	if (!computingReport.get()) {
+    		return cachedReport("getCustActivity", SALES_TABLES, () -> getCustActivityReport(custID, startDate, endDate), custID, startDate, endDate);
+    	}
+    	String sql = "SELECT customerID, CAST(SUM(totalPrice) * 100 AS SIGNED) AS TotalPurchases FROM Transactions WHERE " +
     			"purchaseDate>= ? AND purchaseDate < ? AND customerID = ? GROUP BY customerID ORDER BY customerID;";
-    	try (PreparedStatement ps = connection.prepareStatement(sql)) {
+    	long archivedCents = archivedSalesCents(startDate, endDate, custID);
+    	if (isChainWide()) {
+    		try {
+    			String shardSQL = "SELECT CAST(COALESCE(SUM(totalPrice), 0) * 100 AS SIGNED) FROM Transactions WHERE purchaseDate>= ? AND purchaseDate < ? AND customerID = ?;";
+    			long total = Math.addExact(scatterSum("getCustActivity", shardSQL, java.sql.Date.valueOf(startDate), java.sql.Date.valueOf(endDate), custID), archivedCents);
+    			return Integer.toString(custID) + " Total Purchases: " + java.math.BigDecimal.valueOf(total, 2);
+    		} catch (SQLException e) {
+    			if (isDeadlineError(e)) return deadlineMessage("getCustActivity");
+    			throw e;
+    		}
+    	}
+    	try (PreparedStatement ps = prepareReport("getCustActivity", sql)) {
     		ps.setDate(1, java.sql.Date.valueOf(startDate));
             ps.setDate(2, java.sql.Date.valueOf(endDate));
             ps.setInt(3, custID);
             try (ResultSet rs = ps.executeQuery()) {
                 if (rs.next()) {
-                    String totalItems = Double.toString(rs.getDouble("TotalPurchases"));
-                    return Integer.toString(custID) + " Total Purchases: " + totalItems;
+                    long totalItems = Math.addExact(rs.getLong("TotalPurchases"), archivedCents);
+                    return Integer.toString(custID) + " Total Purchases: " + java.math.BigDecimal.valueOf(totalItems, 2);
                     } 
+                else if (archivedCents != 0) {
+                    return Integer.toString(custID) + " Total Purchases: " + java.math.BigDecimal.valueOf(archivedCents, 2);
+                    }
                 else {
                     return "No Purchases Found";
                     }
                 }
+            } catch (SQLException e) {
+            	if (isDeadlineError(e)) return deadlineMessage("getCustActivity");
+            	throw e;
+            }
+    }
+
+
+    // ***********************************************************************
+    // WORKLOAD LANES
+    // Each view from takeInput gets its own execution lane with a worker pool,
+    // a bounded queue and its own connection budget, so a long billing report
+    // can never take the connection a register is waiting on.
+    // ***********************************************************************
+
+    // Lane numbers match the view numbers offered in takeInput
+    static final int LANE_REGISTRATION = 1;
+    static final int LANE_ADMIN = 2;
+    static final int LANE_WAREHOUSE = 3;
+    static final int LANE_BILLING = 4;
+    static final int LANE_CASHIER = 5;
+
+    // How long a report waits for queued checkouts to drain before running anyway
+    private static final long REPORT_YIELD_MS = 250;
+
+    // Index 0 is unused so lanes[view] lines up with the view selection
+    private static final Lane[] lanes = {
+        null,
+        new Lane("Registration", 1, 1, 16, Thread.NORM_PRIORITY),
+        new Lane("Admin", 1, 1, 16, Thread.NORM_PRIORITY),
+        new Lane("Warehouse", 2, 2, 32, Thread.NORM_PRIORITY),
+        new Lane("Billing", 2, 2, 4, Thread.MIN_PRIORITY),
+        new Lane("Cashier", 4, 4, 256, Thread.MAX_PRIORITY)
+    };
+
+    /**
+     * An execution lane: worker threads, a bounded admission queue and a pool of
+     * at most connectionBudget connections that only this lane's work may use.
+     */
+    private static final class Lane {
+        final String name;
+        final int connectionBudget;
+        final ThreadPoolExecutor workers;
+        final BlockingQueue<Connection> idle = new LinkedBlockingQueue<>();
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+
+        Lane(String name, int workerCount, int connectionBudget, int queueDepth, int priority) {
+            this.name = name;
+            this.connectionBudget = connectionBudget;
+            AtomicInteger threadCount = new AtomicInteger();
+            this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueDepth), task -> {
+                        Thread t = new Thread(task, "wolfwr-" + name.toLowerCase() + "-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        t.setPriority(priority);
+                        return t;
+                    }, new ThreadPoolExecutor.AbortPolicy());
+            this.workers.allowCoreThreadTimeOut(true);
+        }
+
+        // Take an idle connection, open a new one while under budget, otherwise wait for one to come back
+        Connection borrow() throws SQLException {
+            Connection c = idle.poll();
+            while (c != null) {
+                if (c.isValid(1)) return c;
+                opened.decrementAndGet();
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    // Dropping it anyway
+                }
+                c = idle.poll();
+            }
+            if (opened.incrementAndGet() <= connectionBudget) {
+                try {
+                    return openConnection(jdbcURL);
+                } catch (SQLException e) {
+                    opened.decrementAndGet();
+                    throw e;
+                }
+            }
+            opened.decrementAndGet();
+            try {
+                c = idle.poll(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (c == null) {
+                throw new SQLException(name + " lane connection budget of " + connectionBudget + " exhausted.");
+            }
+            return c;
+        }
+
+        void release(Connection c) {
+            try {
+                if (!c.getAutoCommit()) {
+                    c.rollback();
+                    c.setAutoCommit(true);
+                }
+                idle.offer(c);
+            } catch (SQLException e) {
+                opened.decrementAndGet();
+                try {
+                    c.close();
+                } catch (SQLException closing) {
+                    // Dropping it anyway
+                }
+            }
+        }
+
+        void shutdown() {
+            workers.shutdownNow();
+            Connection c;
+            while ((c = idle.poll()) != null) {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    // Closing anyway
+                }
+            }
+        }
+
+        String stats() {
+            return name + ": active=" + active.get() + ", queued=" + workers.getQueue().size()
+                    + ", completed=" + completed.get() + ", rejected=" + rejected.get()
+                    + ", connections=" + opened.get() + "/" + connectionBudget;
+        }
+    }
+
+    /**
+     * Queue work on the given lane. The task runs on a lane worker with one of the lane's
+     * connections bound, so every WolfWR method it calls uses that connection.
+     * When the lane's queue is full the work is refused right away instead of piling up.
+     */
+    public static Future<String> submit(int laneNumber, Callable<String> task) {
+        Lane lane = lanes[laneNumber];
+        // The work belongs to the submitter's session, so its reads see the session's writes
+        AtomicReference<String> session = sessionGtid.get();
+        try {
+            return lane.workers.submit(() -> {
+                if (laneNumber == LANE_BILLING) {
+                    yieldToCheckout();
+                }
+                Connection c = lane.borrow();
+                lane.active.incrementAndGet();
+                boundConnection.set(c);
+                sessionGtid.set(session);
+                try {
+                    return task.call();
+                } finally {
+                    sessionGtid.remove();
+                    boundConnection.remove();
+                    lane.active.decrementAndGet();
+                    lane.completed.incrementAndGet();
+                    lane.release(c);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            lane.rejected.incrementAndGet();
+            return CompletableFuture.completedFuture(lane.name + " lane is busy, please retry.");
+        }
+    }
+
+    /**
+     * Run work on the given lane and wait for its result.
+     */
+    public static String execute(int laneNumber, Callable<String> task) throws SQLException {
+        try {
+            return submit(laneNumber, task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting on " + lanes[laneNumber].name + " lane.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            throw new SQLException(lanes[laneNumber].name + " lane task failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    // Reports give way to checkouts: hold off briefly while the cashier lane has a backlog
+    private static void yieldToCheckout() throws InterruptedException {
+        Lane cashier = lanes[LANE_CASHIER];
+        long deadline = System.currentTimeMillis() + REPORT_YIELD_MS;
+        while (!cashier.workers.getQueue().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    // One line of counters per lane
+    private static String laneStats() {
+        StringBuilder ans = new StringBuilder();
+        for (int i = 1; i < lanes.length; i++) {
+            ans.append(lanes[i].stats()).append("\n");
+        }
+        return ans.toString();
+    }
+
+    private static void shutdownLanes() {
+        for (int i = 1; i < lanes.length; i++) {
+            lanes[i].shutdown();
+        }
+    }
+
+
+    // ***********************************************************************
+    // REPORT DEADLINES AND CANCELLATION
+    // Every report statement carries a timeout, both on the JDBC side
+    // (setQueryTimeout) and on the server side (max_statement_time), and is
+    // registered while it runs so it can be cancelled from another session.
+    // Report statements are also tagged with their name, so any process can
+    // find them in a server's process list and stop them with KILL QUERY.
+    // ***********************************************************************
+
+    static final int DEFAULT_REPORT_TIMEOUT_SECONDS = 30;
+
+    // Per-command overrides, keyed by the console command name
+    private static final Map<String, Integer> reportTimeouts = new ConcurrentHashMap<>();
+
+    // Absolute deadline (epoch millis) for the report running on this thread, if the caller set one
+    private static final ThreadLocal<Long> reportDeadline = new ThreadLocal<>();
+
+    // Leading comment on every report statement, followed by the report name and " */"
+    private static final String REPORT_TAG = "/* wolfwr report ";
+
+    private static final Map<Integer, RunningReport> runningReports = new ConcurrentHashMap<>();
+    private static final AtomicInteger reportCounter = new AtomicInteger();
+    // Statements registered under the outermost withDeadline on this thread, forgotten when it returns
+    private static final ThreadLocal<List<Integer>> deadlineReports = new ThreadLocal<>();
+
+    private static final class RunningReport {
+        final int number;
+        final String name;
+        final PreparedStatement ps;
+        final long started = System.currentTimeMillis();
+
+        RunningReport(int number, String name, PreparedStatement ps) {
+            this.number = number;
+            this.name = name;
+            this.ps = ps;
+        }
+    }
+
+    // Set how long a report command may run before it is cut off
+    public static String setReportTimeout(String reportName, int seconds) {
+        if (seconds <= 0) {
+            return "Timeout must be a positive number of seconds.";
+        }
+        reportTimeouts.put(reportName, seconds);
+        return "Timeout for " + reportName + " set to " + seconds + "s.";
+    }
+
+    private static int reportTimeout(String reportName) {
+        return reportTimeouts.getOrDefault(reportName, DEFAULT_REPORT_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * Run a report with an overall deadline. Every statement the report issues gets
+     * only the time that is left, so multi-query reports stop on schedule.
+     */
+    public static String withDeadline(long millis, Callable<String> report) throws SQLException {
+        Long outer = reportDeadline.get();
+        long deadline = System.currentTimeMillis() + millis;
+        if (outer != null && outer < deadline) deadline = outer;
+        reportDeadline.set(deadline);
+        boolean outermost = deadlineReports.get() == null;
+        if (outermost) deadlineReports.set(new ArrayList<>());
+        try {
+            return report.call();
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Report failed: " + e.getMessage(), e);
+        } finally {
+            if (outer == null) reportDeadline.remove();
+            else reportDeadline.set(outer);
+            if (outermost) {
+                for (int number : deadlineReports.get()) runningReports.remove(number);
+                deadlineReports.remove();
+            }
+        }
+    }
+
+    /**
+     * Prepare a report query bounded by the thread's deadline, or by the command's configured timeout.
+     */
+    private static PreparedStatement prepareReport(String reportName, String sql) throws SQLException {
+        int seconds = reportTimeout(reportName);
+        Long deadline = reportDeadline.get();
+        if (deadline != null) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new SQLTimeoutException(reportName + " deadline passed before the query started.");
+            }
+            seconds = (int) Math.min(seconds, (remaining + 999) / 1000);
+        }
+        PreparedStatement ps = readConnection().prepareStatement(REPORT_TAG + reportName + " */ SET STATEMENT max_statement_time=" + seconds + " FOR " + sql);
+        ps.setQueryTimeout(seconds);
+        // Statements prepared outside withDeadline, e.g. on shard workers, are forgotten once closed
+        pruneReports();
+        int number = reportCounter.incrementAndGet();
+        runningReports.put(number, new RunningReport(number, reportName, ps));
+        List<Integer> mine = deadlineReports.get();
+        if (mine != null) mine.add(number);
+        return ps;
+    }
+
+    // Timeouts from the driver, max_statement_time (1969) and cancelled queries (1317) all count as a hit deadline
+    private static boolean isDeadlineError(SQLException e) {
+        return e instanceof SQLTimeoutException || "70100".equals(e.getSQLState())
+                || e.getErrorCode() == 1969 || e.getErrorCode() == 1317;
+    }
+
+    private static String deadlineMessage(String reportName) {
+        return reportName + " stopped early: deadline reached or cancelled.";
+    }
+
+    // For reports that print rows as they go, so some made it out before the cut-off
+    private static String partialMessage(String reportName) {
+        return deadlineMessage(reportName) + " Results above are partial.";
+    }
+
+    // Forget statements whose report has finished
+    private static void pruneReports() {
+        runningReports.values().removeIf(r -> {
+            try {
+                return r.ps.isClosed();
+            } catch (SQLException e) {
+                return true;
+            }
+        });
+    }
+
+    // List reports running in this process, then report statements running on each server from any process
+    public static String runningReports() {
+        pruneReports();
+        StringBuilder ans = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (RunningReport r : runningReports.values()) {
+            ans.append(r.number).append(": ").append(r.name).append(" running for ")
+               .append((now - r.started) / 1000).append("s\n");
+        }
+        if (ans.length() == 0) {
+            ans.append("No reports running in this process.\n");
+        }
+        String servers = serverReports();
+        ans.append(servers.isEmpty() ? "No report statements running on the servers.\n" : "On the servers:\n" + servers);
+        return ans.toString();
+    }
+
+    // Cancel a running report, by its number in this process or as server:connectionID from any process
+    public static String cancelReport(String target) {
+        int colon = target.indexOf(':');
+        if (colon >= 0) {
+            try {
+                return killReport(target.substring(0, colon), Long.parseLong(target.substring(colon + 1).trim()));
+            } catch (NumberFormatException e) {
+                return "Not a connection ID: " + target.substring(colon + 1);
+            }
+        }
+        int number;
+        try {
+            number = Integer.parseInt(target);
+        } catch (NumberFormatException e) {
+            return "Not a report number: " + target;
+        }
+        pruneReports();
+        RunningReport r = runningReports.remove(number);
+        if (r == null) {
+            return "No running report with number " + number + ".";
+        }
+        try {
+            r.ps.cancel();
+            return "Cancelled " + r.name + ".";
+        } catch (SQLException e) {
+            return "Cancel failed. DB says: " + e.getMessage();
+        }
+    }
+
+    // Every server a report can run on, by the name the server list shows
+    private static Map<String, Connection> reportServers() {
+        Map<String, Connection> servers = new LinkedHashMap<>();
+        servers.put("primary", db());
+        for (int i = 0; i < replicas.length; i++) {
+            Connection c = replicas[i].connection();
+            if (c != null) servers.put("replica" + (i + 1), c);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            try {
+                servers.put("shard" + (i + 1), shards[i].connection());
+            } catch (SQLException e) {
+                // Left out of the list until it is reachable again
+            }
+        }
+        return servers;
+    }
+
+    private static final String TAGGED_REPORTS_SQL = "SELECT ID, TIME, INFO FROM information_schema.PROCESSLIST " +
+            "WHERE COMMAND = 'Query' AND INFO LIKE ? AND ID <> CONNECTION_ID()";
+
+    // Tagged report statements in each server's process list, one "server:connectionID" line each
+    private static String serverReports() {
+        StringBuilder ans = new StringBuilder();
+        for (Map.Entry<String, Connection> server : reportServers().entrySet()) {
+            try (PreparedStatement ps = server.getValue().prepareStatement(TAGGED_REPORTS_SQL)) {
+                ps.setString(1, REPORT_TAG + "%");
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        String info = rs.getString(3);
+                        int nameEnd = info.indexOf(" */");
+                        String name = nameEnd > REPORT_TAG.length() ? info.substring(REPORT_TAG.length(), nameEnd) : "report";
+                        ans.append(server.getKey()).append(':').append(rs.getLong(1)).append(": ").append(name)
+                           .append(" running for ").append(rs.getLong(2)).append("s\n");
+                    }
+                }
+            } catch (SQLException e) {
+                ans.append(server.getKey()).append(": process list unavailable. DB says: ").append(e.getMessage()).append("\n");
+            }
+        }
+        return ans.toString();
+    }
+
+    // Stop a report statement on a server with KILL QUERY, after checking the connection is still running one
+    private static String killReport(String serverName, long connectionID) {
+        Connection c = reportServers().get(serverName);
+        if (c == null) {
+            return "No server named " + serverName + ".";
+        }
+        try (PreparedStatement ps = c.prepareStatement(TAGGED_REPORTS_SQL + " AND ID = ?")) {
+            ps.setString(1, REPORT_TAG + "%");
+            ps.setLong(2, connectionID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    return "Connection " + connectionID + " on " + serverName + " is not running a report.";
+                }
+            }
+            try (Statement st = c.createStatement()) {
+                st.execute("KILL QUERY " + connectionID);
+            }
+            return "Cancelled the report on " + serverName + ":" + connectionID + ".";
+        } catch (SQLException e) {
+            return "Cancel failed. DB says: " + e.getMessage();
+        }
+    }
+
+
+    // ***********************************************************************
+    // READ REPLICA ROUTING
+    // Read-only reports go to a replica when one is configured, caught up
+    // and has applied the session's latest write, checked by waiting on its
+    // GTID with MASTER_GTID_WAIT; everything else, including all writes and
+    // checkout, stays on the primary. A session is a console view or any
+    // other thread; lane work carries the session that submitted it.
+    // ***********************************************************************
+
+    // Replica endpoints, e.g. -Dwolfwr.replicas=jdbc:mariadb://replica1/wolfwr,jdbc:mariadb://replica2/wolfwr
+    private static final Replica[] replicas = loadReplicas(System.getProperty("wolfwr.replicas", ""));
+
+    // Replicas further behind than this are skipped
+    static final long MAX_REPLICA_LAG_MS = 10000;
+    // How often a replica's lag is re-measured
+    private static final long LAG_CHECK_INTERVAL_MS = 5000;
+    // How long a read waits for a replica to apply the latest write before trying the next one
+    static final long REPLICA_GTID_WAIT_MS = Long.getLong("wolfwr.replicaWaitMs", 200);
+
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+    private static final AtomicLong replicaReads = new AtomicLong();
+    private static final AtomicLong primaryFallbacks = new AtomicLong();
+
+    // @@session.last_gtid of the session's latest committed write to the primary, read on the
+    // connection that made it; null until the session writes
+    private static final ThreadLocal<AtomicReference<String>> sessionGtid = ThreadLocal.withInitial(AtomicReference::new);
+    // Stands in for the session's GTID when the position could not be read
+    private static final String GTID_UNKNOWN = "unknown";
+    private static final AtomicLong gtidWaits = new AtomicLong();
+
+    /**
+     * A database server other than the primary. Connections are not shared between
+     * threads, so each thread that talks to the endpoint gets its own.
+     */
+    private static class Endpoint {
+        final String url;
+        final boolean readOnly;
+        final ThreadLocal<Connection> perThread = new ThreadLocal<>();
+        final List<Connection> opened = new CopyOnWriteArrayList<>();
+
+        Endpoint(String url, boolean readOnly) {
+            this.url = url;
+            this.readOnly = readOnly;
+        }
+
+        Connection connection() throws SQLException {
+            Connection c = perThread.get();
+            if (c == null || c.isClosed()) {
+                c = openConnection(url);
+                c.setReadOnly(readOnly);
+                perThread.set(c);
+                opened.add(c);
+            }
+            return c;
+        }
+
+        void close() {
+            for (Connection c : opened) {
+                try {
+                    c.close();
+                } catch (SQLException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    private static final class Replica extends Endpoint {
+        private Connection lagProbe;
+        private volatile long lagMillis = Long.MAX_VALUE;
+        private volatile long checkedAt = 0;
+        // Latest GTID position this replica is known to have applied
+        private volatile String appliedGtid = null;
+
+        Replica(String url) {
+            super(url, true);
+        }
+
+        // Replication lag, re-measured at most every LAG_CHECK_INTERVAL_MS
+        long lag() {
+            if (System.currentTimeMillis() - checkedAt > LAG_CHECK_INTERVAL_MS) {
+                measureLag();
+            }
+            return lagMillis;
+        }
+
+        private synchronized void measureLag() {
+            if (System.currentTimeMillis() - checkedAt <= LAG_CHECK_INTERVAL_MS) return;
+            checkedAt = System.currentTimeMillis();
+            try {
+                if (lagProbe == null || !lagProbe.isValid(1)) {
+                    lagProbe = openConnection(url);
+                }
+                try (Statement st = lagProbe.createStatement();
+                     ResultSet rs = st.executeQuery("SHOW SLAVE STATUS")) {
+                    long seconds = -1;
+                    if (rs.next()) {
+                        seconds = rs.getLong("Seconds_Behind_Master");
+                        if (rs.wasNull()) seconds = -1;
+                    }
+                    // No status row or a stopped SQL thread means we cannot trust it
+                    lagMillis = seconds < 0 ? Long.MAX_VALUE : seconds * 1000;
+                }
+            } catch (SQLException e) {
+                lagMillis = Long.MAX_VALUE;
+            }
+        }
+
+        // True once the replica has applied gtid, waiting up to REPLICA_GTID_WAIT_MS for it
+        boolean reached(Connection c, String gtid) {
+            if (gtid == null || gtid.equals(appliedGtid)) return true;
+            gtidWaits.incrementAndGet();
+            try (PreparedStatement ps = c.prepareStatement("SELECT MASTER_GTID_WAIT(?, ?)")) {
+                ps.setString(1, gtid);
+                ps.setDouble(2, REPLICA_GTID_WAIT_MS / 1000.0);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next() && rs.getInt(1) == 0) {
+                        appliedGtid = gtid;
+                        return true;
+                    }
+                }
+            } catch (SQLException e) {
+                // Treated as not caught up
+            }
+            return false;
+        }
+
+        @Override
+        Connection connection() {
+            try {
+                return super.connection();
+            } catch (SQLException e) {
+                lagMillis = Long.MAX_VALUE;
+                return null;
+            }
+        }
+
+        @Override
+        void close() {
+            super.close();
+            try {
+                if (lagProbe != null) lagProbe.close();
+            } catch (SQLException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static Replica[] loadReplicas(String urls) {
+        if (urls.trim().isEmpty()) {
+            return new Replica[0];
+        }
+        String[] parts = urls.split(",");
+        Replica[] loaded = new Replica[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            loaded[i] = new Replica(parts[i].trim());
+        }
+        return loaded;
+    }
+
+    /**
+     * Record a write to the given table. Writes that are already committed (autocommit)
+     * also move the session's GTID on; inside a transaction that waits for noteCommit.
+     */
+    private static void noteWrite(String table) {
+        bumpTableVersion(table);
+        try {
+            if (db().getAutoCommit()) {
+                recordPrimaryGtid();
+                return;
             }
+        } catch (SQLException e) {
+            // Treated as still open, so the commit bumps it again
+        }
+        // Inside a transaction the rows are not visible yet; a report run now would be
+        // cached under the new version, so the table is bumped once more at commit
+        uncommittedWrites.get().add(table);
+    }
+
+    // Call after every commit, so reads that follow see the committed rows
+    private static void noteCommit() {
+        Set<String> tables = uncommittedWrites.get();
+        for (String table : tables) {
+            bumpTableVersion(table);
+        }
+        tables.clear();
+        List<int[]> moves = uncommittedStock.get();
+        for (int[] move : moves) {
+            stockChanged(move[0], move[1], move[2]);
+        }
+        moves.clear();
+        recordPrimaryGtid();
+    }
+
+    // Call after rolling back to a point where mark stock moves were pending (0 for the whole transaction)
+    private static void discardUncommittedStock(int mark) {
+        List<int[]> moves = uncommittedStock.get();
+        moves.subList(mark, moves.size()).clear();
+    }
+
+    // Note the GTID of the commit just made on this thread's connection, for the session's reads.
+    // Only needed with replicas, and not for shard writes, which replicas of the primary never carry.
+    private static void recordPrimaryGtid() {
+        if (replicas.length == 0 || boundShard.get() != null) return;
+        String gtid = null;
+        try (Statement st = db().createStatement(); ResultSet rs = st.executeQuery("SELECT @@session.last_gtid")) {
+            if (rs.next()) gtid = rs.getString(1);
+        } catch (SQLException e) {
+            // Unknown below
+        }
+        // Without a position no replica can be shown to have the write, so reads stay on the primary
+        sessionGtid.get().set(gtid == null || gtid.isEmpty() ? GTID_UNKNOWN : gtid);
+    }
+
+    /**
+     * Connection for a read-only report. Picks the next replica that is within the lag
+     * limit and has applied the session's latest write to the primary, else the primary.
+     */
+    private static Connection readConnection() {
+        // A shard-bound session reads from its shard
+        if (boundShard.get() != null) return db();
+        String wanted = sessionGtid.get().get();
+        if (GTID_UNKNOWN.equals(wanted)) {
+            if (replicas.length > 0) primaryFallbacks.incrementAndGet();
+            return db();
+        }
+        for (int i = 0; i < replicas.length; i++) {
+            Replica r = replicas[Math.floorMod(nextReplica.getAndIncrement(), replicas.length)];
+            if (r.lag() > MAX_REPLICA_LAG_MS) continue;
+            Connection c = r.connection();
+            if (c != null && r.reached(c, wanted)) {
+                replicaReads.incrementAndGet();
+                return c;
+            }
+        }
+        if (replicas.length > 0) primaryFallbacks.incrementAndGet();
+        return db();
+    }
+
+    // Lag of each replica and how reads have been routed
+    public static String replicaStatus() {
+        if (replicas.length == 0) {
+            return "No replicas configured, all reads use the primary.";
+        }
+        StringBuilder ans = new StringBuilder();
+        for (Replica r : replicas) {
+            long lag = r.lag();
+            ans.append(r.url).append(": ").append(lag == Long.MAX_VALUE ? "unavailable" : "lag " + lag + "ms").append("\n");
+        }
+        ans.append("Replica reads: ").append(replicaReads.get())
+           .append(", primary fallbacks: ").append(primaryFallbacks.get())
+           .append(", GTID waits: ").append(gtidWaits.get())
+           .append(", this session's last write at GTID ").append(sessionGtid.get().get() == null ? "none" : sessionGtid.get().get()).append("\n");
+        return ans.toString();
+    }
+
+    private static void closeReplicas() {
+        for (Replica r : replicas) {
+            r.close();
+        }
+    }
+
+
+    // ***********************************************************************
+    // STORE SHARDING
+    // Merchandise, Transactions and Discounts can be split across several
+    // database servers by storeID. Store-scoped work runs on the store's
+    // shard, chain-wide reports fan out to every shard in parallel and sum
+    // the answers, and a transfer between shards commits with XA.
+    // Shards hold the full schema; the reference tables (Stores, staff,
+    // members, suppliers) are expected to be kept in sync on every shard.
+    // ***********************************************************************
+
+    // Shard endpoints, e.g. -Dwolfwr.shards=jdbc:mariadb://shard0/wolfwr,jdbc:mariadb://shard1/wolfwr
+    private static final Endpoint[] shards = loadShards(System.getProperty("wolfwr.shards", ""));
+
+    // Explicit store placement, e.g. -Dwolfwr.shardMap=1001:0,1002:1; unlisted stores go to storeID mod shard count
+    private static final Map<Integer, Integer> shardMap = loadShardMap(System.getProperty("wolfwr.shardMap", ""));
+
+    // The shard this thread is currently pinned to, if any
+    private static final ThreadLocal<Endpoint> boundShard = new ThreadLocal<>();
+
+    // Fan-out workers for chain-wide reports
+    private static final ExecutorService shardWorkers = Executors.newFixedThreadPool(Math.max(1, shards.length), task -> {
+        Thread t = new Thread(task, "wolfwr-shard-scatter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static Endpoint[] loadShards(String urls) {
+        if (urls.trim().isEmpty()) {
+            return new Endpoint[0];
+        }
+        String[] parts = urls.split(",");
+        Endpoint[] loaded = new Endpoint[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            loaded[i] = new Endpoint(parts[i].trim(), false);
+        }
+        return loaded;
+    }
+
+    private static Map<Integer, Integer> loadShardMap(String assignments) {
+        Map<Integer, Integer> map = new HashMap<>();
+        for (String entry : assignments.split(",")) {
+            if (entry.trim().isEmpty()) continue;
+            String[] pair = entry.split(":");
+            map.put(Integer.parseInt(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+        }
+        return map;
+    }
+
+    // Which shard holds a store's rows
+    private static Endpoint shardFor(int storeID) {
+        Integer index = shardMap.get(storeID);
+        return shards[index != null ? index : Math.floorMod(storeID, shards.length)];
+    }
+
+    // True when sharding is on and this thread is not already on the store's shard
+    private static boolean needsShard(Integer storeID) {
+        return shards.length > 0 && storeID != null && boundShard.get() != shardFor(storeID);
+    }
+
+    // True when a chain-wide report has to fan out instead of reading one database
+    private static boolean isChainWide() {
+        return shards.length > 0 && boundShard.get() == null;
+    }
+
+    /**
+     * Run work with this thread pinned to the store's shard, so every db() call inside it
+     * lands there. The previous binding is restored afterwards.
+     */
+    private static String onShard(int storeID, Callable<String> work) throws SQLException {
+        return onEndpoint(shardFor(storeID), work);
+    }
+
+    private static String onEndpoint(Endpoint shard, Callable<String> work) throws SQLException {
+        Connection previous = boundConnection.get();
+        Endpoint previousShard = boundShard.get();
+        boundConnection.set(shard.connection());
+        boundShard.set(shard);
+        try {
+            return work.call();
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException("Shard operation failed: " + e.getMessage(), e);
+        } finally {
+            if (previous == null) boundConnection.remove();
+            else boundConnection.set(previous);
+            if (previousShard == null) boundShard.remove();
+            else boundShard.set(previousShard);
+        }
+    }
+
+    // Run work on each shard in turn, for lookups by an ID that does not say which store it belongs to
+    private static String onEveryShard(Callable<String> work) throws SQLException {
+        String ans = null;
+        for (Endpoint shard : shards) {
+            ans = onEndpoint(shard, work);
+        }
+        return ans;
+    }
+
+    /**
+     * Run a single-value SUM report on every shard in parallel and add up the results exactly.
+     * The query returns a whole number: money as CAST(SUM(x) * 100 AS SIGNED) cents, or a count.
+     */
+    private static long scatterSum(String reportName, String sql, Object... params) throws SQLException {
+        // Each shard's query gets only the time the caller has left
+        Long deadline = reportDeadline.get();
+        List<Future<Long>> parts = new ArrayList<>();
+        for (Endpoint shard : shards) {
+            parts.add(shardWorkers.submit(() -> {
+                long[] total = new long[1];
+                if (deadline != null) reportDeadline.set(deadline);
+                try {
+                    onEndpoint(shard, () -> {
+                        try (PreparedStatement ps = prepareReport(reportName, sql)) {
+                            for (int i = 0; i < params.length; i++) {
+                                ps.setObject(i + 1, params[i]);
+                            }
+                            try (ResultSet rs = ps.executeQuery()) {
+                                if (rs.next()) total[0] = rs.getLong(1);
+                            }
+                        }
+                        return null;
+                    });
+                } finally {
+                    reportDeadline.remove();
+                }
+                return total[0];
+            }));
+        }
+        long sum = 0;
+        for (Future<Long> part : parts) {
+            try {
+                sum = Math.addExact(sum, part.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException(reportName + " interrupted while gathering shards.", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) throw (SQLException) cause;
+                throw new SQLException(reportName + " failed on a shard: " + cause.getMessage(), cause);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Move a Merchandise row between stores on different shards. The row is copied to the
+     * destination with the Transfers record and deleted from the source, and both sides
+     * commit through XA so the item is never on both shards or on neither.
+     */
+    private static String crossShardTransfer(int store1ID, int store2ID, int product1ID, int product2ID, String transferDate, int staffID) throws SQLException {
+        Connection source = shardFor(store1ID).connection();
+        Connection target = shardFor(store2ID).connection();
+        String gtrid = "'wolfwr-transfer-" + store1ID + "-" + product1ID + "-" + System.nanoTime() + "'";
+        String sourceXid = gtrid + ",'source'";
+        String targetXid = gtrid + ",'target'";
+        try (Statement src = source.createStatement(); Statement dst = target.createStatement()) {
+            try {
+                src.execute("XA START " + sourceXid);
+                dst.execute("XA START " + targetXid);
+                // A row with live discounts cannot move, same as the single-shard update
+                try (PreparedStatement ps = source.prepareStatement("SELECT 1 FROM Discounts WHERE storeID = ? AND productID = ? LIMIT 1")) {
+                    ps.setInt(1, store1ID);
+                    ps.setInt(2, product1ID);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) throw new SQLException("Merchandise has discounts attached.");
+                    }
+                }
+                // Units held in register quotas travel with the row
+                String selectSQL = "SELECT m.productName, " + ON_HAND + " AS stockQuantity, m.buyPrice, m.marketPrice, m.productionDate, m.expirationDate, m.supplierID, m.reorderLevel, m.reorderBillID " +
+                        "FROM Merchandise m WHERE m.storeID = ? AND m.productID = ? FOR UPDATE";
+                String insertSQL = "INSERT INTO Merchandise (storeID, productID, productName, stockQuantity, buyPrice, marketPrice, productionDate, expirationDate, supplierID, reorderLevel, reorderBillID) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                try (PreparedStatement ps = source.prepareStatement(selectSQL)) {
+                    ps.setInt(1, store1ID);
+                    ps.setInt(2, product1ID);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (!rs.next()) throw new SQLException("No merchandise to transfer.");
+                        try (PreparedStatement ins = target.prepareStatement(insertSQL)) {
+                            ins.setInt(1, store2ID);
+                            ins.setInt(2, product2ID);
+                            ins.setString(3, rs.getString("productName"));
+                            ins.setInt(4, rs.getInt("stockQuantity"));
+                            ins.setBigDecimal(5, rs.getBigDecimal("buyPrice"));
+                            ins.setBigDecimal(6, rs.getBigDecimal("marketPrice"));
+                            ins.setDate(7, rs.getDate("productionDate"));
+                            ins.setDate(8, rs.getDate("expirationDate"));
+                            ins.setInt(9, rs.getInt("supplierID"));
+                            ins.setInt(10, rs.getInt("reorderLevel"));
+                            ins.setObject(11, rs.getObject("reorderBillID"), java.sql.Types.INTEGER);
+                            ins.executeUpdate();
+                        }
+                    }
+                }
+                try (PreparedStatement ps = target.prepareStatement("INSERT INTO Transfers (store1ID, store2ID, product1ID, product2ID, transferDate, staffID) " +
+                        "VALUES (?, ?, ?, ?, ?, ?)")) {
+                    ps.setInt(1, store1ID);
+                    ps.setInt(2, store2ID);
+                    ps.setInt(3, product1ID);
+                    ps.setInt(4, product2ID);
+                    ps.setDate(5, java.sql.Date.valueOf(transferDate));
+                    ps.setInt(6, staffID);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = source.prepareStatement("DELETE FROM Merchandise WHERE storeID = ? AND productID = ?")) {
+                    ps.setInt(1, store1ID);
+                    ps.setInt(2, product1ID);
+                    ps.executeUpdate();
+                }
+                src.execute("XA END " + sourceXid);
+                dst.execute("XA END " + targetXid);
+                src.execute("XA PREPARE " + sourceXid);
+                dst.execute("XA PREPARE " + targetXid);
+            } catch (SQLException e) {
+                rollbackBranch(src, sourceXid);
+                rollbackBranch(dst, targetXid);
+                return "Transfer failed.";
+            }
+            // Both branches are prepared, so from here on both must commit
+            dst.execute("XA COMMIT " + targetXid);
+            src.execute("XA COMMIT " + sourceXid);
+            noteWrite("Merchandise");
+            noteWrite("Transfers");
+            return "Transfer processed successfully.";
+        } catch (SQLException e) {
+            throw new SQLException("Cross-shard transfer " + gtrid + " needs recovery (XA RECOVER). DB says: " + e.getMessage(), e);
+        }
+    }
+
+    // Undo an XA branch whatever state it reached
+    private static void rollbackBranch(Statement st, String xid) {
+        try {
+            st.execute("XA END " + xid);
+        } catch (SQLException e) {
+            // Already ended
+        }
+        try {
+            st.execute("XA ROLLBACK " + xid);
+        } catch (SQLException e) {
+            // Nothing left to roll back
+        }
+    }
+
+    private static void closeShards() {
+        shardWorkers.shutdownNow();
+        for (Endpoint shard : shards) {
+            shard.close();
+        }
+    }
+
+
+    // ***********************************************************************
+    // TRANSACTIONS PARTITIONING
+    // With -Dwolfwr.transactionPartitions=monthly (or yearly) Transactions is
+    // range-partitioned on purchaseDate. Every date-ranged report filters on
+    // purchaseDate directly, so MariaDB prunes them to the partitions in range.
+    // maintainPartitions keeps partitions created ahead of time and drops or
+    // detaches the ones that fall out of retention.
+    // ***********************************************************************
+
+    static final String TRANSACTION_PARTITIONING = System.getProperty("wolfwr.transactionPartitions", "none");
+    // How far back partitions are kept before maintenance expires them
+    static final int PARTITION_RETENTION_MONTHS = Integer.getInteger("wolfwr.partitionRetentionMonths", 36);
+    // How many future periods maintenance keeps created in advance
+    static final int PARTITIONS_AHEAD = 3;
+    // Expired partitions are dropped, or with -Dwolfwr.partitionExpiry=detach turned into their own tables
+    static final boolean DETACH_EXPIRED = "detach".equals(System.getProperty("wolfwr.partitionExpiry", "drop"));
+
+    private static boolean partitionTransactions() {
+        return "monthly".equals(TRANSACTION_PARTITIONING) || "yearly".equals(TRANSACTION_PARTITIONING);
+    }
+
+    private static boolean monthlyPartitions() {
+        return "monthly".equals(TRANSACTION_PARTITIONING);
+    }
+
+    private static LocalDate periodStart(LocalDate date) {
+        return monthlyPartitions() ? date.withDayOfMonth(1) : date.withDayOfYear(1);
+    }
+
+    private static LocalDate nextPeriod(LocalDate start) {
+        return monthlyPartitions() ? start.plusMonths(1) : start.plusYears(1);
+    }
+
+    // p202604 for monthly partitions, p2026 for yearly
+    private static String partitionName(LocalDate start) {
+        return monthlyPartitions()
+                ? String.format("p%04d%02d", start.getYear(), start.getMonthValue())
+                : String.format("p%04d", start.getYear());
+    }
+
+    private static String partitionDefinition(LocalDate start) {
+        return "PARTITION " + partitionName(start) + " VALUES LESS THAN ('" + nextPeriod(start) + "')";
+    }
+
+    // Oldest period still inside retention
+    private static LocalDate retentionCutoff() {
+        return periodStart(LocalDate.now().minusMonths(PARTITION_RETENTION_MONTHS));
+    }
+
+    /**
+     * Partition clause covering retention through PARTITIONS_AHEAD future periods.
+     * p_before catches anything older and p_future anything newer, so inserts never fail.
+     */
+    private static String transactionPartitionClause() {
+        LocalDate first = retentionCutoff();
+        LocalDate last = periodStart(LocalDate.now());
+        for (int i = 0; i < PARTITIONS_AHEAD; i++) last = nextPeriod(last);
+        StringBuilder clause = new StringBuilder("PARTITION BY RANGE COLUMNS(purchaseDate) (");
+        clause.append("PARTITION p_before VALUES LESS THAN ('").append(first).append("'), ");
+        for (LocalDate p = first; !p.isAfter(last); p = nextPeriod(p)) {
+            clause.append(partitionDefinition(p)).append(", ");
+        }
+        clause.append("PARTITION p_future VALUES LESS THAN (MAXVALUE))");
+        return clause.toString();
+    }
+
+    // Existing Transactions partitions in order, name to upper bound (empty when unpartitioned)
+    private static Map<String, String> transactionPartitions() throws SQLException {
+        Map<String, String> parts = new LinkedHashMap<>();
+        String sql = "SELECT PARTITION_NAME, PARTITION_DESCRIPTION FROM information_schema.PARTITIONS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'Transactions' AND PARTITION_NAME IS NOT NULL " +
+                "ORDER BY PARTITION_ORDINAL_POSITION";
+        try (PreparedStatement ps = db().prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+                parts.put(rs.getString("PARTITION_NAME"), rs.getString("PARTITION_DESCRIPTION").replace("'", ""));
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * Convert an existing unpartitioned Transactions table in place: drop its foreign keys,
+     * widen the primary key with purchaseDate, apply the partition layout and claim the
+     * existing transactionIDs in TransactionIDs.
+     */
+    private static void migrateTransactionsToPartitions() throws SQLException {
+        List<String> foreignKeys = new ArrayList<>();
+        String sql = "SELECT CONSTRAINT_NAME FROM information_schema.REFERENTIAL_CONSTRAINTS " +
+                "WHERE CONSTRAINT_SCHEMA = DATABASE() AND TABLE_NAME = 'Transactions'";
+        try (PreparedStatement ps = db().prepareStatement(sql); ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) foreignKeys.add(rs.getString(1));
+        }
+        try (Statement st = db().createStatement()) {
+            for (String fk : foreignKeys) {
+                st.executeUpdate("ALTER TABLE Transactions DROP FOREIGN KEY " + fk);
+            }
+            st.executeUpdate("ALTER TABLE Transactions DROP PRIMARY KEY, ADD PRIMARY KEY (transactionID, purchaseDate)");
+            st.executeUpdate("ALTER TABLE Transactions " + transactionPartitionClause());
+            // From here on transactionID uniqueness is kept by TransactionIDs
+            st.executeUpdate("INSERT IGNORE INTO TransactionIDs (transactionID) SELECT transactionID FROM Transactions");
+        }
+    }
+
+    /**
+     * Bring Transactions partitions up to date: migrate an unpartitioned table, split new
+     * periods off p_future up to PARTITIONS_AHEAD ahead, and expire periods past retention.
+     */
+    public static String maintainPartitions() throws SQLException {
+        if (!partitionTransactions()) {
+            return "Transactions partitioning is off.";
+        }
+        Map<String, String> parts = transactionPartitions();
+        if (parts.isEmpty()) {
+            migrateTransactionsToPartitions();
+            return "Transactions migrated to " + TRANSACTION_PARTITIONING + " partitions.";
+        }
+
+        // Next period to create starts at the upper bound of the newest dated partition
+        LocalDate next = retentionCutoff();
+        for (Map.Entry<String, String> part : parts.entrySet()) {
+            if (part.getKey().matches("p\\d+")) next = LocalDate.parse(part.getValue());
+        }
+        LocalDate target = periodStart(LocalDate.now());
+        for (int i = 0; i < PARTITIONS_AHEAD; i++) target = nextPeriod(target);
+
+        int created = 0;
+        int expired = 0;
+        try (Statement st = db().createStatement()) {
+            if (!next.isAfter(target)) {
+                StringBuilder reorganize = new StringBuilder("ALTER TABLE Transactions REORGANIZE PARTITION p_future INTO (");
+                for (LocalDate p = next; !p.isAfter(target); p = nextPeriod(p)) {
+                    reorganize.append(partitionDefinition(p)).append(", ");
+                    created++;
+                }
+                reorganize.append("PARTITION p_future VALUES LESS THAN (MAXVALUE))");
+                st.executeUpdate(reorganize.toString());
+            }
+
+            LocalDate cutoff = retentionCutoff();
+            for (Map.Entry<String, String> part : parts.entrySet()) {
+                if (!part.getKey().matches("p\\d+")) continue;
+                if (LocalDate.parse(part.getValue()).isAfter(cutoff)) continue;
+                if (DETACH_EXPIRED) {
+                    st.executeUpdate("ALTER TABLE Transactions CONVERT PARTITION " + part.getKey() + " TO TABLE Transactions_" + part.getKey());
+                } else {
+                    st.executeUpdate("ALTER TABLE Transactions DROP PARTITION " + part.getKey());
+                }
+                expired++;
+            }
+        }
+        if (expired > 0) noteWrite("Transactions");
+        return "Partitions created: " + created + ", " + (DETACH_EXPIRED ? "detached" : "dropped") + ": " + expired + ".";
+    }
+
+
+    // ***********************************************************************
+    // TRANSACTION ARCHIVE
+    // Closed months of Transactions can be moved out of the hot table into
+    // compressed column files on local disk, one file per month. Each file
+    // records min/max date, store and customer so readers skip files that
+    // cannot match, and is read through a memory map, decompressing only the
+    // columns a report needs. Every sales report, customer activity and reward
+    // calculations add archived purchases to the live ones. A month's file is
+    // written to a temp file first, the delete commits together with a marker
+    // row in ArchivedMonths, and only then is the file moved into place, so a
+    // row is never both live and archived; a marker left unpublished by a
+    // crash is published on the next archive run or archive read.
+    // ***********************************************************************
+
+    static final String ARCHIVE_DIR = System.getProperty("wolfwr.archiveDir", "archive");
+
+    private static final int ARCHIVE_MAGIC = 0x57575241; // "WWRA"
+    private static final int ARCHIVE_VERSION = 1;
+    // Header: magic, version, row count, six min/max stats, column count, then offset/compressed/raw per column
+    private static final int ARCHIVE_HEADER_BYTES = 4 * 10;
+    private static final int ARCHIVE_COLUMN_ENTRY_BYTES = 8 + 4 + 4;
+
+    // Column order inside an archive file
+    private static final int COL_ID = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_TOTAL = 2;
+    private static final int COL_CUSTOMER = 3;
+    private static final int COL_STAFF = 4;
+    private static final int COL_STORE = 5;
+    private static final int COL_PRODUCTS = 6;
+    private static final int ARCHIVE_COLUMNS = 7;
+
+    // Stand-ins for SQL NULL in the primitive columns
+    private static final int NULL_INT = Integer.MIN_VALUE;
+    private static final long NULL_CENTS = Long.MIN_VALUE;
+
+    // Headers of every archive file, loaded on first use
+    private static volatile List<ArchiveFile> archiveIndex = null;
+    // Archiving and recovery of half-finished months never overlap
+    private static final Object archiveLock = new Object();
+
+    private static final class ArchiveFile {
+        final Path path;
+        int rows;
+        int minDate, maxDate;          // epoch days
+        int minStore, maxStore;
+        int minCustomer, maxCustomer;
+        final long[] offset = new long[ARCHIVE_COLUMNS];
+        final int[] compressed = new int[ARCHIVE_COLUMNS];
+        final int[] raw = new int[ARCHIVE_COLUMNS];
+
+        ArchiveFile(Path path) {
+            this.path = path;
+        }
+
+        // Whether the stats leave any chance of a row in [fromDay, toDay) for this customer
+        boolean mayContain(int fromDay, int toDay, Integer customerID) {
+            if (rows == 0 || maxDate < fromDay || minDate >= toDay) return false;
+            return customerID == null || (customerID >= minCustomer && customerID <= maxCustomer);
+        }
+    }
+
+    // All columns of a month's rows, used while building a file
+    private static final class ArchiveRows {
+        int size;
+        int[] id = new int[64], date = new int[64], customer = new int[64], staff = new int[64], store = new int[64];
+        long[] cents = new long[64];
+        String[] products = new String[64];
+        final Set<Integer> ids = new HashSet<>();
+
+        void add(int rowID, int day, long total, int cust, int staffID, int storeID, String productList) {
+            if (!ids.add(rowID)) return;
+            if (size == id.length) {
+                int grown = size * 2;
+                id = Arrays.copyOf(id, grown);
+                date = Arrays.copyOf(date, grown);
+                customer = Arrays.copyOf(customer, grown);
+                staff = Arrays.copyOf(staff, grown);
+                store = Arrays.copyOf(store, grown);
+                cents = Arrays.copyOf(cents, grown);
+                products = Arrays.copyOf(products, grown);
+            }
+            id[size] = rowID;
+            date[size] = day;
+            cents[size] = total;
+            customer[size] = cust;
+            staff[size] = staffID;
+            store[size] = storeID;
+            products[size] = productList;
+            size++;
+        }
+    }
+
+    private static Path archivePath(LocalDate month) {
+        return Paths.get(ARCHIVE_DIR, String.format("transactions-%04d%02d.wwra", month.getYear(), month.getMonthValue()));
+    }
+
+    // Where a month's file is written before its delete commits
+    private static Path pendingArchivePath(LocalDate month) {
+        Path path = archivePath(month);
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Move every whole month of Transactions before the given date into archive files.
+     * Each month is locked and written to a synced temp file, its rows are deleted and
+     * its ArchivedMonths marker set in one transaction, and after the commit the file
+     * is moved into place.
+     */
+    public static String archiveTransactions(String beforeDate) throws SQLException {
+        LocalDate cutoff = LocalDate.parse(beforeDate).withDayOfMonth(1);
+        List<LocalDate> months = new ArrayList<>();
+        String monthsSQL = "SELECT DISTINCT YEAR(purchaseDate) AS y, MONTH(purchaseDate) AS m FROM Transactions WHERE purchaseDate < ? ORDER BY y, m";
+        try (PreparedStatement ps = db().prepareStatement(monthsSQL)) {
+            ps.setDate(1, java.sql.Date.valueOf(cutoff));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) months.add(LocalDate.of(rs.getInt("y"), rs.getInt("m"), 1));
+            }
+        }
+
+        int archived = 0;
+        String selectSQL = "SELECT transactionID, purchaseDate, totalPrice, customerID, staffID, storeID, productList " +
+                "FROM Transactions WHERE purchaseDate >= ? AND purchaseDate < ? FOR UPDATE";
+        String deleteSQL = "DELETE FROM Transactions WHERE purchaseDate >= ? AND purchaseDate < ?";
+        String markSQL = "INSERT INTO ArchivedMonths (month, archivedRows, published) VALUES (?, ?, FALSE) " +
+                "ON DUPLICATE KEY UPDATE archivedRows = archivedRows + VALUES(archivedRows), published = FALSE";
+        synchronized (archiveLock) {
+            try {
+                Files.createDirectories(Paths.get(ARCHIVE_DIR));
+                // Finish any month a crash left between its commit and its file move
+                recoverArchive();
+                for (LocalDate month : months) {
+                    Path path = archivePath(month);
+                    Path pending = pendingArchivePath(month);
+                    // A month archived before (e.g. late inserts) keeps its earlier rows
+                    ArchiveRows rows = Files.exists(path) ? readArchiveRows(path) : new ArchiveRows();
+                    int before = rows.size;
+                    db().setAutoCommit(false);
+                    try {
+                        try (PreparedStatement ps = db().prepareStatement(selectSQL)) {
+                            ps.setDate(1, java.sql.Date.valueOf(month));
+                            ps.setDate(2, java.sql.Date.valueOf(month.plusMonths(1)));
+                            try (ResultSet rs = ps.executeQuery()) {
+                                while (rs.next()) {
+                                    java.math.BigDecimal total = rs.getBigDecimal("totalPrice");
+                                    rows.add(rs.getInt("transactionID"),
+                                            (int) rs.getDate("purchaseDate").toLocalDate().toEpochDay(),
+                                            total == null ? NULL_CENTS : total.movePointRight(2).longValue(),
+                                            nullableInt(rs, "customerID"), nullableInt(rs, "staffID"), nullableInt(rs, "storeID"),
+                                            rs.getString("productList"));
+                                }
+                            }
+                        }
+                        writeArchiveFile(pending, rows);
+                        try (PreparedStatement ps = db().prepareStatement(deleteSQL)) {
+                            ps.setDate(1, java.sql.Date.valueOf(month));
+                            ps.setDate(2, java.sql.Date.valueOf(month.plusMonths(1)));
+                            ps.executeUpdate();
+                        }
+                        try (PreparedStatement ps = db().prepareStatement(markSQL)) {
+                            ps.setDate(1, java.sql.Date.valueOf(month));
+                            ps.setInt(2, rows.size - before);
+                            ps.executeUpdate();
+                        }
+                        db().commit();
+                        noteCommit();
+                        noteWrite("Transactions");
+                        archived += rows.size - before;
+                    } catch (SQLException | IOException e) {
+                        db().rollback();
+                        Files.deleteIfExists(pending);
+                        throw e;
+                    } finally {
+                        db().setAutoCommit(true);
+                    }
+                    // The rows are gone from the table; a failure from here on is finished by recoverArchive
+                    publishArchiveMonth(month);
+                }
+            } catch (IOException e) {
+                throw new SQLException("Archive write failed: " + e.getMessage(), e);
+            } finally {
+                archiveIndex = null;
+            }
+        }
+        return "Archived " + archived + " transactions from " + months.size() + " months.";
+    }
+
+    // Move a committed month's temp file into place and mark it published
+    private static void publishArchiveMonth(LocalDate month) throws SQLException, IOException {
+        Path pending = pendingArchivePath(month);
+        if (Files.exists(pending)) {
+            Files.move(pending, archivePath(month), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        try (PreparedStatement ps = primaryDb().prepareStatement("UPDATE ArchivedMonths SET published = TRUE WHERE month = ?")) {
+            ps.setDate(1, java.sql.Date.valueOf(month));
+            ps.executeUpdate();
+        }
+    }
+
+    /**
+     * Publish every month whose delete committed but whose file was not moved into place,
+     * and remove temp files whose transaction never committed. Caller holds archiveLock.
+     */
+    private static void recoverArchive() throws SQLException, IOException {
+        Set<LocalDate> committed = new HashSet<>();
+        try (Statement st = primaryDb().createStatement(); ResultSet rs = st.executeQuery("SELECT month FROM ArchivedMonths WHERE NOT published")) {
+            while (rs.next()) committed.add(rs.getDate(1).toLocalDate());
+        }
+        for (LocalDate month : committed) {
+            publishArchiveMonth(month);
+        }
+        Path dir = Paths.get(ARCHIVE_DIR);
+        if (!Files.isDirectory(dir)) return;
+        try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(dir, "transactions-*.wwra.tmp")) {
+            for (Path path : leftovers) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static int nullableInt(ResultSet rs, String column) throws SQLException {
+        int value = rs.getInt(column);
+        return rs.wasNull() ? NULL_INT : value;
+    }
+
+    // Serialize each column, deflate it, and write header plus columns to the given file, synced to disk
+    private static void writeArchiveFile(Path path, ArchiveRows rows) throws IOException {
+        int n = rows.size;
+        ByteBuffer[] columns = new ByteBuffer[ARCHIVE_COLUMNS];
+        columns[COL_ID] = intColumn(rows.id, n);
+        columns[COL_DATE] = intColumn(rows.date, n);
+        columns[COL_CUSTOMER] = intColumn(rows.customer, n);
+        columns[COL_STAFF] = intColumn(rows.staff, n);
+        columns[COL_STORE] = intColumn(rows.store, n);
+        ByteBuffer totals = ByteBuffer.allocate(n * 8);
+        for (int i = 0; i < n; i++) totals.putLong(rows.cents[i]);
+        columns[COL_TOTAL] = totals;
+        byte[][] names = new byte[n][];
+        int productBytes = 0;
+        for (int i = 0; i < n; i++) {
+            names[i] = rows.products[i].getBytes(StandardCharsets.UTF_8);
+            productBytes += 4 + names[i].length;
+        }
+        ByteBuffer products = ByteBuffer.allocate(productBytes);
+        for (byte[] name : names) products.putInt(name.length).put(name);
+        columns[COL_PRODUCTS] = products;
+
+        ByteBuffer header = ByteBuffer.allocate(ARCHIVE_HEADER_BYTES + ARCHIVE_COLUMNS * ARCHIVE_COLUMN_ENTRY_BYTES);
+        header.putInt(ARCHIVE_MAGIC).putInt(ARCHIVE_VERSION).putInt(n);
+        header.putInt(min(rows.date, n)).putInt(max(rows.date, n));
+        header.putInt(min(rows.store, n)).putInt(max(rows.store, n));
+        header.putInt(min(rows.customer, n)).putInt(max(rows.customer, n));
+        header.putInt(ARCHIVE_COLUMNS);
+
+        byte[][] packed = new byte[ARCHIVE_COLUMNS][];
+        long offset = header.capacity();
+        for (int c = 0; c < ARCHIVE_COLUMNS; c++) {
+            byte[] plain = columns[c].array();
+            packed[c] = deflate(plain);
+            header.putLong(offset).putInt(packed[c].length).putInt(plain.length);
+            offset += packed[c].length;
+        }
+        header.flip();
+
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (header.hasRemaining()) out.write(header);
+            for (byte[] column : packed) {
+                ByteBuffer b = ByteBuffer.wrap(column);
+                while (b.hasRemaining()) out.write(b);
+            }
+            out.force(true);
+        }
+    }
+
+    private static ByteBuffer intColumn(int[] values, int n) {
+        ByteBuffer b = ByteBuffer.allocate(n * 4);
+        for (int i = 0; i < n; i++) b.putInt(values[i]);
+        return b;
+    }
+
+    // Smallest non-null value (NULL_INT when the column is all null), so stats never exclude a real match
+    private static int min(int[] values, int n) {
+        int m = Integer.MAX_VALUE;
+        for (int i = 0; i < n; i++) if (values[i] != NULL_INT && values[i] < m) m = values[i];
+        return m == Integer.MAX_VALUE ? NULL_INT : m;
+    }
+
+    private static int max(int[] values, int n) {
+        int m = NULL_INT;
+        for (int i = 0; i < n; i++) if (values[i] > m) m = values[i];
+        return m;
+    }
+
+    private static byte[] deflate(byte[] plain) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] buf = new byte[Math.max(64, plain.length / 2)];
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == buf.length) buf = Arrays.copyOf(buf, buf.length * 2);
+            len += deflater.deflate(buf, len, buf.length - len);
+        }
+        deflater.end();
+        return Arrays.copyOf(buf, len);
+    }
+
+    private static ArchiveFile readArchiveHeader(Path path, MappedByteBuffer map) throws IOException {
+        if (map.getInt(0) != ARCHIVE_MAGIC || map.getInt(4) != ARCHIVE_VERSION) {
+            throw new IOException(path + " is not a WolfWR archive file.");
+        }
+        ArchiveFile file = new ArchiveFile(path);
+        file.rows = map.getInt(8);
+        file.minDate = map.getInt(12);
+        file.maxDate = map.getInt(16);
+        file.minStore = map.getInt(20);
+        file.maxStore = map.getInt(24);
+        file.minCustomer = map.getInt(28);
+        file.maxCustomer = map.getInt(32);
+        for (int c = 0; c < ARCHIVE_COLUMNS; c++) {
+            int at = ARCHIVE_HEADER_BYTES + c * ARCHIVE_COLUMN_ENTRY_BYTES;
+            file.offset[c] = map.getLong(at);
+            file.compressed[c] = map.getInt(at + 8);
+            file.raw[c] = map.getInt(at + 12);
+        }
+        return file;
+    }
+
+    private static MappedByteBuffer mapArchive(Path path) throws IOException {
+        try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+            return in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+        }
+    }
+
+    // Inflate one column straight out of the mapped file
+    private static ByteBuffer readColumn(MappedByteBuffer map, ArchiveFile file, int column) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(map.slice((int) file.offset[column], file.compressed[column]));
+            ByteBuffer out = ByteBuffer.allocate(file.raw[column]);
+            while (out.hasRemaining() && !inflater.finished()) {
+                inflater.inflate(out);
+            }
+            out.flip();
+            return out;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt column " + column + " in " + file.path, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static ArchiveRows readArchiveRows(Path path) throws IOException {
+        MappedByteBuffer map = mapArchive(path);
+        ArchiveFile file = readArchiveHeader(path, map);
+        ByteBuffer ids = readColumn(map, file, COL_ID), dates = readColumn(map, file, COL_DATE),
+                totals = readColumn(map, file, COL_TOTAL), customers = readColumn(map, file, COL_CUSTOMER),
+                staff = readColumn(map, file, COL_STAFF), stores = readColumn(map, file, COL_STORE),
+                products = readColumn(map, file, COL_PRODUCTS);
+        ArchiveRows rows = new ArchiveRows();
+        for (int i = 0; i < file.rows; i++) {
+            byte[] name = new byte[products.getInt()];
+            products.get(name);
+            rows.add(ids.getInt(), dates.getInt(), totals.getLong(), customers.getInt(), staff.getInt(), stores.getInt(),
+                    new String(name, StandardCharsets.UTF_8));
+        }
+        return rows;
+    }
+
+    // Headers of all archive files on disk, after finishing any month a crash left unpublished
+    private static List<ArchiveFile> archiveFiles() throws IOException, SQLException {
+        List<ArchiveFile> index = archiveIndex;
+        if (index != null) return index;
+        synchronized (archiveLock) {
+            if (archiveIndex != null) return archiveIndex;
+            recoverArchive();
+            index = new ArrayList<>();
+            Path dir = Paths.get(ARCHIVE_DIR);
+            if (Files.isDirectory(dir)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "transactions-*.wwra")) {
+                    for (Path path : files) {
+                        index.add(readArchiveHeader(path, mapArchive(path)));
+                    }
+                }
+            }
+            archiveIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Archived sales in cents between two dates (end exclusive), optionally for one customer.
+     * Files whose date or customer range cannot match are skipped without being read.
+     */
+    private static long archivedSalesCents(String startDate, String endDate, Integer customerID) throws SQLException {
+        int fromDay = (int) LocalDate.parse(startDate).toEpochDay();
+        int toDay = (int) LocalDate.parse(endDate).toEpochDay();
+        long total = 0;
+        try {
+            for (ArchiveFile file : archiveFiles()) {
+                if (!file.mayContain(fromDay, toDay, customerID)) continue;
+                MappedByteBuffer map = mapArchive(file.path);
+                ByteBuffer dates = readColumn(map, file, COL_DATE);
+                ByteBuffer totals = readColumn(map, file, COL_TOTAL);
+                ByteBuffer customers = customerID == null ? null : readColumn(map, file, COL_CUSTOMER);
+                for (int i = 0; i < file.rows; i++) {
+                    int day = dates.getInt();
+                    long cents = totals.getLong();
+                    int customer = customers == null ? NULL_INT : customers.getInt();
+                    if (day < fromDay || day >= toDay || cents == NULL_CENTS) continue;
+                    if (customerID != null && customer != customerID) continue;
+                    total += cents;
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Archive read failed: " + e.getMessage(), e);
+        }
+        return total;
+    }
+
+    /**
+     * Archived sales of one store per day between two dates (end exclusive), for the
+     * growth report. Like its live query, only sales with a staff member count.
+     */
+    private static TreeMap<LocalDate, Long> archivedDailyCents(int storeID, String startDate, String endDate) throws SQLException {
+        int fromDay = (int) LocalDate.parse(startDate).toEpochDay();
+        int toDay = (int) LocalDate.parse(endDate).toEpochDay();
+        TreeMap<LocalDate, Long> days = new TreeMap<>();
+        try {
+            for (ArchiveFile file : archiveFiles()) {
+                if (!file.mayContain(fromDay, toDay, null) || storeID < file.minStore || storeID > file.maxStore) continue;
+                MappedByteBuffer map = mapArchive(file.path);
+                ByteBuffer dates = readColumn(map, file, COL_DATE);
+                ByteBuffer totals = readColumn(map, file, COL_TOTAL);
+                ByteBuffer stores = readColumn(map, file, COL_STORE);
+                ByteBuffer staff = readColumn(map, file, COL_STAFF);
+                for (int i = 0; i < file.rows; i++) {
+                    int day = dates.getInt();
+                    long cents = totals.getLong();
+                    int store = stores.getInt();
+                    int staffID = staff.getInt();
+                    if (day < fromDay || day >= toDay || cents == NULL_CENTS || store != storeID || staffID == NULL_INT) continue;
+                    days.merge(LocalDate.ofEpochDay(day), cents, Long::sum);
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Archive read failed: " + e.getMessage(), e);
+        }
+        return days;
+    }
+
+
+    // ***********************************************************************
+    // CHECKOUT QUEUE
+    // Completed baskets are appended to a memory-mapped log, used as a ring,
+    // and the register moves on. A background writer drains the log in
+    // batches through calculateTransaction, so a database outage or a burst
+    // only grows the queue instead of losing or stalling sales. Replay is
+    // keyed by transactionID and checked in the same transaction, on the
+    // store's shard when sharded, so a basket is never recorded twice. A
+    // basket is checked before it is acknowledged, and one the writer still
+    // cannot record is listed by queueStats so the register can re-ring it.
+    // ***********************************************************************
+
+    static final String CHECKOUT_QUEUE_FILE = System.getProperty("wolfwr.checkoutQueue", "checkout-queue.wal");
+    static final int CHECKOUT_QUEUE_BYTES = 64 * 1024 * 1024;
+    static final int DRAIN_BATCH_SIZE = 50;
+    private static final long DRAIN_IDLE_MS = 50;
+    private static final long DRAIN_RETRY_MS = 1000;
+
+    // Record layout: int payload length, int CRC32 of payload, payload. A zero length marks the end,
+    // QUEUE_WRAP that the next record is at the start of the file.
+    private static final int QUEUE_RECORD_HEADER = 8;
+    private static final int QUEUE_WRAP = -1;
+
+    private static final Object queueLock = new Object();
+    private static MappedByteBuffer queueLog = null;
+    private static MappedByteBuffer queueCheckpoint = null;
+    private static int queueWriteOffset = 0;
+    private static int queueDrainOffset = 0;
+    private static Thread queueDrainer = null;
+    private static volatile boolean queueRunning = false;
+
+    private static final AtomicInteger queuePending = new AtomicInteger();
+    private static final AtomicLong queueAccepted = new AtomicLong();
+    private static final AtomicLong queueRejected = new AtomicLong();
+    private static final AtomicLong queueDrained = new AtomicLong();
+    private static final AtomicLong queueDuplicates = new AtomicLong();
+    private static final AtomicLong queueDeadLettered = new AtomicLong();
+    private static final AtomicLong queueInvalid = new AtomicLong();
+    // Most recent baskets the writer could not record, newest last
+    static final int QUEUE_FAILURES_KEPT = 50;
+    private static final ArrayDeque<String> queueFailures = new ArrayDeque<>();
+
+    private static final class QueuedCheckout {
+        long queuedAt;
+        int transactionID, customerID, staffID, storeID;
+        String purchaseDate, productList, amounts;
+        int endOffset;
+    }
+
+    /**
+     * Map the queue log and checkpoint, recover anything left undrained by the last run,
+     * and start the background writer.
+     */
+    private static void openCheckoutQueue() {
+        try (FileChannel log = FileChannel.open(Paths.get(CHECKOUT_QUEUE_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel ckpt = FileChannel.open(Paths.get(CHECKOUT_QUEUE_FILE + ".ckpt"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            queueLog = log.map(FileChannel.MapMode.READ_WRITE, 0, CHECKOUT_QUEUE_BYTES);
+            queueCheckpoint = ckpt.map(FileChannel.MapMode.READ_WRITE, 0, 8);
+        } catch (IOException e) {
+            System.out.println("Checkout queue unavailable, checkouts will be recorded directly: " + e.getMessage());
+            queueLog = null;
+            return;
+        }
+        synchronized (queueLock) {
+            queueDrainOffset = (int) queueCheckpoint.getLong(0);
+            int offset = queueDrainOffset;
+            int recovered = 0;
+            QueuedCheckout c;
+            while ((c = readQueueRecord(offset)) != null) {
+                offset = c.endOffset;
+                recovered++;
+            }
+            queueWriteOffset = offset;
+            queuePending.set(recovered);
+            if (recovered > 0) {
+                System.out.println("Recovered " + recovered + " queued checkouts.");
+            }
+        }
+        queueRunning = true;
+        queueDrainer = new Thread(WolfWR::drainCheckoutQueue, "wolfwr-checkout-drainer");
+        queueDrainer.setDaemon(true);
+        queueDrainer.start();
+    }
+
+    /**
+     * Record a completed basket in the local queue. Returns "... queued." once the record is
+     * durable on disk, or "Basket rejected: ..." when the basket can never be recorded; if the
+     * queue is full or unavailable the caller should record the sale directly.
+     */
+    public static String queueTransaction(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, String productList, String amounts) {
+        String problem = checkBasket(storeID, purchaseDate, productList, amounts);
+        if (problem == null && transactionID > 0) {
+            try {
+                if (transactionRecorded(storeID, transactionID)) problem = "transactionID " + transactionID + " is already recorded.";
+            } catch (SQLException e) {
+                // Database down; replay still skips it if it is a duplicate
+            }
+        }
+        if (problem != null) {
+            queueInvalid.incrementAndGet();
+            return "Basket rejected: " + problem;
+        }
+        // The ID is fixed before the basket is queued, since replay is keyed on it
+        if (transactionID <= 0) {
+            try {
+                transactionID = nextId(SEQ_TRANSACTIONS);
+            } catch (SQLException e) {
+                return "Could not assign a transactionID.";
+            }
+        }
+        byte[] date = purchaseDate.getBytes(StandardCharsets.UTF_8);
+        byte[] products = productList.getBytes(StandardCharsets.UTF_8);
+        byte[] counts = amounts.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 * 4 + 3 * 4 + date.length + products.length + counts.length);
+        payload.putLong(System.currentTimeMillis()).putInt(transactionID).putInt(customerID).putInt(staffID).putInt(storeID);
+        payload.putInt(date.length).put(date).putInt(products.length).put(products).putInt(counts.length).put(counts);
+        byte[] bytes = payload.array();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        synchronized (queueLock) {
+            if (queueLog == null) {
+                return "Checkout queue unavailable.";
+            }
+            int offset = queueWriteOffset;
+            int size = QUEUE_RECORD_HEADER + bytes.length;
+            // Leave room for the end marker, and never run into records still to drain
+            boolean wrapped = offset < queueDrainOffset;
+            int limit = wrapped ? queueDrainOffset : CHECKOUT_QUEUE_BYTES;
+            int wrapAt = -1;
+            if (offset + size + 4 > limit) {
+                if (wrapped || size + 4 > queueDrainOffset) {
+                    queueRejected.incrementAndGet();
+                    return "Checkout queue full.";
+                }
+                // Drained space at the start of the file takes the record
+                wrapAt = offset;
+                offset = 0;
+            }
+            int end = offset + size;
+            // Body and end marker first, length last, so a torn write reads as the end of the log
+            queueLog.putInt(offset + 4, (int) crc.getValue());
+            queueLog.put(offset + QUEUE_RECORD_HEADER, bytes);
+            queueLog.putInt(end, 0);
+            queueLog.putInt(offset, bytes.length);
+            queueLog.force(offset, end + 4 - offset);
+            if (wrapAt >= 0) {
+                queueLog.putInt(wrapAt, QUEUE_WRAP);
+                queueLog.force(wrapAt, 4);
+            }
+            queueWriteOffset = end;
+            queuePending.incrementAndGet();
+            queueAccepted.incrementAndGet();
+            queueLock.notifyAll();
+        }
+        return "Transaction " + transactionID + " queued.";
+    }
+
+    /**
+     * Why a basket could not be recorded, or null if it looks fine. Uses only what the register
+     * has locally: the date, the list shapes and, when the product name index is loaded, that
+     * every name is sold at the store, so it still answers while the database is down.
+     */
+    private static String checkBasket(int storeID, String purchaseDate, String productList, String amounts) {
+        try {
+            java.sql.Date.valueOf(purchaseDate);
+        } catch (IllegalArgumentException e) {
+            return "purchase date " + purchaseDate + " is not yyyy-mm-dd.";
+        }
+        String[] items = productList.split(",");
+        String[] parts = amounts.split(",");
+        if (items.length != parts.length) {
+            return "Mismatch between number of products and amounts.";
+        }
+        for (String part : parts) {
+            try {
+                if (Integer.parseInt(part.trim()) <= 0) return "amount " + part.trim() + " is not positive.";
+            } catch (NumberFormatException e) {
+                return "amount " + part.trim() + " is not a whole number.";
+            }
+        }
+        boolean indexed;
+        try {
+            indexed = productIndexReady();
+            String retired = retiredWrite(storeID, null);
+            if (retired != null) return retired;
+        } catch (SQLException e) {
+            indexed = false;
+        }
+        for (String item : items) {
+            item = item.trim();
+            if (item.isEmpty()) return "empty product name.";
+            if (indexed && productTrie(storeID).exact(item) == null) {
+                return "no product " + item + " at store " + storeID + didYouMean(storeID, item);
+            }
+        }
+        return null;
+    }
+
+    // Whether a sale with this ID is already recorded where the store's sales are kept
+    private static boolean transactionRecorded(int storeID, int transactionID) throws SQLException {
+        if (needsShard(storeID)) {
+            boolean[] recorded = new boolean[1];
+            onShard(storeID, () -> {
+                recorded[0] = transactionRecorded(storeID, transactionID);
+                return null;
+            });
+            return recorded[0];
+        }
+        try (PreparedStatement ps = db().prepareStatement("SELECT 1 FROM Transactions WHERE transactionID = ?")) {
+            ps.setInt(1, transactionID);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // Decode the record at offset, or null at the end of the log or a torn/corrupt record
+    private static QueuedCheckout readQueueRecord(int offset) {
+        if (offset + QUEUE_RECORD_HEADER > CHECKOUT_QUEUE_BYTES) return null;
+        if (offset > 0 && queueLog.getInt(offset) == QUEUE_WRAP) offset = 0;
+        int length = queueLog.getInt(offset);
+        if (length <= 0 || offset + QUEUE_RECORD_HEADER + length > CHECKOUT_QUEUE_BYTES) return null;
+        byte[] bytes = new byte[length];
+        queueLog.get(offset + QUEUE_RECORD_HEADER, bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        if ((int) crc.getValue() != queueLog.getInt(offset + 4)) return null;
+
+        ByteBuffer payload = ByteBuffer.wrap(bytes);
+        QueuedCheckout c = new QueuedCheckout();
+        c.queuedAt = payload.getLong();
+        c.transactionID = payload.getInt();
+        c.customerID = payload.getInt();
+        c.staffID = payload.getInt();
+        c.storeID = payload.getInt();
+        c.purchaseDate = readQueueString(payload);
+        c.productList = readQueueString(payload);
+        c.amounts = readQueueString(payload);
+        c.endOffset = offset + QUEUE_RECORD_HEADER + length;
+        return c;
+    }
+
+    private static String readQueueString(ByteBuffer payload) {
+        byte[] b = new byte[payload.getInt()];
+        payload.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Background writer: apply batches until stopped, retrying while the database is unreachable
+    private static void drainCheckoutQueue() {
+        Connection drainConnection = null;
+        while (queueRunning || queuePending.get() > 0) {
+            List<QueuedCheckout> batch = new ArrayList<>();
+            synchronized (queueLock) {
+                int offset = queueDrainOffset;
+                while (batch.size() < DRAIN_BATCH_SIZE && offset != queueWriteOffset) {
+                    QueuedCheckout c = readQueueRecord(offset);
+                    if (c == null) break;
+                    batch.add(c);
+                    offset = c.endOffset;
+                }
+                if (batch.isEmpty()) {
+                    if (!queueRunning) break;
+                    try {
+                        queueLock.wait(DRAIN_IDLE_MS);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    continue;
+                }
+            }
+            try {
+                if (drainConnection == null || !drainConnection.isValid(2)) {
+                    drainConnection = openConnection(jdbcURL);
+                }
+                boundConnection.set(drainConnection);
+                applyCheckoutBatch(drainConnection, batch);
+                advanceQueue(batch.get(batch.size() - 1).endOffset, batch.size());
+            } catch (SQLException e) {
+                // Database unreachable: keep everything queued and try again shortly
+                drainConnection = null;
+                if (!queueRunning) break;
+                try {
+                    Thread.sleep(DRAIN_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            } finally {
+                boundConnection.remove();
+            }
+        }
+        try {
+            if (drainConnection != null) drainConnection.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * Apply a batch in one database transaction. If something in it fails for a reason other
+     * than the connection, each basket is retried on its own so one bad basket can't block the rest.
+     * When sharded, each shard's baskets are one transaction on that shard, where their sales and
+     * stock are; a batch that fails part way is replayed whole, and the shards that committed skip it.
+     */
+    private static void applyCheckoutBatch(Connection c, List<QueuedCheckout> batch) throws SQLException {
+        if (shards.length > 0 && boundShard.get() == null) {
+            Map<Endpoint, List<QueuedCheckout>> byShard = new LinkedHashMap<>();
+            for (QueuedCheckout checkout : batch) {
+                byShard.computeIfAbsent(shardFor(checkout.storeID), k -> new ArrayList<>()).add(checkout);
+            }
+            for (Map.Entry<Endpoint, List<QueuedCheckout>> part : byShard.entrySet()) {
+                onEndpoint(part.getKey(), () -> {
+                    applyCheckoutBatch(db(), part.getValue());
+                    return null;
+                });
+            }
+            return;
+        }
+        c.setAutoCommit(false);
+        try {
+            for (QueuedCheckout checkout : batch) {
+                applyQueuedCheckout(checkout);
+            }
+            c.commit();
+            noteCommit();
+        } catch (SQLException | RuntimeException e) {
+            c.rollback();
+            discardUncommittedStock(0);
+            if (e instanceof SQLException && isConnectionError((SQLException) e)) throw (SQLException) e;
+            for (QueuedCheckout checkout : batch) {
+                try {
+                    applyQueuedCheckout(checkout);
+                    c.commit();
+                    noteCommit();
+                } catch (SQLException | RuntimeException single) {
+                    c.rollback();
+                    discardUncommittedStock(0);
+                    if (single instanceof SQLException && isConnectionError((SQLException) single)) throw (SQLException) single;
+                    queueDeadLettered.incrementAndGet();
+                    System.out.println("Queued transaction " + checkout.transactionID + " could not be recorded: " + single.getMessage());
+                    synchronized (queueFailures) {
+                        if (queueFailures.size() == QUEUE_FAILURES_KEPT) queueFailures.removeFirst();
+                        queueFailures.addLast("Transaction " + checkout.transactionID + " (store " + checkout.storeID + ", " + checkout.purchaseDate
+                                + ", " + checkout.productList + " x " + checkout.amounts + "): " + single.getMessage());
+                    }
+                }
+            }
+        } finally {
+            c.setAutoCommit(true);
+        }
+    }
+
+    // Record one basket unless a previous drain already did, in the caller's transaction
+    private static void applyQueuedCheckout(QueuedCheckout checkout) throws SQLException {
+        try (PreparedStatement ps = db().prepareStatement("SELECT 1 FROM Transactions WHERE transactionID = ?")) {
+            ps.setInt(1, checkout.transactionID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    queueDuplicates.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        calculateTransaction(checkout.transactionID, checkout.purchaseDate, checkout.customerID, checkout.staffID,
+                checkout.storeID, checkout.productList, checkout.amounts);
+    }
+
+    // Move the checkpoint past a committed batch; the writer reuses the space behind it,
+    // and once everything is drained starts the log over
+    private static void advanceQueue(int offset, int count) {
+        synchronized (queueLock) {
+            queueDrainOffset = offset;
+            queueDrained.addAndGet(count);
+            queuePending.addAndGet(-count);
+            if (queueDrainOffset == queueWriteOffset) {
+                queueLog.putInt(0, 0);
+                queueLog.force(0, 4);
+                queueDrainOffset = 0;
+                queueWriteOffset = 0;
+            }
+            queueCheckpoint.putLong(0, queueDrainOffset);
+            queueCheckpoint.force();
+        }
+    }
+
+    private static boolean isConnectionError(SQLException e) {
+        String state = e.getSQLState();
+        return (state != null && state.startsWith("08")) || e instanceof SQLTransientConnectionException
+                || e instanceof SQLNonTransientConnectionException || e instanceof SQLRecoverableException;
+    }
+
+    // Queue depth and throughput counters
+    public static String checkoutQueueStats() {
+        if (queueLog == null) {
+            return "Checkout queue unavailable.";
+        }
+        int pending = queuePending.get();
+        long waiting = 0;
+        int used;
+        synchronized (queueLock) {
+            used = queueWriteOffset >= queueDrainOffset
+                    ? queueWriteOffset - queueDrainOffset
+                    : CHECKOUT_QUEUE_BYTES - queueDrainOffset + queueWriteOffset;
+            QueuedCheckout oldest = readQueueRecord(queueDrainOffset);
+            if (oldest != null) waiting = (System.currentTimeMillis() - oldest.queuedAt) / 1000;
+        }
+        String ans = "Pending: " + pending + " (waiting up to " + waiting + "s), log used: " + (used * 100L / CHECKOUT_QUEUE_BYTES) + "%\n"
+                + "Accepted: " + queueAccepted.get() + ", rejected (full): " + queueRejected.get()
+                + ", rejected (invalid): " + queueInvalid.get()
+                + ", drained: " + queueDrained.get() + ", duplicates skipped: " + queueDuplicates.get()
+                + ", failed: " + queueDeadLettered.get();
+        synchronized (queueFailures) {
+            for (String failure : queueFailures) {
+                ans = ans + "\nNot recorded: " + failure;
+            }
+        }
+        return ans;
+    }
+
+    // Stop accepting work and give the writer a few seconds to drain what is left
+    private static void closeCheckoutQueue() {
+        if (queueDrainer == null) return;
+        queueRunning = false;
+        synchronized (queueLock) {
+            queueLock.notifyAll();
+        }
+        try {
+            queueDrainer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    // ***********************************************************************
+    // GROUP COMMIT
+    // Checkouts from concurrent register sessions are collected for a short
+    // window (or until a batch fills) and committed together in one database
+    // transaction, so the server pays one log flush per batch instead of one
+    // per row. Each checkout runs under its own savepoint, so a failing basket
+    // is rolled back alone and reported only to its own caller.
+    // ***********************************************************************
+
+    static final int GROUP_COMMIT_MAX_BATCH = 32;
+    static final long GROUP_COMMIT_WINDOW_MICROS = 2000;
+
+    private static final LinkedBlockingQueue<PendingCheckout> groupCommitQueue = new LinkedBlockingQueue<>();
+    private static Thread groupCommitter = null;
+
+    // Bucket i counts values in [2^(i-1), 2^i), bucket 0 counts zero (waits under 1ms); the last bucket is open-ended
+    private static final AtomicLongArray batchSizeHistogram = new AtomicLongArray(8);
+    private static final AtomicLongArray groupWaitHistogram = new AtomicLongArray(12);
+    private static final AtomicLong groupBatches = new AtomicLong();
+    private static final AtomicLong groupCheckouts = new AtomicLong();
+    private static final AtomicLong groupFailures = new AtomicLong();
+
+    private static final class PendingCheckout {
+        final int transactionID, customerID, staffID, storeID;
+        final String purchaseDate, productList, amounts;
+        // Set instead of productList and amounts for a scanned checkout
+        final int[] productIDs, quantities;
+        final long enqueuedAt = System.nanoTime();
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        PendingCheckout(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, String productList, String amounts) {
+            this.transactionID = transactionID;
+            this.purchaseDate = purchaseDate;
+            this.customerID = customerID;
+            this.staffID = staffID;
+            this.storeID = storeID;
+            this.productList = productList;
+            this.amounts = amounts;
+            this.productIDs = null;
+            this.quantities = null;
+        }
+
+        PendingCheckout(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, int[] productIDs, int[] quantities) {
+            this.transactionID = transactionID;
+            this.purchaseDate = purchaseDate;
+            this.customerID = customerID;
+            this.staffID = staffID;
+            this.storeID = storeID;
+            this.productList = null;
+            this.amounts = null;
+            this.productIDs = productIDs;
+            this.quantities = quantities;
+        }
+    }
+
+    /**
+     * Record a checkout through the group committer and wait for its own outcome.
+     * With sharding on, checkouts commit on their store's shard individually instead.
+     */
+    public static String groupCommitTransaction(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, String productList, String amounts) throws SQLException {
+        if (shards.length > 0) {
+            return calculateTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productList, amounts);
+        }
+        return awaitGroupCommit(new PendingCheckout(transactionID, purchaseDate, customerID, staffID, storeID, productList, amounts));
+    }
+
+    // Scanned checkout through the group committer, see calculateScannedTransaction
+    public static String groupCommitScannedTransaction(int transactionID, String purchaseDate, int customerID, int staffID, int storeID, int[] productIDs, int[] quantities) throws SQLException {
+        if (shards.length > 0) {
+            return calculateScannedTransaction(transactionID, purchaseDate, customerID, staffID, storeID, productIDs, quantities);
+        }
+        return awaitGroupCommit(new PendingCheckout(transactionID, purchaseDate, customerID, staffID, storeID, productIDs, quantities));
+    }
+
+    private static String awaitGroupCommit(PendingCheckout pending) throws SQLException {
+        int transactionID = pending.transactionID;
+        startGroupCommitter();
+        groupCommitQueue.add(pending);
+        try {
+            return pending.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for checkout " + transactionID + " to commit.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) throw (SQLException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new SQLException("Checkout " + transactionID + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    private static synchronized void startGroupCommitter() {
+        if (groupCommitter != null) return;
+        groupCommitter = new Thread(WolfWR::runGroupCommitter, "wolfwr-group-commit");
+        groupCommitter.setDaemon(true);
+        groupCommitter.setPriority(Thread.MAX_PRIORITY);
+        groupCommitter.start();
+    }
+
+    private static synchronized void stopGroupCommitter() {
+        if (groupCommitter != null) {
+            groupCommitter.interrupt();
+            groupCommitter = null;
+        }
+    }
+
+    // Form batches: block for the first checkout, then take more until the window closes or the batch is full
+    private static void runGroupCommitter() {
+        Connection c = null;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<PendingCheckout> batch = new ArrayList<>();
+                batch.add(groupCommitQueue.take());
+                long windowEnd = System.nanoTime() + GROUP_COMMIT_WINDOW_MICROS * 1000;
+                while (batch.size() < GROUP_COMMIT_MAX_BATCH) {
+                    long left = windowEnd - System.nanoTime();
+                    if (left <= 0) break;
+                    PendingCheckout next = groupCommitQueue.poll(left, TimeUnit.NANOSECONDS);
+                    if (next == null) break;
+                    batch.add(next);
+                }
+                long formedAt = System.nanoTime();
+                batchSizeHistogram.incrementAndGet(histogramBucket(batch.size(), batchSizeHistogram.length()));
+                for (PendingCheckout p : batch) {
+                    groupWaitHistogram.incrementAndGet(histogramBucket((formedAt - p.enqueuedAt) / 1000000, groupWaitHistogram.length()));
+                }
+                groupBatches.incrementAndGet();
+                groupCheckouts.addAndGet(batch.size());
+                try {
+                    if (c == null || !c.isValid(2)) {
+                        c = openConnection(jdbcURL);
+                    }
+                    commitGroup(c, batch);
+                } catch (SQLException e) {
+                    // The whole batch is lost with the transaction; every caller hears about it
+                    c = null;
+                    groupFailures.addAndGet(batch.size());
+                    for (PendingCheckout p : batch) p.result.completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            PendingCheckout left;
+            while ((left = groupCommitQueue.poll()) != null) {
+                left.result.completeExceptionally(new SQLException("Group committer stopped."));
+            }
+            try {
+                if (c != null) c.close();
+            } catch (SQLException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // Run every checkout of the batch under its own savepoint and commit once
+    private static void commitGroup(Connection c, List<PendingCheckout> batch) throws SQLException {
+        String[] results = new String[batch.size()];
+        Exception[] errors = new Exception[batch.size()];
+        boundConnection.set(c);
+        c.setAutoCommit(false);
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                PendingCheckout p = batch.get(i);
+                Savepoint before = c.setSavepoint();
+                int movesBefore = uncommittedStock.get().size();
+                try {
+                    results[i] = p.productIDs != null
+                            ? calculateScannedTransaction(p.transactionID, p.purchaseDate, p.customerID, p.staffID, p.storeID, p.productIDs, p.quantities)
+                            : calculateTransaction(p.transactionID, p.purchaseDate, p.customerID, p.staffID, p.storeID, p.productList, p.amounts);
+                    c.releaseSavepoint(before);
+                } catch (SQLException | RuntimeException e) {
+                    if (e instanceof SQLException && isConnectionError((SQLException) e)) throw (SQLException) e;
+                    c.rollback(before);
+                    discardUncommittedStock(movesBefore);
+                    errors[i] = e;
+                }
+            }
+            c.commit();
+            noteCommit();
+        } catch (SQLException e) {
+            discardUncommittedStock(0);
+            try {
+                c.rollback();
+            } catch (SQLException ignored) {
+                // Connection is going away anyway
+            }
+            throw e;
+        } finally {
+            try {
+                c.setAutoCommit(true);
+            } catch (SQLException ignored) {
+                // Reopened on the next batch
+            }
+            boundConnection.remove();
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            if (errors[i] != null) {
+                groupFailures.incrementAndGet();
+                batch.get(i).result.completeExceptionally(errors[i]);
+            } else {
+                batch.get(i).result.complete(results[i]);
+            }
+        }
+    }
+
+    private static int histogramBucket(long value, int buckets) {
+        int bucket = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+        return Math.min(bucket, buckets - 1);
+    }
+
+    private static String formatHistogram(AtomicLongArray histogram, String unit) {
+        StringBuilder ans = new StringBuilder();
+        for (int i = 0; i < histogram.length(); i++) {
+            long low = i == 0 ? 0 : 1L << (i - 1);
+            String label = i == histogram.length() - 1 ? ">=" + low : "<" + (1L << i);
+            ans.append("  ").append(label).append(unit).append(": ").append(histogram.get(i)).append("\n");
+        }
+        return ans.toString();
+    }
+
+    // Batch size and wait time distributions
+    public static String groupCommitStats() {
+        long batches = groupBatches.get();
+        return "Batches: " + batches + ", checkouts: " + groupCheckouts.get() + ", failed: " + groupFailures.get()
+                + (batches == 0 ? "" : ", average batch: " + (groupCheckouts.get() / (double) batches)) + "\n"
+                + "Batch size:\n" + formatHistogram(batchSizeHistogram, "")
+                + "Wait before commit:\n" + formatHistogram(groupWaitHistogram, "ms");
+    }
+
+
+    // ***********************************************************************
+    // ID ALLOCATION
+    // Hi/lo block allocation for generated primary keys. A process reserves a
+    // block of IDs from the Sequences table in one round trip and hands them
+    // out from memory with a single atomic increment; only when a block runs
+    // out does a caller go back to the database for the next one.
+    // ***********************************************************************
+
+    static final String SEQ_TRANSACTIONS = "Transactions";
+    static final String SEQ_BILLS = "Bills";
+    static final String SEQ_REWARDS = "Rewards";
+    static final String SEQ_DISCOUNTS = "Discounts";
+
+    static final int ID_BLOCK_SIZE = Integer.getInteger("wolfwr.idBlockSize", 100);
+
+    // Primary key column of each sequenced table, used to seed a sequence above existing rows
+    private static final Map<String, String> sequenceKeys = Map.of(
+            SEQ_TRANSACTIONS, "transactionID",
+            SEQ_BILLS, "billID",
+            SEQ_REWARDS, "rewardID",
+            SEQ_DISCOUNTS, "discountID");
+
+    private static final Map<String, IdBlock> idBlocks = new ConcurrentHashMap<>();
+    private static final Set<String> seededSequences = ConcurrentHashMap.newKeySet();
+
+    // Dedicated autocommit connection, so a reserved block is never undone by a caller's rollback
+    private static Connection sequenceConnection = null;
+
+    // IDs [next, limit) reserved by this process
+    private static final class IdBlock {
+        final AtomicLong next;
+        final long limit;
+
+        IdBlock(long first, long limit) {
+            this.next = new AtomicLong(first);
+            this.limit = limit;
+        }
+    }
+
+    private static final IdBlock EMPTY_BLOCK = new IdBlock(0, 0);
+
+    /**
+     * Next ID for the given sequence. Lock-free while the current block lasts.
+     */
+    static int nextId(String sequence) throws SQLException {
+        while (true) {
+            IdBlock block = idBlocks.getOrDefault(sequence, EMPTY_BLOCK);
+            long id = block.next.getAndIncrement();
+            if (id < block.limit) {
+                return (int) id;
+            }
+            refillIdBlock(sequence, block);
+        }
+    }
+
+    // Only one thread per process reserves the next block; the others retry against it
+    private static synchronized void refillIdBlock(String sequence, IdBlock exhausted) throws SQLException {
+        if (idBlocks.getOrDefault(sequence, EMPTY_BLOCK) != exhausted) return;
+        if (sequenceConnection == null || !sequenceConnection.isValid(2)) {
+            sequenceConnection = openConnection(jdbcURL);
+        }
+        // First use of a sequence in this process lifts it above the table's current highest ID;
+        // GREATEST never moves a sequence another process has already advanced back down
+        if (!seededSequences.contains(sequence)) {
+            String seedSQL = "INSERT INTO Sequences (name, nextValue) VALUES (?, ?) " +
+                    "ON DUPLICATE KEY UPDATE nextValue = GREATEST(nextValue, VALUES(nextValue))";
+            try (PreparedStatement ps = sequenceConnection.prepareStatement(seedSQL)) {
+                ps.setString(1, sequence);
+                ps.setLong(2, highestId(sequence) + 1);
+                ps.executeUpdate();
+            }
+            seededSequences.add(sequence);
+        }
+        // Advance the high-water mark and read the new value back in the same statement
+        String reserveSQL = "UPDATE Sequences SET nextValue = LAST_INSERT_ID(nextValue + ?) WHERE name = ?";
+        try (PreparedStatement ps = sequenceConnection.prepareStatement(reserveSQL)) {
+            ps.setInt(1, ID_BLOCK_SIZE);
+            ps.setString(2, sequence);
+            ps.executeUpdate();
+        }
+        long limit;
+        try (Statement st = sequenceConnection.createStatement(); ResultSet rs = st.executeQuery("SELECT LAST_INSERT_ID()")) {
+            rs.next();
+            limit = rs.getLong(1);
+        }
+        idBlocks.put(sequence, new IdBlock(limit - ID_BLOCK_SIZE, limit));
+    }
+
+    // Highest ID of a sequenced table on the primary and on every shard, since
+    // sharded tables such as Transactions and Discounts keep their rows on the shards
+    private static long highestId(String sequence) throws SQLException {
+        String sql = "SELECT COALESCE(MAX(" + sequenceKeys.get(sequence) + "), 0) FROM " + sequence;
+        long highest = 0;
+        try (Statement st = sequenceConnection.createStatement(); ResultSet rs = st.executeQuery(sql)) {
+            if (rs.next()) highest = rs.getLong(1);
+        }
+        for (Endpoint shard : shards) {
+            try (Statement st = shard.connection().createStatement(); ResultSet rs = st.executeQuery(sql)) {
+                if (rs.next()) highest = Math.max(highest, rs.getLong(1));
+            }
+        }
+        return highest;
+    }
+
+    private static synchronized void closeSequences() {
+        try {
+            if (sequenceConnection != null) sequenceConnection.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+        sequenceConnection = null;
+    }
+
+    // ***********************************************************************
+    // MONEY
+    // Prices, totals, bills and rewards are carried as long cents, and
+    // percentages (promotions, the reward rate) as long basis points, so every
+    // amount rounds once, half-up, to the same two places as the DECIMAL(10,2)
+    // columns. Values go to the database as "? / 100" with setLong and come
+    // back with CAST(column * 100 AS SIGNED), so no double ever touches a
+    // stored amount and the checkout loop allocates nothing.
+    // ***********************************************************************
+
+    // Platinum members get 2% of their purchases back
+    private static final long REWARD_RATE_BP = 200;
+
+    static final class Money {
+        // 100.00% in basis points
+        static final long WHOLE_BP = 10000;
+
+        private Money() {
+        }
+
+        // Round an amount typed at the console to hundredths. Goes through the
+        // shortest decimal form of the double, so 1.005 becomes 101, not 100.
+        static long fromDouble(double amount) {
+            return java.math.BigDecimal.valueOf(amount).setScale(2, java.math.RoundingMode.HALF_UP).unscaledValue().longValueExact();
+        }
+
+        // a * b / divisor, rounded half away from zero like DECIMAL rounding
+        static long mulDivHalfUp(long a, long b, long divisor) {
+            long product = Math.multiplyExact(a, b);
+            long quotient = product / divisor;
+            long remainder = Math.abs(product % divisor);
+            if (remainder * 2 >= divisor) {
+                quotient += product < 0 ? -1 : 1;
+            }
+            return quotient;
+        }
+
+        // bp basis points of an amount in cents
+        static long percentOf(long cents, long bp) {
+            return mulDivHalfUp(cents, bp, WHOLE_BP);
+        }
+
+        // Line total for quantity units at unitCents with a bp promotion applied
+        static long discounted(long unitCents, int quantity, long discountBp) {
+            return mulDivHalfUp(Math.multiplyExact(unitCents, quantity), WHOLE_BP - discountBp, WHOLE_BP);
+        }
+    }
+
+    // ***********************************************************************
+    // TRANSFER MANIFESTS
+    // A truck's worth of transfers is checked with one locking read, applied
+    // as one batch of Merchandise updates plus one batch of Transfers inserts,
+    // and committed once. Lines that cannot move are reported and skipped
+    // without holding up the rest of the manifest.
+    // ***********************************************************************
+
+    private static final int MAX_MANIFEST_LINES = 5000;
+
+    // Lock conflicts are retried with jittered exponential backoff, waiting no longer
+    // than this for any one row so a stuck peer turns into a retry quickly
+    static final int TRANSFER_MAX_ATTEMPTS = Integer.getInteger("wolfwr.transferAttempts", 5);
+    static final int TRANSFER_LOCK_WAIT_SECONDS = Integer.getInteger("wolfwr.transferLockWaitSeconds", 5);
+    static final long TRANSFER_BACKOFF_BASE_MS = 20;
+    static final long TRANSFER_BACKOFF_CAP_MS = 1000;
+
+    private static final AtomicLong transferAttempts = new AtomicLong();
+    private static final AtomicLong transferDeadlocks = new AtomicLong();
+    private static final AtomicLong transferLockTimeouts = new AtomicLong();
+    private static final AtomicLong transferRetries = new AtomicLong();
+    private static final AtomicLong transferGaveUp = new AtomicLong();
+    private static final AtomicLong transferBackoffMillis = new AtomicLong();
+
+    static final class TransferLine {
+        final int store1ID;
+        final int store2ID;
+        final int product1ID;
+        final int product2ID;
+        boolean applied;
+        String result = "not processed";
+
+        TransferLine(int store1ID, int store2ID, int product1ID, int product2ID) {
+            this.store1ID = store1ID;
+            this.store2ID = store2ID;
+            this.product1ID = product1ID;
+            this.product2ID = product2ID;
+        }
+
+        @Override
+        public String toString() {
+            return "store " + store1ID + " product " + product1ID + " -> store " + store2ID + " product " + product2ID;
+        }
+    }
+
+    // Move every line of the manifest that can move, in one transaction. Each line's
+    // applied flag and result are filled in; the returned text lists them all.
+    private static String processTransferManifest(List<TransferLine> lines, String transferDate, int staffID) throws SQLException {
+        if (lines.isEmpty()) {
+            return "Empty manifest.";
+        }
+        if (lines.size() > MAX_MANIFEST_LINES) {
+            return "Manifest too large, split it into parts of at most " + MAX_MANIFEST_LINES + " lines.";
+        }
+        java.sql.Date date;
+        try {
+            date = java.sql.Date.valueOf(transferDate);
+        } catch (IllegalArgumentException e) {
+            return "Invalid transfer date: " + transferDate;
+        }
+        if (shards.length > 0 && boundShard.get() == null) {
+            return shardedTransferManifest(lines, transferDate, staffID);
+        }
+
+        Connection c = db();
+        // Inside a caller's transaction a deadlock rolls back the caller's work too,
+        // so only a manifest running its own transaction can retry
+        if (!c.getAutoCommit()) {
+            checkAndApplyTransfers(c, lines, date, staffID);
+            noteWrite("Merchandise");
+            noteWrite("Transfers");
+            followTransfers(lines);
+            return summarizeTransfers(lines);
+        }
+        c.setAutoCommit(false);
+        try {
+            for (int attempt = 1; ; attempt++) {
+                transferAttempts.incrementAndGet();
+                try {
+                    checkAndApplyTransfers(c, lines, date, staffID);
+                    c.commit();
+                    noteCommit();
+                    break;
+                } catch (SQLException error) {
+                    c.rollback();
+                    for (TransferLine line : lines) {
+                        line.applied = false;
+                        line.result = "rolled back: " + error.getMessage();
+                    }
+                    int conflict = lockConflict(error);
+                    if (conflict == 0) {
+                        return "Manifest failed, nothing was transferred. " + summarizeTransfers(lines);
+                    }
+                    (conflict == 1213 ? transferDeadlocks : transferLockTimeouts).incrementAndGet();
+                    if (attempt >= TRANSFER_MAX_ATTEMPTS) {
+                        transferGaveUp.incrementAndGet();
+                        return "Manifest gave up after " + attempt + " attempts on lock conflicts, nothing was transferred. " + summarizeTransfers(lines);
+                    }
+                    transferRetries.incrementAndGet();
+                    backOff(attempt);
+                }
+            }
+        } finally {
+            c.setAutoCommit(true);
+        }
+        noteWrite("Merchandise");
+        noteWrite("Transfers");
+        followTransfers(lines);
+        return summarizeTransfers(lines);
+    }
+
+    private static void checkAndApplyTransfers(Connection c, List<TransferLine> lines, java.sql.Date date, int staffID) throws SQLException {
+        List<TransferLine> accepted = checkTransferLines(c, lines);
+        if (!accepted.isEmpty()) {
+            applyTransferLines(c, accepted, date, staffID);
+        }
+    }
+
+    // Lock every Merchandise row the manifest touches and decide line by line,
+    // in manifest order, which ones can move. Returns the lines to apply.
+    private static List<TransferLine> checkTransferLines(Connection c, List<TransferLine> lines) throws SQLException {
+        // Rows are locked in ascending (storeID, productID) order whatever the manifest
+        // order, so two transfers in opposite directions queue up instead of deadlocking
+        Set<Long> keys = new TreeSet<>();
+        for (TransferLine line : lines) {
+            keys.add(stockKey(line.store1ID, line.product1ID));
+            keys.add(stockKey(line.store2ID, line.product2ID));
+        }
+        // Rows still referenced by a discount or by an earlier transfer cannot change key
+        StringBuilder sql = new StringBuilder("SET STATEMENT innodb_lock_wait_timeout=" + TRANSFER_LOCK_WAIT_SECONDS + " FOR " +
+                "SELECT m.storeID, m.productID, " +
+                "(EXISTS (SELECT 1 FROM Discounts d WHERE d.storeID = m.storeID AND d.productID = m.productID) " +
+                "OR EXISTS (SELECT 1 FROM Transfers t WHERE t.store2ID = m.storeID AND t.product2ID = m.productID)) AS pinned " +
+                "FROM Merchandise m WHERE (m.storeID, m.productID) IN (");
+        appendTuples(sql, keys.size(), 2);
+        sql.append(") ORDER BY m.storeID, m.productID FOR UPDATE");
+        Set<Long> present = new HashSet<>();
+        Set<Long> pinned = new HashSet<>();
+        try (PreparedStatement ps = c.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (long key : keys) {
+                ps.setInt(index++, (int) (key >>> 32));
+                ps.setInt(index++, (int) key);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long key = stockKey(rs.getInt("storeID"), rs.getInt("productID"));
+                    present.add(key);
+                    if (rs.getBoolean("pinned")) pinned.add(key);
+                }
+            }
+        }
+
+        // Transfers already on record would collide with the primary key
+        StringBuilder recordedSQL = new StringBuilder("SELECT store1ID, store2ID, product1ID, product2ID FROM Transfers " +
+                "WHERE (store1ID, store2ID, product1ID, product2ID) IN (");
+        appendTuples(recordedSQL, lines.size(), 4);
+        recordedSQL.append(")");
+        Set<String> recorded = new HashSet<>();
+        try (PreparedStatement ps = c.prepareStatement(recordedSQL.toString())) {
+            int index = 1;
+            for (TransferLine line : lines) {
+                ps.setInt(index++, line.store1ID);
+                ps.setInt(index++, line.store2ID);
+                ps.setInt(index++, line.product1ID);
+                ps.setInt(index++, line.product2ID);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    recorded.add(rs.getInt(1) + ":" + rs.getInt(2) + ":" + rs.getInt(3) + ":" + rs.getInt(4));
+                }
+            }
+        }
+
+        // Replay the manifest against what the database holds, so a later line sees
+        // the effect of earlier ones exactly as the batch will apply them
+        List<TransferLine> accepted = new ArrayList<>();
+        for (TransferLine line : lines) {
+            long source = stockKey(line.store1ID, line.product1ID);
+            long target = stockKey(line.store2ID, line.product2ID);
+            if (source == target) {
+                line.result = "source and destination are the same";
+            } else if (isRetiredStore(line.store1ID) || isRetiredStore(line.store2ID)) {
+                line.result = "store " + (isRetiredStore(line.store1ID) ? line.store1ID : line.store2ID) + " is retired";
+            } else if (!present.contains(source)) {
+                line.result = "no merchandise at source";
+            } else if (pinned.contains(source)) {
+                line.result = "merchandise has discounts or earlier transfers attached";
+            } else if (present.contains(target)) {
+                line.result = "destination already stocks that product";
+            } else if (!recorded.add(line.store1ID + ":" + line.store2ID + ":" + line.product1ID + ":" + line.product2ID)) {
+                line.result = "transfer already recorded";
+            } else {
+                present.remove(source);
+                present.add(target);
+                // The new Transfers row references the destination from now on
+                pinned.add(target);
+                accepted.add(line);
+            }
+        }
+        return accepted;
+    }
+
+    private static void applyTransferLines(Connection c, List<TransferLine> accepted, java.sql.Date date, int staffID) throws SQLException {
+        String moveSQL = "UPDATE Merchandise SET storeID = ?, productID = ?, version = version + 1 WHERE storeID = ? AND productID = ?";
+        String recordSQL = "INSERT INTO Transfers (store1ID, store2ID, product1ID, product2ID, transferDate, staffID) " +
+                "VALUES (?, ?, ?, ?, ?, ?)";
+        try (PreparedStatement move = c.prepareStatement(moveSQL); PreparedStatement record = c.prepareStatement(recordSQL)) {
+            for (TransferLine line : accepted) {
+                move.setInt(1, line.store2ID);
+                move.setInt(2, line.product2ID);
+                move.setInt(3, line.store1ID);
+                move.setInt(4, line.product1ID);
+                move.addBatch();
+                record.setInt(1, line.store1ID);
+                record.setInt(2, line.store2ID);
+                record.setInt(3, line.product1ID);
+                record.setInt(4, line.product2ID);
+                record.setDate(5, date);
+                record.setInt(6, staffID);
+                record.addBatch();
+            }
+            // Moves first, the Transfers rows reference the moved rows
+            int[] moved = move.executeBatch();
+            for (int i = 0; i < moved.length; i++) {
+                if (moved[i] == 0) {
+                    throw new SQLException("Merchandise for " + accepted.get(i) + " changed during the transfer.");
+                }
+            }
+            record.executeBatch();
+        }
+        for (TransferLine line : accepted) {
+            line.applied = true;
+            line.result = "transferred";
+        }
+    }
+
+    // With shards, lines whose stores share a shard go through that shard as one
+    // manifest; lines that cross shards fall back to the XA transfer one by one
+    private static String shardedTransferManifest(List<TransferLine> lines, String transferDate, int staffID) throws SQLException {
+        Map<Endpoint, List<TransferLine>> byShard = new LinkedHashMap<>();
+        for (TransferLine line : lines) {
+            Endpoint shard = shardFor(line.store1ID);
+            if (shard == shardFor(line.store2ID)) {
+                byShard.computeIfAbsent(shard, k -> new ArrayList<>()).add(line);
+            } else if (isRetiredStore(line.store1ID) || isRetiredStore(line.store2ID)) {
+                line.result = "store " + (isRetiredStore(line.store1ID) ? line.store1ID : line.store2ID) + " is retired";
+            } else {
+                String result = crossShardTransfer(line.store1ID, line.store2ID, line.product1ID, line.product2ID, transferDate, staffID);
+                line.applied = "Transfer processed successfully.".equals(result);
+                line.result = line.applied ? "transferred across shards" : "cross-shard transfer failed";
+                if (line.applied) followTransfers(Collections.singletonList(line));
+            }
+        }
+        for (List<TransferLine> group : byShard.values()) {
+            onShard(group.get(0).store1ID, () -> processTransferManifest(group, transferDate, staffID));
+        }
+        return summarizeTransfers(lines);
+    }
+
+    // Re-key the in-memory views of Merchandise for the rows that moved
+    private static void followTransfers(List<TransferLine> lines) {
+        reindexTransfers(lines);
+        moveTrackedStock(lines);
+        moveTrackedExpiry(lines);
+    }
+
+    private static String summarizeTransfers(List<TransferLine> lines) {
+        int applied = 0;
+        StringBuilder ans = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            TransferLine line = lines.get(i);
+            if (line.applied) applied++;
+            ans.append("\n  Line ").append(i + 1).append(" (").append(line).append("): ").append(line.result);
+        }
+        return "Manifest: " + applied + " of " + lines.size() + " lines transferred." + ans;
+    }
+
+    // 1213 for a deadlock, 1205 for a lock wait timeout, 0 for anything that a retry won't fix
+    private static int lockConflict(SQLException error) {
+        for (SQLException e = error; e != null; e = e.getNextException()) {
+            for (Throwable t = e; t != null; t = t.getCause()) {
+                if (!(t instanceof SQLException)) continue;
+                SQLException s = (SQLException) t;
+                if (s.getErrorCode() == 1213 || "40001".equals(s.getSQLState())) return 1213;
+                if (s.getErrorCode() == 1205) return 1205;
+            }
+        }
+        return 0;
+    }
+
+    // Full jitter: sleep a random time up to base * 2^attempt, capped
+    private static void backOff(int attempt) {
+        long ceiling = Math.min(TRANSFER_BACKOFF_CAP_MS, TRANSFER_BACKOFF_BASE_MS << Math.min(attempt, 16));
+        long sleep = ThreadLocalRandom.current().nextLong(ceiling + 1);
+        transferBackoffMillis.addAndGet(sleep);
+        try {
+            Thread.sleep(sleep);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String transferStats() {
+        long attempts = transferAttempts.get();
+        long conflicts = transferDeadlocks.get() + transferLockTimeouts.get();
+        return "Transfer attempts: " + attempts +
+                "\nDeadlocks: " + transferDeadlocks.get() +
+                "\nLock wait timeouts: " + transferLockTimeouts.get() +
+                "\nConflict rate: " + (attempts == 0 ? 0 : conflicts * 100 / attempts) + "%" +
+                "\nRetries: " + transferRetries.get() +
+                "\nGave up: " + transferGaveUp.get() +
+                "\nTime spent backing off: " + transferBackoffMillis.get() + " ms";
+    }
+
+    // (storeID, productID) packed into one long
+    private static long stockKey(int storeID, int productID) {
+        return ((long) storeID << 32) | (productID & 0xFFFFFFFFL);
+    }
+
+    // "(?, ?), (?, ?), ..." for a row-constructor IN list
+    private static void appendTuples(StringBuilder sql, int rows, int width) {
+        for (int r = 0; r < rows; r++) {
+            sql.append(r == 0 ? "(" : ", (");
+            for (int w = 0; w < width; w++) {
+                sql.append(w == 0 ? "?" : ", ?");
+            }
+            sql.append(")");
+        }
+    }
+
+    // ***********************************************************************
+    // OPTIMISTIC CONCURRENCY
+    // Merchandise and ClubMembers carry a version that every update bumps.
+    // The ...IfVersion update variants only apply when the row still has the
+    // version the caller read, and otherwise return UPDATE_CONFLICT instead
+    // of overwriting someone else's edit or waiting on a lock. The updateMerch
+    // and updateMember commands show the version when the row is picked and
+    // apply the edit against it.
+    // ***********************************************************************
+
+    static final String UPDATE_CONFLICT = "Update conflict:";
+
+    static boolean isUpdateConflict(String result) {
+        return result != null && result.startsWith(UPDATE_CONFLICT);
+    }
+
+    // Current version of a Merchandise row, or -1 if there is none
+    private static int getInventoryVersion(int storeID, int productID) throws SQLException {
+        if (needsShard(storeID)) {
+            int[] version = new int[1];
+            onShard(storeID, () -> {
+                version[0] = getInventoryVersion(storeID, productID);
+                return null;
+            });
+            return version[0];
+        }
+        return readVersion("SELECT version FROM Merchandise WHERE storeID = ? AND productID = ?", storeID, productID);
+    }
+
+    // Current version of a club member, or -1 if there is none
+    private static int getMemberVersion(int customerID) throws SQLException {
+        return readVersion("SELECT version FROM ClubMembers WHERE customerID = ?", customerID);
+    }
+
+    private static int readVersion(String sql, int... key) throws SQLException {
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
+            for (int i = 0; i < key.length; i++) {
+                ps.setInt(i + 1, key[i]);
+            }
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : -1;
+            }
+        }
+    }
+
+    // Called after a guarded update matched nothing: a conflict if the row still
+    // exists, null if the row is gone and the caller's usual failure applies
+    private static String versionMismatch(String table, String row, String versionSQL, int... key) throws SQLException {
+        int current = readVersion(versionSQL, key);
+        if (current < 0) {
+            return null;
+        }
+        return UPDATE_CONFLICT + " " + table + " " + row + " was changed by someone else (now at version " + current + "), reload and retry.";
+    }
+
+    // ***********************************************************************
+    // BACKGROUND PURGE
+    // Deleting a store or supplier used to cascade through Merchandise,
+    // Discounts and Transfers in one statement, locking every row at once.
+    // Now the delete only marks the row retired, and one background worker
+    // removes the dependents a chunk at a time, each chunk its own short
+    // transaction, pausing between chunks and while checkouts are queued.
+    // The retired row itself goes last. Retired rows still present at start
+    // up are picked up again. Meanwhile no new merchandise, sale, discount,
+    // bill or transfer may name a retired store or supplier.
+    // ***********************************************************************
+
+    static final int PURGE_CHUNK_ROWS = Integer.getInteger("wolfwr.purgeChunkRows", 500);
+    static final long PURGE_PAUSE_MS = Long.getLong("wolfwr.purgePauseMs", 50L);
+
+    private static final class PurgeJob {
+        static final String STORE = "store";
+        static final String SUPPLIER = "supplier";
+
+        final int jobID;
+        final String kind;
+        final int entityID;
+        final long startedAt = System.currentTimeMillis();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicInteger chunks = new AtomicInteger();
+        volatile String phase = "waiting";
+        volatile long finishedAt;
+
+        PurgeJob(int jobID, String kind, int entityID) {
+            this.jobID = jobID;
+            this.kind = kind;
+            this.entityID = entityID;
+        }
+
+        // Column that ties a Merchandise row to this entity
+        String merchandiseColumn() {
+            return STORE.equals(kind) ? "storeID" : "supplierID";
+        }
+
+        String describe() {
+            long end = finishedAt > 0 ? finishedAt : System.currentTimeMillis();
+            return "Job " + jobID + " " + kind + " " + entityID + ": " + phase + ", " + rows.get() + " rows in " +
+                    chunks.get() + " chunks, " + (end - startedAt) / 1000 + "s";
+        }
+    }
+
+    // Retired stores and suppliers, reloaded from the primary when another instance changes either table
+    private static final Set<Integer> retiredStores = ConcurrentHashMap.newKeySet();
+    private static final Set<Integer> retiredSuppliers = ConcurrentHashMap.newKeySet();
+    private static volatile boolean retiredLoaded = false;
+
+    static {
+        registerCoherentCache(new CacheInvalidator() {
+            public void invalidate(String table, String rowKey) {
+                if ("Stores".equals(table) || "Suppliers".equals(table)) retiredLoaded = false;
+            }
+
+            public void invalidateAll() {
+                retiredLoaded = false;
+            }
+        });
+    }
+
+    private static void loadRetired() throws SQLException {
+        // Flagged first, so an invalidation that arrives while reading forces another load
+        retiredLoaded = true;
+        Set<Integer> stores = new HashSet<>();
+        Set<Integer> suppliers = new HashSet<>();
+        try (Statement st = primaryDb().createStatement()) {
+            try (ResultSet rs = st.executeQuery("SELECT storeID FROM Stores WHERE retired")) {
+                while (rs.next()) stores.add(rs.getInt(1));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT supplierID FROM Suppliers WHERE retired")) {
+                while (rs.next()) suppliers.add(rs.getInt(1));
+            }
+        } catch (SQLException e) {
+            retiredLoaded = false;
+            throw e;
+        }
+        retiredStores.retainAll(stores);
+        retiredStores.addAll(stores);
+        retiredSuppliers.retainAll(suppliers);
+        retiredSuppliers.addAll(suppliers);
+    }
+
+    static boolean isRetiredStore(int storeID) throws SQLException {
+        if (!retiredLoaded || !coherentCachesUsable()) loadRetired();
+        return retiredStores.contains(storeID);
+    }
+
+    static boolean isRetiredSupplier(int supplierID) throws SQLException {
+        if (!retiredLoaded || !coherentCachesUsable()) loadRetired();
+        return retiredSuppliers.contains(supplierID);
+    }
+
+    // Why a write naming this store and/or supplier is refused, or null when it may go ahead
+    static String retiredWrite(Integer storeID, Integer supplierID) throws SQLException {
+        if (storeID != null && isRetiredStore(storeID)) return "Store " + storeID + " is retired, nothing was written.";
+        if (supplierID != null && isRetiredSupplier(supplierID)) return "Supplier " + supplierID + " is retired, nothing was written.";
+        return null;
+    }
+
+    private static final AtomicInteger purgeJobSeq = new AtomicInteger();
+    private static final Map<Integer, PurgeJob> purgeJobs = new ConcurrentSkipListMap<>();
+    private static ExecutorService purgeWorker = null;
+
+    private static synchronized String schedulePurge(String kind, int entityID) {
+        for (PurgeJob running : purgeJobs.values()) {
+            if (running.finishedAt == 0 && running.kind.equals(kind) && running.entityID == entityID) {
+                return "Purge job " + running.jobID + " is already running.";
+            }
+        }
+        if (purgeWorker == null) {
+            purgeWorker = Executors.newSingleThreadExecutor(task -> {
+                Thread t = new Thread(task, "wolfwr-purge");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            });
+        }
+        PurgeJob job = new PurgeJob(purgeJobSeq.incrementAndGet(), kind, entityID);
+        purgeJobs.put(job.jobID, job);
+        purgeWorker.submit(() -> runPurge(job));
+        return "Purge job " + job.jobID + " is removing its rows in the background (see purgeStatus).";
+    }
+
+    // Pick up stores and suppliers that were retired but not yet purged
+    private static void resumePurges() {
+        try (Statement st = db().createStatement()) {
+            List<Integer> stores = new ArrayList<>();
+            List<Integer> suppliers = new ArrayList<>();
+            try (ResultSet rs = st.executeQuery("SELECT storeID FROM Stores WHERE retired")) {
+                while (rs.next()) stores.add(rs.getInt(1));
+            }
+            try (ResultSet rs = st.executeQuery("SELECT supplierID FROM Suppliers WHERE retired")) {
+                while (rs.next()) suppliers.add(rs.getInt(1));
+            }
+            retiredStores.addAll(stores);
+            retiredSuppliers.addAll(suppliers);
+            for (int storeID : stores) schedulePurge(PurgeJob.STORE, storeID);
+            for (int supplierID : suppliers) schedulePurge(PurgeJob.SUPPLIER, supplierID);
+        } catch (SQLException e) {
+            System.out.println("Could not resume purges: " + e.getMessage());
+        }
+    }
+
+    private static void runPurge(PurgeJob job) {
+        Connection c = null;
+        try {
+            c = openConnection(jdbcURL);
+            boundConnection.set(c);
+            c.setAutoCommit(false);
+            job.phase = "purging merchandise";
+            if (shards.length > 0) {
+                for (Endpoint shard : shards) {
+                    onEndpoint(shard, () -> {
+                        purgeMerchandise(job);
+                        return null;
+                    });
+                }
+            } else {
+                purgeMerchandise(job);
+            }
+            if (PurgeJob.STORE.equals(job.kind)) {
+                // What ON DELETE SET NULL did for the store's sales history. Partitioned
+                // Transactions has no foreign key and shards keep their own sales, so
+                // every copy of the table is detached explicitly.
+                job.phase = "detaching transactions";
+                String detachSQL = "UPDATE Transactions SET storeID = NULL WHERE storeID = ? LIMIT " + PURGE_CHUNK_ROWS;
+                for (Endpoint shard : shards) {
+                    onEndpoint(shard, () -> {
+                        purgeChunks(job, detachSQL);
+                        return null;
+                    });
+                }
+                purgeChunks(job, detachSQL);
+                noteWrite("Transactions");
+            }
+            job.phase = "removing " + job.kind;
+            String table = PurgeJob.STORE.equals(job.kind) ? "Stores" : "Suppliers";
+            try (PreparedStatement ps = db().prepareStatement("DELETE FROM " + table + " WHERE " + job.merchandiseColumn() + " = ? AND retired")) {
+                ps.setInt(1, job.entityID);
+                ps.executeUpdate();
+            }
+            db().commit();
+            noteCommit();
+            noteWrite(table);
+            if (PurgeJob.STORE.equals(job.kind)) {
+                synchronized (reorderLock) {
+                    stockMatrix.removeStore(job.entityID);
+                }
+            }
+            job.phase = "done";
+        } catch (InterruptedException e) {
+            job.phase = "stopped, resumes at next start";
+        } catch (Exception e) {
+            job.phase = "failed, resumes at next start: " + e.getMessage();
+            try {
+                if (c != null) c.rollback();
+            } catch (SQLException ignored) {
+                // Connection already gone
+            }
+        } finally {
+            job.finishedAt = System.currentTimeMillis();
+            boundConnection.remove();
+            try {
+                if (c != null) c.close();
+            } catch (SQLException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // Delete the entity's Merchandise rows a chunk of keys at a time, taking each
+    // row's discounts and the transfers that point at it along in the same chunk
+    private static void purgeMerchandise(PurgeJob job) throws SQLException, InterruptedException {
+        Connection c = db();
+        boolean wasAutoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        try {
+            String keySQL = "SELECT storeID, productID FROM Merchandise WHERE " + job.merchandiseColumn() + " = ? " +
+                    "ORDER BY storeID, productID LIMIT " + PURGE_CHUNK_ROWS;
+            while (true) {
+                List<Long> keys = new ArrayList<>();
+                try (PreparedStatement ps = c.prepareStatement(keySQL)) {
+                    ps.setInt(1, job.entityID);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) keys.add(stockKey(rs.getInt(1), rs.getInt(2)));
+                    }
+                }
+                if (keys.isEmpty()) break;
+                long removed = 0;
+                removed += deleteByStockKeys(c, "DELETE FROM Discounts WHERE (storeID, productID) IN (", keys);
+                removed += deleteByStockKeys(c, "DELETE FROM Transfers WHERE (store2ID, product2ID) IN (", keys);
+                removed += deleteByStockKeys(c, "DELETE FROM Merchandise WHERE (storeID, productID) IN (", keys);
+                c.commit();
+                noteCommit();
+                noteWrite("Merchandise");
+                for (long key : keys) forgetMerchandise((int) (key >>> 32), (int) key);
+                job.rows.addAndGet(removed);
+                job.chunks.incrementAndGet();
+                throttlePurge();
+            }
+        } catch (SQLException | InterruptedException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(wasAutoCommit);
+        }
+    }
+
+    private static int deleteByStockKeys(Connection c, String prefix, List<Long> keys) throws SQLException {
+        StringBuilder sql = new StringBuilder(prefix);
+        appendTuples(sql, keys.size(), 2);
+        sql.append(")");
+        try (PreparedStatement ps = c.prepareStatement(sql.toString())) {
+            int index = 1;
+            for (long key : keys) {
+                ps.setInt(index++, (int) (key >>> 32));
+                ps.setInt(index++, (int) key);
+            }
+            return ps.executeUpdate();
+        }
+    }
+
+    // Repeat a LIMITed statement, committing each chunk, until it stops matching rows
+    private static void purgeChunks(PurgeJob job, String sql) throws SQLException, InterruptedException {
+        Connection c = db();
+        boolean wasAutoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        try {
+            int changed;
+            do {
+                try (PreparedStatement ps = c.prepareStatement(sql)) {
+                    ps.setInt(1, job.entityID);
+                    changed = ps.executeUpdate();
+                }
+                c.commit();
+                noteCommit();
+                job.rows.addAndGet(changed);
+                job.chunks.incrementAndGet();
+                throttlePurge();
+            } while (changed == PURGE_CHUNK_ROWS);
+        } catch (SQLException | InterruptedException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(wasAutoCommit);
+        }
+    }
+
+    private static void throttlePurge() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted()) throw new InterruptedException();
+        Thread.sleep(PURGE_PAUSE_MS);
+        yieldToCheckout();
+    }
+
+    private static String purgeStatus() {
+        if (purgeJobs.isEmpty()) {
+            return "No purge jobs.";
+        }
+        StringBuilder ans = new StringBuilder();
+        for (PurgeJob job : purgeJobs.values()) {
+            ans.append(job.describe()).append("\n");
+        }
+        return ans.toString();
+    }
+
+    private static synchronized void stopPurges() {
+        if (purgeWorker != null) {
+            purgeWorker.shutdownNow();
+            purgeWorker = null;
+        }
+    }
+
+    // ***********************************************************************
+    // CHANGE DATA CAPTURE
+    // Every insert, update and delete on a WolfWR table appends an event to
+    // ChangeOutbox from a trigger, so the event commits or rolls back with
+    // the change itself whichever method made it. Each shard has its own
+    // outbox and triggers for the tables it holds. A relay thread streams new
+    // events of every outbox in eventID order to a file or socket, one
+    // tab-separated line per event (eventID, table, I/U/D, key, time, source),
+    // and stores the last delivered eventID per source so it resumes where it
+    // stopped. Delivery is at least once; consumers skip (source, eventID)
+    // pairs they have already seen. The relay only moves past a missing
+    // eventID once no transaction that could still commit it is open.
+    // Triggers are only installed when a relay or coherence poller is
+    // configured, since nothing else reads or prunes the outbox.
+    // ***********************************************************************
+
+    // Key columns of each captured table, in the order they appear in rowKey
+    private static final String[][] CAPTURED_TABLES = {
+        {"Stores", "storeID"},
+        {"StaffMembers", "staffID"},
+        {"ClubMembers", "customerID"},
+        {"SignUps", "storeID", "customerID"},
+        {"Transactions", "transactionID"},
+        {"Suppliers", "supplierID"},
+        {"Merchandise", "storeID", "productID"},
+        {"Bills", "billID"},
+        {"Rewards", "rewardID"},
+        {"Discounts", "discountID"},
+        {"Transfers", "store1ID", "store2ID", "product1ID", "product2ID"},
+        {"StockEscrow", "storeID", "productID", "registerID"},
+        {"Payables", "supplierID"},
+    };
+
+    static final String CHANGE_OUTBOX_COLUMNS = "( " +
+            "eventID BIGINT AUTO_INCREMENT PRIMARY KEY, " +
+            "tableName VARCHAR(32) NOT NULL, " +
+            "op CHAR(1) NOT NULL, " +
+            "rowKey VARCHAR(64) NOT NULL, " +
+            "changedAt TIMESTAMP(6) NOT NULL DEFAULT CURRENT_TIMESTAMP(6)" +
+            ")";
+    static final String CHANGE_RELAY_PROGRESS_COLUMNS = "( " +
+            "source VARCHAR(16) PRIMARY KEY, " +
+            "relayedThrough BIGINT NOT NULL" +
+            ")";
+
+    // "file:<path>" or "socket:<host>:<port>"; unset leaves the relay off
+    static final String CDC_SINK = System.getProperty("wolfwr.cdcSink", "");
+    static final String CDC_OFFSET_FILE = System.getProperty("wolfwr.cdcOffsetFile", "cdc.offset");
+    static final int CDC_BATCH_SIZE = Integer.getInteger("wolfwr.cdcBatchSize", 500);
+    static final long CDC_IDLE_MS = 200;
+    static final long CDC_RETRY_MS = 2000;
+    // Relayed events are deleted from the outbox in chunks of this size
+    static final int CDC_PRUNE_ROWS = 1000;
+    static final long CDC_PRUNE_EVERY_MS = 10000;
+
+    private static volatile boolean relayRunning = false;
+    private static Thread changeRelay = null;
+    private static final List<RelaySource> relaySources = new CopyOnWriteArrayList<>();
+    private static volatile String relayError = null;
+    private static final AtomicLong relayedEvents = new AtomicLong();
+    private static final AtomicLong relayedBatches = new AtomicLong();
+    private static final AtomicLong relayGapsSkipped = new AtomicLong();
+
+    // One outbox the relay drains, the primary's or a shard's, with its own saved offset
+    private static final class RelaySource {
+        final String name;
+        final String url;
+        final String offsetFile;
+        Connection c;
+        volatile long offset;
+        volatile long highWater;
+        // First eventID after the gap the relay is holding at, and the server time it was first seen there
+        long gapBefore;
+        java.sql.Timestamp gapSeenAt;
+        // Missing eventIDs up to here can no longer be committed by anyone
+        long clearedThrough;
+        long lastPrune;
+        long retryAt;
+        // The offset last published to ChangeRelayProgress, -1 before the first
+        long published = -1;
+        volatile String error;
+
+        RelaySource(String name, String url, String offsetFile) {
+            this.name = name;
+            this.url = url;
+            this.offsetFile = offsetFile;
+            this.offset = readRelayOffset(offsetFile);
+        }
+    }
+
+    // Change events are recorded only when something reads them
+    static boolean captureEnabled() {
+        return !CDC_SINK.isEmpty() || COHERENCE_POLL_MS > 0;
+    }
+
+    private static String shardOffsetFile(int shard) {
+        return CDC_OFFSET_FILE + ".shard" + shard;
+    }
+
+    // Outbox and triggers on every shard, for the captured tables that shard holds
+    private static void installShardCapture() throws SQLException {
+        for (int i = 0; i < shards.length; i++) {
+            try (Statement st = shards[i].connection().createStatement()) {
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS ChangeOutbox " + CHANGE_OUTBOX_COLUMNS);
+                st.executeUpdate("CREATE TABLE IF NOT EXISTS ChangeRelayProgress " + CHANGE_RELAY_PROGRESS_COLUMNS);
+                long relayed = readRelayOffset(shardOffsetFile(i));
+                if (relayed > 0) {
+                    st.executeUpdate("ALTER TABLE ChangeOutbox AUTO_INCREMENT = " + (relayed + 1));
+                }
+                Set<String> present = new HashSet<>();
+                try (ResultSet rs = st.executeQuery("SELECT TABLE_NAME FROM information_schema.TABLES WHERE TABLE_SCHEMA = DATABASE()")) {
+                    while (rs.next()) present.add(rs.getString(1).toLowerCase(Locale.ROOT));
+                }
+                createChangeTriggers(st, present);
+            }
+        }
+    }
+
+    // One AFTER trigger per table and operation, for every captured table or only those
+    // in present (lower-cased names). An update that moves a row to a new key (a transfer
+    // does) is recorded as "oldKey>newKey".
+    private static void createChangeTriggers(Statement st, Set<String> present) throws SQLException {
+        for (String[] t : CAPTURED_TABLES) {
+            String table = t[0];
+            if (present != null && !present.contains(table.toLowerCase(Locale.ROOT))) continue;
+            String newKey = keyExpression("NEW", t);
+            String oldKey = keyExpression("OLD", t);
+            for (String op : new String[] {"ins", "upd", "del"}) {
+                st.executeUpdate("DROP TRIGGER IF EXISTS cdc_" + table + "_" + op);
+            }
+            st.executeUpdate("CREATE TRIGGER cdc_" + table + "_ins AFTER INSERT ON " + table + " FOR EACH ROW " +
+                    "INSERT INTO ChangeOutbox (tableName, op, rowKey) VALUES ('" + table + "', 'I', " + newKey + ")");
+            st.executeUpdate("CREATE TRIGGER cdc_" + table + "_upd AFTER UPDATE ON " + table + " FOR EACH ROW " +
+                    "INSERT INTO ChangeOutbox (tableName, op, rowKey) VALUES ('" + table + "', 'U', " +
+                    "IF(" + oldKey + " = " + newKey + ", " + newKey + ", CONCAT(" + oldKey + ", '>', " + newKey + ")))");
+            st.executeUpdate("CREATE TRIGGER cdc_" + table + "_del AFTER DELETE ON " + table + " FOR EACH ROW " +
+                    "INSERT INTO ChangeOutbox (tableName, op, rowKey) VALUES ('" + table + "', 'D', " + oldKey + ")");
+        }
+    }
+
+    private static String keyExpression(String row, String[] table) {
+        StringBuilder ans = new StringBuilder("CONCAT_WS(','");
+        for (int i = 1; i < table.length; i++) {
+            ans.append(", ").append(row).append('.').append(table[i]);
+        }
+        return ans.append(")").toString();
+    }
+
+    private static void startChangeRelay() {
+        if (CDC_SINK.isEmpty()) {
+            return;
+        }
+        relaySources.add(new RelaySource("primary", jdbcURL, CDC_OFFSET_FILE));
+        for (int i = 0; i < shards.length; i++) {
+            relaySources.add(new RelaySource("shard" + i, shards[i].url, shardOffsetFile(i)));
+        }
+        relayRunning = true;
+        changeRelay = new Thread(WolfWR::runChangeRelay, "wolfwr-cdc-relay");
+        changeRelay.setDaemon(true);
+        changeRelay.start();
+    }
+
+    private static void runChangeRelay() {
+        ChangeSink sink = null;
+        while (relayRunning) {
+            try {
+                if (sink == null) {
+                    sink = ChangeSink.open(CDC_SINK);
+                }
+                boolean more = false;
+                for (RelaySource source : relaySources) {
+                    if (System.currentTimeMillis() < source.retryAt) continue;
+                    try {
+                        more |= relayBatch(source, sink);
+                    } catch (SQLException e) {
+                        // This outbox is unreachable: the others carry on, and it resumes from its saved offset
+                        source.error = e.getMessage();
+                        source.retryAt = System.currentTimeMillis() + CDC_RETRY_MS;
+                        closeRelayConnection(source);
+                    }
+                }
+                relayError = null;
+                if (!more) {
+                    Thread.sleep(CDC_IDLE_MS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                // Sink unreachable: reopen it and carry on from the saved offsets
+                relayError = e.getMessage();
+                if (sink != null) sink.close();
+                sink = null;
+                try {
+                    Thread.sleep(CDC_RETRY_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        if (sink != null) sink.close();
+        for (RelaySource source : relaySources) {
+            closeRelayConnection(source);
+        }
+    }
+
+    private static void closeRelayConnection(RelaySource source) {
+        try {
+            if (source.c != null) source.c.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+        source.c = null;
+    }
+
+    /**
+     * Relay one batch of a source's events in eventID order, stopping at a missing eventID
+     * until no transaction that could still commit it is open. True when the caller should
+     * come back at once: the batch was full, or a gap was just cleared.
+     */
+    private static boolean relayBatch(RelaySource source, ChangeSink sink) throws SQLException, IOException {
+        if (source.c == null || !source.c.isValid(2)) {
+            source.c = openConnection(source.url);
+        }
+        Connection c = source.c;
+        StringBuilder lines = new StringBuilder();
+        long offset = source.offset;
+        int count = 0;
+        boolean holding = false;
+        try (PreparedStatement ps = c.prepareStatement("SELECT eventID, tableName, op, rowKey, changedAt FROM ChangeOutbox " +
+                "WHERE eventID > ? ORDER BY eventID LIMIT " + CDC_BATCH_SIZE)) {
+            ps.setLong(1, offset);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long eventID = rs.getLong(1);
+                    if (eventID != offset + 1 && eventID - 1 > source.clearedThrough) {
+                        if (source.gapBefore != eventID) {
+                            source.gapBefore = eventID;
+                            source.gapSeenAt = null;
+                        }
+                        holding = true;
+                        break;
+                    }
+                    if (eventID != offset + 1) relayGapsSkipped.incrementAndGet();
+                    lines.append(eventID).append('\t').append(rs.getString(2)).append('\t').append(rs.getString(3))
+                            .append('\t').append(rs.getString(4)).append('\t').append(rs.getTimestamp(5))
+                            .append('\t').append(source.name).append('\n');
+                    offset = eventID;
+                    count++;
+                }
+            }
+        }
+        if (count > 0) {
+            sink.write(lines.toString().getBytes(StandardCharsets.UTF_8));
+            saveRelayOffset(source, offset);
+            relayedEvents.addAndGet(count);
+            relayedBatches.incrementAndGet();
+        }
+        if (source.published != source.offset) {
+            // Lets pollers of other instances prune only what has been delivered
+            try (PreparedStatement ps = c.prepareStatement("INSERT INTO ChangeRelayProgress (source, relayedThrough) VALUES (?, ?) " +
+                    "ON DUPLICATE KEY UPDATE relayedThrough = VALUES(relayedThrough)")) {
+                ps.setString(1, source.name);
+                ps.setLong(2, source.offset);
+                ps.executeUpdate();
+            }
+            source.published = source.offset;
+        }
+        source.error = null;
+        if (System.currentTimeMillis() - source.lastPrune > CDC_PRUNE_EVERY_MS) {
+            source.lastPrune = System.currentTimeMillis();
+            source.highWater = pruneOutbox(c, source.offset);
+        }
+        if (holding && gapWritersDone(source)) {
+            // Whatever fills the gap has committed by now or never will; read again and move past what is still missing
+            source.clearedThrough = source.gapBefore - 1;
+            return true;
+        }
+        return count == CDC_BATCH_SIZE;
+    }
+
+    /**
+     * True once every transaction that was open when the relay first stopped at this gap
+     * has ended. A missing eventID was taken by a transaction that started before the
+     * later event was written, so after that it is either committed or rolled back.
+     */
+    private static boolean gapWritersDone(RelaySource source) throws SQLException {
+        if (source.gapSeenAt == null) {
+            try (Statement st = source.c.createStatement(); ResultSet rs = st.executeQuery("SELECT NOW()")) {
+                rs.next();
+                source.gapSeenAt = rs.getTimestamp(1);
+            }
+        }
+        try (PreparedStatement ps = source.c.prepareStatement("SELECT COUNT(*) FROM information_schema.INNODB_TRX " +
+                "WHERE trx_started <= ? AND trx_mysql_thread_id <> CONNECTION_ID()")) {
+            ps.setTimestamp(1, source.gapSeenAt);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() && rs.getLong(1) == 0;
+            }
+        }
+    }
+
+    private static long readRelayOffset(String file) {
+        try {
+            Path offsetFile = Paths.get(file);
+            if (Files.exists(offsetFile)) {
+                return Long.parseLong(new String(Files.readAllBytes(offsetFile), StandardCharsets.US_ASCII).trim());
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.out.println("CDC offset " + file + " unreadable, relaying from the start: " + e.getMessage());
+        }
+        return 0;
+    }
+
+    // The offset only moves once the sink has the batch
+    private static void saveRelayOffset(RelaySource source, long offset) throws IOException {
+        Path path = Paths.get(source.offsetFile);
+        Path temp = Paths.get(source.offsetFile + ".tmp");
+        Files.write(temp, Long.toString(offset).getBytes(StandardCharsets.US_ASCII));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        source.offset = offset;
+    }
+
+    // Drop events up to upTo a chunk at a time and return how far the outbox runs ahead.
+    // Events younger than OUTBOX_RETAIN_SECONDS stay for the cache pollers.
+    private static long pruneOutbox(Connection c, long upTo) throws SQLException {
+        try (PreparedStatement ps = c.prepareStatement("DELETE FROM ChangeOutbox WHERE eventID <= ? " +
+                "AND changedAt < NOW(6) - INTERVAL " + OUTBOX_RETAIN_SECONDS + " SECOND LIMIT " + CDC_PRUNE_ROWS)) {
+            ps.setLong(1, upTo);
+            while (!Thread.currentThread().isInterrupted() && ps.executeUpdate() == CDC_PRUNE_ROWS) {
+                // keep going until this pass has caught up
+            }
+        }
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(eventID), 0) FROM ChangeOutbox")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    private static abstract class ChangeSink {
+        abstract void write(byte[] batch) throws IOException;
+
+        abstract void close();
+
+        static ChangeSink open(String spec) throws IOException {
+            if (spec.startsWith("file:")) {
+                return new FileSink(Paths.get(spec.substring(5)));
+            }
+            if (spec.startsWith("socket:")) {
+                String target = spec.substring(7);
+                int colon = target.lastIndexOf(':');
+                return new SocketSink(target.substring(0, colon), Integer.parseInt(target.substring(colon + 1)));
+            }
+            throw new IOException("Unknown CDC sink " + spec);
+        }
+    }
+
+    // Appends to a local file and forces each batch to disk before the offset moves
+    private static final class FileSink extends ChangeSink {
+        private final FileChannel out;
+
+        FileSink(Path path) throws IOException {
+            out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+
+        void write(byte[] batch) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(batch);
+            while (b.hasRemaining()) out.write(b);
+            out.force(false);
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    // Streams to a TCP listener; a broken connection is reopened and the batch resent
+    private static final class SocketSink extends ChangeSink {
+        private final java.net.Socket socket;
+        private final java.io.OutputStream out;
+
+        SocketSink(String host, int port) throws IOException {
+            socket = new java.net.Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new java.io.BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        void write(byte[] batch) throws IOException {
+            out.write(batch);
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static String changeRelayStatus() {
+        if (CDC_SINK.isEmpty()) {
+            return captureEnabled() ? "CDC relay off (set wolfwr.cdcSink). Events collect in ChangeOutbox for the coherence poller."
+                    : "CDC relay off (set wolfwr.cdcSink). Change capture is off, no events are recorded.";
+        }
+        StringBuilder ans = new StringBuilder("CDC sink: " + CDC_SINK);
+        for (RelaySource source : relaySources) {
+            ans.append("\n").append(source.name).append(": relayed through eventID ").append(source.offset)
+                    .append(", behind (at last check): ").append(Math.max(0, source.highWater - source.offset));
+            if (source.gapBefore > source.offset + 1 && source.gapBefore - 1 > source.clearedThrough) {
+                ans.append(", waiting for eventID ").append(source.offset + 1).append(" (open transactions since ")
+                        .append(source.gapSeenAt).append(")");
+            }
+            if (source.error != null) ans.append(", last error: ").append(source.error);
+        }
+        return ans.append("\nEvents relayed: ").append(relayedEvents.get()).append(" in ").append(relayedBatches.get())
+                .append(" batches, gaps passed: ").append(relayGapsSkipped.get())
+                .append(relayError != null ? "\nLast sink error: " + relayError : "").toString();
+    }
+
+    private static void stopChangeRelay() {
+        relayRunning = false;
+        if (changeRelay != null) {
+            changeRelay.interrupt();
+            try {
+                changeRelay.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            changeRelay = null;
+        }
+    }
+
+    // ***********************************************************************
+    // REPORT CACHE
+    // Report results are kept by report name and parameters, and each entry
+    // remembers the version of every table it was computed from. noteWrite
+    // bumps a table's version, and noteCommit bumps it again for writes made
+    // inside a transaction, so a cached report is served until one of
+    // its source tables actually changes, its TTL runs out, or it is pushed
+    // out by newer entries (least recently used first). Partial results from
+    // a report that hit its deadline are never cached.
+    // ***********************************************************************
+
+    private static final String[] SALES_TABLES = {"Transactions"};
+    private static final String[] SALES_GROWTH_TABLES = {"Transactions", "StaffMembers"};
+    private static final String[] STOCK_TABLES = {"Merchandise", "StockEscrow"};
+    private static final String[] CUST_GROWTH_TABLES = {"ClubMembers", "SignUps"};
+
+    static final int REPORT_CACHE_ENTRIES = Integer.getInteger("wolfwr.reportCacheEntries", 256);
+    static final int DEFAULT_REPORT_CACHE_TTL_SECONDS = Integer.getInteger("wolfwr.reportCacheTtlSeconds", 300);
+    // Stock moves all day, so those reports are not trusted for as long
+    private static final Map<String, Integer> reportCacheTtls = new ConcurrentHashMap<>();
+    static {
+        reportCacheTtls.put("getMerchStockByStore", 60);
+        reportCacheTtls.put("getMerchStockByItem", 60);
+    }
+
+    private static final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    // Tables this thread wrote in its open transaction, bumped again by noteCommit
+    private static final ThreadLocal<Set<String>> uncommittedWrites = ThreadLocal.withInitial(HashSet::new);
+    // Stock moves of this thread's open transaction, {storeID, productID, delta}; the reorder engine sees them at commit
+    private static final ThreadLocal<List<int[]>> uncommittedStock = ThreadLocal.withInitial(ArrayList::new);
+    // Set while a report runs for the cache, so its recursive call does the real work
+    private static final ThreadLocal<Boolean> computingReport = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private static final class CachedReport {
+        final String result;
+        final String[] tables;
+        final long[] versions;
+        final long expiresAt;
+
+        CachedReport(String result, String[] tables, long[] versions, long expiresAt) {
+            this.result = result;
+            this.tables = tables;
+            this.versions = versions;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isCurrent(long now) {
+            if (now >= expiresAt) return false;
+            for (int i = 0; i < tables.length; i++) {
+                if (tableVersion(tables[i]) != versions[i]) return false;
+            }
+            return true;
+        }
+    }
+
+    // Access-ordered, so the eldest entry is the least recently used one
+    private static final LinkedHashMap<String, CachedReport> reportCache = new LinkedHashMap<String, CachedReport>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedReport> eldest) {
+            if (size() > REPORT_CACHE_ENTRIES) {
+                reportCacheEvictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final AtomicLong reportCacheHits = new AtomicLong();
+    private static final AtomicLong reportCacheMisses = new AtomicLong();
+    private static final AtomicLong reportCacheStale = new AtomicLong();
+    private static final AtomicLong reportCacheEvictions = new AtomicLong();
+
+    private static long tableVersion(String table) {
+        AtomicLong version = tableVersions.get(table);
+        return version == null ? 0 : version.get();
+    }
+
+    private static void bumpTableVersion(String table) {
+        tableVersions.computeIfAbsent(table, t -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static String cachedReport(String report, String[] tables, Callable<String> compute, Object... params) throws SQLException {
+        StringBuilder key = new StringBuilder(report);
+        for (Object param : params) {
+            key.append('\u0000').append(param);
+        }
+        String cacheKey = key.toString();
+        long now = System.currentTimeMillis();
+        synchronized (reportCache) {
+            CachedReport hit = coherentCachesUsable() ? reportCache.get(cacheKey) : null;
+            if (hit != null) {
+                if (hit.isCurrent(now)) {
+                    reportCacheHits.incrementAndGet();
+                    return hit.result;
+                }
+                reportCache.remove(cacheKey);
+                reportCacheStale.incrementAndGet();
+            }
+        }
+        reportCacheMisses.incrementAndGet();
+        // Versions are read before the query, so a write that lands while it runs
+        // leaves the entry already out of date rather than wrongly current. A write
+        // still inside a transaction bumps its table again when it commits, so an
+        // entry computed before that commit goes out of date with it.
+        long[] versions = new long[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            versions[i] = tableVersion(tables[i]);
+        }
+        String result;
+        computingReport.set(Boolean.TRUE);
+        try {
+            result = compute.call();
+        } catch (SQLException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new SQLException(report + " failed: " + e.getMessage(), e);
+        } finally {
+            computingReport.set(Boolean.FALSE);
+        }
+        if (result != null && !result.contains(deadlineMessage(report)) && coherentCachesUsable()) {
+            long ttl = reportCacheTtls.getOrDefault(report, DEFAULT_REPORT_CACHE_TTL_SECONDS) * 1000L;
+            synchronized (reportCache) {
+                reportCache.put(cacheKey, new CachedReport(result, tables, versions, now + ttl));
+            }
+        }
+        return result;
+    }
+
+    private static String reportCacheStats() {
+        int size;
+        synchronized (reportCache) {
+            size = reportCache.size();
+        }
+        long hits = reportCacheHits.get();
+        long lookups = hits + reportCacheMisses.get();
+        StringBuilder versions = new StringBuilder();
+        for (Map.Entry<String, AtomicLong> e : tableVersions.entrySet()) {
+            versions.append(versions.length() == 0 ? "" : ", ").append(e.getKey()).append('=').append(e.getValue().get());
+        }
+        return "Report cache entries: " + size + " of " + REPORT_CACHE_ENTRIES +
+                "\nHits: " + hits + " of " + lookups + " lookups (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%)" +
+                "\nInvalidated by writes or TTL: " + reportCacheStale.get() +
+                "\nEvicted: " + reportCacheEvictions.get() +
+                "\nTable versions: " + versions;
+    }
+
+    private static String clearReportCache() {
+        synchronized (reportCache) {
+            reportCache.clear();
+        }
+        return "Report cache cleared.";
+    }
+
+    // ***********************************************************************
+    // CACHE COHERENCE
+    // With several WolfWR processes on one database, a local cache is only
+    // as fresh as its knowledge of other processes' writes. The change
+    // triggers already log every changed row in ChangeOutbox, so that table
+    // doubles as the invalidation log: each process polls it for events past
+    // its cursor and hands each changed (table, key) to every registered
+    // cache, which evicts just that entry. If polling falls further behind
+    // than wolfwr.maxStalenessMs the caches stop serving until it catches up,
+    // which bounds how stale a cached value can be. A missing eventID is
+    // looked up again on each poll until it appears or no transaction that
+    // could still write it is open. Off unless wolfwr.coherencePollMs is set,
+    // since one process needs no polling. A poller trims the outbox only as
+    // far as every relay that has published its progress has delivered.
+    // ***********************************************************************
+
+    interface CacheInvalidator {
+        // rowKey is the row's key columns joined with commas, as the triggers write it
+        void invalidate(String table, String rowKey);
+
+        void invalidateAll();
+    }
+
+    static final long COHERENCE_POLL_MS = Long.getLong("wolfwr.coherencePollMs", 0L);
+    static final long MAX_STALENESS_MS = Long.getLong("wolfwr.maxStalenessMs", 5000L);
+    static final int OUTBOX_RETAIN_SECONDS = Integer.getInteger("wolfwr.outboxRetainSeconds", 300);
+    static final int COHERENCE_BATCH_SIZE = 1000;
+    // Past this many missing eventIDs the poller flushes every cache and stops tracking them
+    static final int COHERENCE_MAX_MISSING = 1000;
+
+    private static final List<CacheInvalidator> coherentCaches = new CopyOnWriteArrayList<>();
+    private static volatile boolean coherenceRunning = false;
+    private static Thread coherencePoller = null;
+    // Every event at or below the cursor has been applied or can no longer appear
+    private static volatile long coherenceCursor = -1;
+    // Highest eventID applied; events between the cursor and here are applied except the missing ones
+    private static volatile long coherenceApplied = -1;
+    // Missing eventIDs past the cursor, with the server time each was first noticed
+    private static final TreeMap<Long, java.sql.Timestamp> coherenceMissing = new TreeMap<>();
+    private static volatile long lastCoherentPoll = 0;
+    private static volatile String coherenceError = null;
+    private static final AtomicLong coherencePolls = new AtomicLong();
+    private static final AtomicLong coherenceEvictions = new AtomicLong();
+    private static final AtomicLong coherenceFlushes = new AtomicLong();
+    private static final AtomicLong stalenessMaxMs = new AtomicLong();
+    private static final AtomicLong stalenessTotalMs = new AtomicLong();
+    // Age of each event when it was applied, in power-of-two millisecond buckets
+    private static final AtomicLongArray stalenessHistogram = new AtomicLongArray(14);
+
+    static {
+        // A remote write to a table makes every cached report built on it stale
+        registerCoherentCache(new CacheInvalidator() {
+            public void invalidate(String table, String rowKey) {
+                bumpTableVersion(table);
+            }
+
+            public void invalidateAll() {
+                clearReportCache();
+            }
+        });
+    }
+
+    static void registerCoherentCache(CacheInvalidator cache) {
+        coherentCaches.add(cache);
+    }
+
+    // False while polling is too far behind to vouch for cached values
+    static boolean coherentCachesUsable() {
+        return COHERENCE_POLL_MS <= 0 || System.currentTimeMillis() - lastCoherentPoll <= MAX_STALENESS_MS;
+    }
+
+    private static void startCoherencePoller() {
+        if (COHERENCE_POLL_MS <= 0) {
+            return;
+        }
+        coherenceRunning = true;
+        coherencePoller = new Thread(WolfWR::runCoherencePoller, "wolfwr-coherence");
+        coherencePoller.setDaemon(true);
+        coherencePoller.start();
+    }
+
+    private static void runCoherencePoller() {
+        Connection c = null;
+        long lastPrune = 0;
+        while (coherenceRunning) {
+            try {
+                if (c == null || !c.isValid(2)) {
+                    c = openConnection(jdbcURL);
+                }
+                // Nothing is cached yet at start, and after a long outage the log may have
+                // been pruned past the cursor; either way start from the head
+                if (coherenceCursor < 0 || System.currentTimeMillis() - lastCoherentPoll > OUTBOX_RETAIN_SECONDS * 1000L) {
+                    if (coherenceCursor >= 0) flushCoherentCaches();
+                    try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(eventID), 0) FROM ChangeOutbox")) {
+                        rs.next();
+                        restartCoherence(rs.getLong(1));
+                    }
+                }
+                boolean more = pollInvalidations(c);
+                lastCoherentPoll = System.currentTimeMillis();
+                coherencePolls.incrementAndGet();
+                coherenceError = null;
+                // This process's relay trims the log itself; otherwise only as far as
+                // any relay elsewhere has delivered, and not at all before one has said
+                if (CDC_SINK.isEmpty() && lastCoherentPoll - lastPrune > CDC_PRUNE_EVERY_MS) {
+                    lastPrune = lastCoherentPoll;
+                    long relayed = relayedThrough(c);
+                    if (relayed >= 0) pruneOutbox(c, Math.min(coherenceCursor, relayed));
+                }
+                if (!more) {
+                    Thread.sleep(COHERENCE_POLL_MS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (SQLException e) {
+                coherenceError = e.getMessage();
+                c = null;
+                try {
+                    Thread.sleep(COHERENCE_POLL_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+        try {
+            if (c != null) c.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+    }
+
+    private static void restartCoherence(long head) {
+        coherenceMissing.clear();
+        coherenceApplied = head;
+        coherenceCursor = head;
+    }
+
+    // Lowest offset any relay has published for this outbox, or -1 if no relay has
+    private static long relayedThrough(Connection c) throws SQLException {
+        try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT MIN(relayedThrough) FROM ChangeRelayProgress")) {
+            if (rs.next()) {
+                long relayed = rs.getLong(1);
+                if (!rs.wasNull()) return relayed;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Apply events that filled earlier gaps, then one batch of new events past the highest
+     * applied eventID. Each event is applied once, and nothing already applied is read again.
+     * True when the batch was full and the caller should poll again at once.
+     */
+    private static boolean pollInvalidations(Connection c) throws SQLException {
+        // Whether a missing eventID can still appear is decided before reading, so a
+        // transaction that commits in between is in this read
+        java.sql.Timestamp oldestOpen = null;
+        boolean checked = false;
+        if (!coherenceMissing.isEmpty()) {
+            try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT MIN(trx_started) FROM information_schema.INNODB_TRX " +
+                    "WHERE trx_mysql_thread_id <> CONNECTION_ID()")) {
+                if (rs.next()) oldestOpen = rs.getTimestamp(1);
+                checked = true;
+            }
+            StringBuilder sql = new StringBuilder("SELECT eventID, tableName, rowKey, " +
+                    "TIMESTAMPDIFF(MICROSECOND, changedAt, NOW(6)) DIV 1000 AS ageMs FROM ChangeOutbox WHERE eventID IN (");
+            appendTuples(sql, coherenceMissing.size(), 1);
+            sql.append(")");
+            try (PreparedStatement ps = c.prepareStatement(sql.toString())) {
+                int index = 1;
+                for (long eventID : coherenceMissing.keySet()) ps.setLong(index++, eventID);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        applyInvalidation(rs.getString(2), rs.getString(3), rs.getLong(4));
+                        coherenceMissing.remove(rs.getLong(1));
+                    }
+                }
+            }
+            // Noticed before every transaction still open began, so nobody can write them any more
+            for (Iterator<java.sql.Timestamp> it = coherenceMissing.values().iterator(); checked && it.hasNext(); ) {
+                java.sql.Timestamp seenAt = it.next();
+                if (oldestOpen == null || seenAt.before(oldestOpen)) it.remove();
+            }
+        }
+
+        long applied = coherenceApplied;
+        List<Long> gaps = new ArrayList<>();
+        int count = 0;
+        try (PreparedStatement ps = c.prepareStatement("SELECT eventID, tableName, rowKey, " +
+                "TIMESTAMPDIFF(MICROSECOND, changedAt, NOW(6)) DIV 1000 AS ageMs FROM ChangeOutbox " +
+                "WHERE eventID > ? ORDER BY eventID LIMIT " + COHERENCE_BATCH_SIZE)) {
+            ps.setLong(1, applied);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    long eventID = rs.getLong(1);
+                    for (long missing = applied + 1; missing < eventID && gaps.size() <= COHERENCE_MAX_MISSING; missing++) {
+                        gaps.add(missing);
+                    }
+                    applyInvalidation(rs.getString(2), rs.getString(3), rs.getLong(4));
+                    applied = eventID;
+                    count++;
+                }
+            }
+        }
+        if (!gaps.isEmpty()) {
+            // Taken after the read, so it is no earlier than the start of any transaction holding a gap
+            java.sql.Timestamp now;
+            try (Statement st = c.createStatement(); ResultSet rs = st.executeQuery("SELECT NOW()")) {
+                rs.next();
+                now = rs.getTimestamp(1);
+            }
+            for (long missing : gaps) coherenceMissing.put(missing, now);
+        }
+        if (coherenceMissing.size() > COHERENCE_MAX_MISSING) {
+            // Too many holes to look up one by one; start over from a clean slate
+            flushCoherentCaches();
+            coherenceMissing.clear();
+        }
+        coherenceApplied = applied;
+        coherenceCursor = coherenceMissing.isEmpty() ? applied : coherenceMissing.firstKey() - 1;
+        return count == COHERENCE_BATCH_SIZE;
+    }
+
+    // Hand one changed row to every cache and record how stale the news was
+    private static void applyInvalidation(String table, String rowKey, long ageMs) {
+        ageMs = Math.max(0, ageMs);
+        // A key change is logged as "old>new"; both keys are stale
+        for (String key : rowKey.split(">")) {
+            for (CacheInvalidator cache : coherentCaches) {
+                cache.invalidate(table, key);
+            }
+        }
+        coherenceEvictions.incrementAndGet();
+        stalenessTotalMs.addAndGet(ageMs);
+        stalenessMaxMs.accumulateAndGet(ageMs, Math::max);
+        stalenessHistogram.incrementAndGet(histogramBucket(ageMs, stalenessHistogram.length()));
+    }
+
+    private static void flushCoherentCaches() {
+        coherenceFlushes.incrementAndGet();
+        for (CacheInvalidator cache : coherentCaches) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static String coherenceStats() {
+        if (COHERENCE_POLL_MS <= 0) {
+            return "Cache coherence polling off (set wolfwr.coherencePollMs when several instances share the database).";
+        }
+        long events = coherenceEvictions.get();
+        return "Polls: " + coherencePolls.get() + " every " + COHERENCE_POLL_MS + " ms, cursor at eventID " + coherenceCursor +
+                ", applied through " + coherenceApplied + " (" + coherenceMissing.size() + " missing)" +
+                "\nLast successful poll: " + (System.currentTimeMillis() - lastCoherentPoll) + " ms ago" +
+                (coherentCachesUsable() ? "" : " (caches bypassed, over the " + MAX_STALENESS_MS + " ms bound)") +
+                "\nInvalidations applied: " + events + ", full flushes: " + coherenceFlushes.get() +
+                "\nStaleness at eviction: max " + stalenessMaxMs.get() + " ms" +
+                (events == 0 ? "" : ", average " + stalenessTotalMs.get() / events + " ms") + "\n" +
+                formatHistogram(stalenessHistogram, "ms") +
+                (coherenceError != null ? "Last error: " + coherenceError : "");
+    }
+
+    private static void stopCoherencePoller() {
+        coherenceRunning = false;
+        if (coherencePoller != null) {
+            coherencePoller.interrupt();
+            try {
+                coherencePoller.join(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            coherencePoller = null;
+        }
+    }
+
+    // ***********************************************************************
+    // MEMBERSHIP CACHE
+    // Level, status and row version of every club member, packed into one
+    // long per member in an int-keyed open-addressing table, so reward
+    // eligibility and checkout loyalty checks need no query. Warmed at start
+    // up, kept current by the member insert/update/delete methods, and told
+    // about other instances' changes through the coherence poller. A miss
+    // reads the row and caches it.
+    // ***********************************************************************
+
+    static final long NO_MEMBER = -1;
+
+    // Packed value: bit 0 active, bits 1-15 level code, bits 32-62 row version
+    private static long packMember(String level, String status, int version) {
+        return ((long) version << 32) | ((long) memberLevelCode(level) << 1) | ("Active".equals(status) ? 1 : 0);
+    }
+
+    static boolean isActiveMember(long member) {
+        return member != NO_MEMBER && (member & 1) != 0;
+    }
+
+    static boolean isActivePlatinum(long member) {
+        return isActiveMember(member) && "Platinum".equals(memberLevelName(member));
+    }
+
+    static int memberVersion(long member) {
+        return (int) (member >>> 32);
+    }
+
+    static String memberLevelName(long member) {
+        return memberLevels.get((int) ((member >>> 1) & 0x7FFF));
+    }
+
+    // Level names are few; each gets a small code the first time it is seen
+    private static final List<String> memberLevels = new CopyOnWriteArrayList<>();
+
+    private static synchronized int memberLevelCode(String level) {
+        int code = memberLevels.indexOf(level);
+        if (code < 0) {
+            memberLevels.add(level);
+            code = memberLevels.size() - 1;
+        }
+        return code;
+    }
+
+    static final class MembershipCache {
+        private static final int EMPTY = Integer.MIN_VALUE;
+
+        private final java.util.concurrent.locks.StampedLock lock = new java.util.concurrent.locks.StampedLock();
+        private int[] keys;
+        private long[] values;
+        private int size;
+
+        MembershipCache(int capacity) {
+            allocate(Integer.highestOneBit(Math.max(16, capacity) * 2 - 1));
+        }
+
+        private void allocate(int capacity) {
+            keys = new int[capacity];
+            values = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+
+        private static int slot(int key, int mask) {
+            int h = key * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        // Lock-free on the common path; retries under the read lock if a writer got in the way
+        long get(int customerID) {
+            long stamp = lock.tryOptimisticRead();
+            long ans = find(keys, values, customerID);
+            if (!lock.validate(stamp)) {
+                stamp = lock.readLock();
+                try {
+                    ans = find(keys, values, customerID);
+                } finally {
+                    lock.unlockRead(stamp);
+                }
+            }
+            return ans;
+        }
+
+        private static long find(int[] k, long[] v, int key) {
+            if (k.length != v.length) return NO_MEMBER;
+            int mask = k.length - 1;
+            for (int i = slot(key, mask), probes = 0; probes < k.length; i = (i + 1) & mask, probes++) {
+                if (k[i] == key) return v[i];
+                if (k[i] == EMPTY) return NO_MEMBER;
+            }
+            return NO_MEMBER;
+        }
+
+        void put(int customerID, long member) {
+            long stamp = lock.writeLock();
+            try {
+                if ((size + 1) * 4 > keys.length * 3) {
+                    int[] oldKeys = keys;
+                    long[] oldValues = values;
+                    allocate(oldKeys.length * 2);
+                    for (int i = 0; i < oldKeys.length; i++) {
+                        if (oldKeys[i] != EMPTY) insert(oldKeys[i], oldValues[i]);
+                    }
+                }
+                insert(customerID, member);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private void insert(int key, long value) {
+            int mask = keys.length - 1;
+            int i = slot(key, mask);
+            while (keys[i] != EMPTY && keys[i] != key) i = (i + 1) & mask;
+            if (keys[i] == EMPTY) size++;
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        // Backward-shift delete keeps probe chains intact without tombstones
+        void remove(int customerID) {
+            long stamp = lock.writeLock();
+            try {
+                int mask = keys.length - 1;
+                int i = slot(customerID, mask);
+                while (keys[i] != customerID) {
+                    if (keys[i] == EMPTY) return;
+                    i = (i + 1) & mask;
+                }
+                size--;
+                int gap = i;
+                for (int j = (gap + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+                    int home = slot(keys[j], mask);
+                    // Move j back into the gap unless its home lies cyclically in (gap, j]
+                    if (((j - home) & mask) >= ((j - gap) & mask)) {
+                        keys[gap] = keys[j];
+                        values[gap] = values[j];
+                        gap = j;
+                    }
+                }
+                keys[gap] = EMPTY;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                allocate(keys.length);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return size;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    private static final MembershipCache memberCache = new MembershipCache(1024);
+    private static final AtomicLong memberCacheHits = new AtomicLong();
+    private static final AtomicLong memberCacheLoads = new AtomicLong();
+
+    static {
+        registerCoherentCache(new CacheInvalidator() {
+            public void invalidate(String table, String rowKey) {
+                if ("ClubMembers".equals(table)) memberCache.remove(Integer.parseInt(rowKey));
+            }
+
+            public void invalidateAll() {
+                memberCache.clear();
+            }
+        });
+    }
+
+    // Packed membership of a customer, or NO_MEMBER if there is no such club member
+    static long memberStatus(int customerID) throws SQLException {
+        long member = coherentCachesUsable() ? memberCache.get(customerID) : NO_MEMBER;
+        if (member != NO_MEMBER) {
+            memberCacheHits.incrementAndGet();
+            return member;
+        }
+        return refreshMember(customerID);
+    }
+
+    // Level of an active member for loyalty pricing at the register, null for anyone else
+    static String activeMemberLevel(int customerID) throws SQLException {
+        long member = memberStatus(customerID);
+        return isActiveMember(member) ? memberLevelName(member) : null;
+    }
+
+    private static long refreshMember(int customerID) throws SQLException {
+        memberCacheLoads.incrementAndGet();
+        try (PreparedStatement ps = db().prepareStatement("SELECT membershipLevel, custStatus, version FROM ClubMembers WHERE customerID = ?")) {
+            ps.setInt(1, customerID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) {
+                    memberCache.remove(customerID);
+                    return NO_MEMBER;
+                }
+                long member = packMember(rs.getString(1), rs.getString(2), rs.getInt(3));
+                memberCache.put(customerID, member);
+                return member;
+            }
+        }
+    }
+
+    private static void warmMembershipCache() {
+        try (Statement st = db().createStatement();
+             ResultSet rs = st.executeQuery("SELECT customerID, membershipLevel, custStatus, version FROM ClubMembers")) {
+            while (rs.next()) {
+                memberCache.put(rs.getInt(1), packMember(rs.getString(2), rs.getString(3), rs.getInt(4)));
+            }
+        } catch (SQLException e) {
+            System.out.println("Membership cache not warmed, members load on first use: " + e.getMessage());
+        }
+    }
+
+    private static String memberCacheStats() {
+        return "Members cached: " + memberCache.size() + ", hits: " + memberCacheHits.get() + ", loads: " + memberCacheLoads.get() +
+                ", levels: " + memberLevels;
+    }
+
+    // ***********************************************************************
+    // PRODUCT NAME INDEX
+    // Product names of each store, and of the chain as a whole, held in
+    // tries keyed on the lower-cased name. Checkout and the stock-by-item
+    // report resolve a typed name here and then read Merchandise by key,
+    // instead of scanning it with LOWER(). A name with no exact match gets
+    // prefix and edit-distance suggestions; the report accepts a single
+    // nearest name within the edit bound, but checkout sells only exact
+    // names and hands the suggestions back. Each trie has a bloom filter so
+    // names that were never indexed are turned away before any walk.
+    // Loaded at start up and kept current by the Merchandise write methods;
+    // rows other instances change are reloaded by key on the next lookup
+    // after the coherence poller reports them.
+    // ***********************************************************************
+
+    // Most edits a typed name may be from a product name and still match it
+    static final int PRODUCT_MAX_EDITS = Integer.getInteger("wolfwr.productMaxEdits", 2);
+    static final int PRODUCT_SUGGESTIONS = 5;
+
+    static final class ProductMatch {
+        final String name;
+        // productIDs in a store trie, storeIDs in the chain trie; one entry per Merchandise row
+        final int[] ids;
+        final int edits;
+
+        ProductMatch(String name, int[] ids, int edits) {
+            this.name = name;
+            this.ids = ids;
+            this.edits = edits;
+        }
+    }
+
+    static final class ProductTrie {
+        private static final class Node {
+            // Sorted child labels, so walks visit names in alphabetical order
+            char[] labels = new char[0];
+            Node[] children = new Node[0];
+            // Name as first entered, set while some row is filed under it
+            String name;
+            int[] ids = new int[0];
+
+            Node child(char c) {
+                int i = Arrays.binarySearch(labels, c);
+                return i >= 0 ? children[i] : null;
+            }
+
+            Node addChild(char c) {
+                int i = Arrays.binarySearch(labels, c);
+                if (i >= 0) return children[i];
+                i = -i - 1;
+                char[] l = new char[labels.length + 1];
+                Node[] n = new Node[children.length + 1];
+                System.arraycopy(labels, 0, l, 0, i);
+                System.arraycopy(children, 0, n, 0, i);
+                System.arraycopy(labels, i, l, i + 1, labels.length - i);
+                System.arraycopy(children, i, n, i + 1, children.length - i);
+                l[i] = c;
+                n[i] = new Node();
+                labels = l;
+                children = n;
+                return n[i];
+            }
+
+            void removeChild(char c) {
+                int i = Arrays.binarySearch(labels, c);
+                char[] l = new char[labels.length - 1];
+                Node[] n = new Node[children.length - 1];
+                System.arraycopy(labels, 0, l, 0, i);
+                System.arraycopy(children, 0, n, 0, i);
+                System.arraycopy(labels, i + 1, l, i, l.length - i);
+                System.arraycopy(children, i + 1, n, i, n.length - i);
+                labels = l;
+                children = n;
+            }
+        }
+
+        private final Node root = new Node();
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int names = 0;
+        // Bloom filter over indexed keys, about ten bits per name and three probes.
+        // Removals leave bits set, so it is rebuilt once enough of them pile up.
+        private long[] bloom = new long[16];
+        private int bloomRemovals = 0;
+
+        void add(String name, int id) {
+            String key = productKey(name);
+            lock.writeLock().lock();
+            try {
+                Node node = root;
+                for (int i = 0; i < key.length(); i++) {
+                    node = node.addChild(key.charAt(i));
+                }
+                node.ids = Arrays.copyOf(node.ids, node.ids.length + 1);
+                node.ids[node.ids.length - 1] = id;
+                if (node.ids.length == 1) {
+                    node.name = name.trim();
+                    names++;
+                    if (names * 10L > bloom.length * 64L) {
+                        rebuildBloom(bloom.length * 2);
+                    } else {
+                        bloomAdd(key);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String name, int id) {
+            String key = productKey(name);
+            lock.writeLock().lock();
+            try {
+                remove(root, key, 0, id);
+                if (bloomRemovals > 16 + names / 4) {
+                    rebuildBloom(bloom.length);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        // True when node is left with no names below it and can be unlinked
+        private boolean remove(Node node, String key, int depth, int id) {
+            if (depth == key.length()) {
+                for (int i = 0; i < node.ids.length; i++) {
+                    if (node.ids[i] != id) continue;
+                    int[] ids = new int[node.ids.length - 1];
+                    System.arraycopy(node.ids, 0, ids, 0, i);
+                    System.arraycopy(node.ids, i + 1, ids, i, ids.length - i);
+                    node.ids = ids;
+                    if (ids.length == 0) {
+                        node.name = null;
+                        names--;
+                        bloomRemovals++;
+                    }
+                    break;
+                }
+            } else {
+                char c = key.charAt(depth);
+                Node child = node.child(c);
+                if (child != null && remove(child, key, depth + 1, id)) {
+                    node.removeChild(c);
+                }
+            }
+            return node.ids.length == 0 && node.labels.length == 0;
+        }
+
+        // The name typed, ignoring case and spacing, or null
+        ProductMatch exact(String typed) {
+            String key = productKey(typed);
+            lock.readLock().lock();
+            try {
+                if (!bloomMightContain(key)) {
+                    productBloomRejects.incrementAndGet();
+                    return null;
+                }
+                Node node = find(key);
+                return node == null || node.ids.length == 0 ? null : new ProductMatch(node.name, node.ids.clone(), 0);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Names that begin with the typed text, alphabetically
+        List<ProductMatch> startingWith(String typed, int limit) {
+            List<ProductMatch> found = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                Node node = find(productKey(typed));
+                if (node != null) collect(node, found, limit);
+            } finally {
+                lock.readLock().unlock();
+            }
+            return found;
+        }
+
+        private void collect(Node node, List<ProductMatch> found, int limit) {
+            if (found.size() >= limit) return;
+            if (node.ids.length > 0) found.add(new ProductMatch(node.name, node.ids.clone(), 0));
+            for (Node child : node.children) {
+                collect(child, found, limit);
+            }
+        }
+
+        // Names at most maxEdits insertions, deletions or substitutions away, nearest first.
+        // One Levenshtein row per trie level, shared by every name below it, and a
+        // branch is abandoned once no cell in its row is within the bound.
+        List<ProductMatch> within(String typed, int maxEdits, int limit) {
+            String key = productKey(typed);
+            int[] first = new int[key.length() + 1];
+            for (int i = 0; i < first.length; i++) first[i] = i;
+            List<ProductMatch> found = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                if (root.ids.length > 0 && key.length() <= maxEdits) found.add(new ProductMatch(root.name, root.ids.clone(), key.length()));
+                for (int j = 0; j < root.labels.length; j++) {
+                    walkEdits(root.children[j], root.labels[j], key, first, maxEdits, found);
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            found.sort(Comparator.comparingInt((ProductMatch m) -> m.edits).thenComparing(m -> m.name));
+            return found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+        }
+
+        private static void walkEdits(Node node, char c, String key, int[] above, int maxEdits, List<ProductMatch> found) {
+            int[] row = new int[above.length];
+            row[0] = above[0] + 1;
+            int best = row[0];
+            for (int i = 1; i < row.length; i++) {
+                int substitute = above[i - 1] + (key.charAt(i - 1) == c ? 0 : 1);
+                row[i] = Math.min(substitute, Math.min(row[i - 1], above[i]) + 1);
+                best = Math.min(best, row[i]);
+            }
+            if (node.ids.length > 0 && row[key.length()] <= maxEdits) {
+                found.add(new ProductMatch(node.name, node.ids.clone(), row[key.length()]));
+            }
+            if (best > maxEdits) return;
+            for (int j = 0; j < node.labels.length; j++) {
+                walkEdits(node.children[j], node.labels[j], key, row, maxEdits, found);
+            }
+        }
+
+        int size() {
+            lock.readLock().lock();
+            try {
+                return names;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private Node find(String key) {
+            Node node = root;
+            for (int i = 0; i < key.length() && node != null; i++) {
+                node = node.child(key.charAt(i));
+            }
+            return node;
+        }
+
+        private void bloomAdd(String key) {
+            long h = bloomHash(key);
+            long bits = bloom.length * 64L;
+            for (int k = 0; k < 3; k++) {
+                long bit = Math.floorMod((int) h + k * ((int) (h >>> 32) | 1), bits);
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+
+        private boolean bloomMightContain(String key) {
+            long h = bloomHash(key);
+            long bits = bloom.length * 64L;
+            for (int k = 0; k < 3; k++) {
+                long bit = Math.floorMod((int) h + k * ((int) (h >>> 32) | 1), bits);
+                if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+            }
+            return true;
+        }
+
+        private void rebuildBloom(int words) {
+            bloom = new long[words];
+            bloomRemovals = 0;
+            addKeys(root, new StringBuilder());
+        }
+
+        private void addKeys(Node node, StringBuilder key) {
+            if (node.ids.length > 0) bloomAdd(key.toString());
+            for (int j = 0; j < node.labels.length; j++) {
+                key.append(node.labels[j]);
+                addKeys(node.children[j], key);
+                key.setLength(key.length() - 1);
+            }
+        }
+
+        // FNV-1a; its two halves give the probe start and stride
+        private static long bloomHash(String key) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < key.length(); i++) {
+                h ^= key.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+    }
+
+    // Index key of a name: trimmed, lower case, runs of spaces collapsed
+    static String productKey(String name) {
+        return name.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    private static final Object productIndexLock = new Object();
+    private static volatile Map<Integer, ProductTrie> storeProducts = new ConcurrentHashMap<>();
+    private static volatile ProductTrie chainProducts = new ProductTrie();
+    // Name each Merchandise row is filed under, by stockKey, so a rename or move finds the old entry
+    private static volatile Map<Long, String> indexedNames = new ConcurrentHashMap<>();
+    // Rows the coherence poller reported changed, reloaded before the next lookup
+    private static final Set<Long> staleProducts = ConcurrentHashMap.newKeySet();
+    private static volatile boolean productIndexLoaded = false;
+    private static final AtomicLong productLookups = new AtomicLong();
+    private static final AtomicLong productBloomRejects = new AtomicLong();
+    private static final AtomicLong productFuzzyResolves = new AtomicLong();
+    private static final AtomicLong productReloads = new AtomicLong();
+
+    static {
+        registerCoherentCache(new CacheInvalidator() {
+            public void invalidate(String table, String rowKey) {
+                if (!"Merchandise".equals(table)) return;
+                String[] key = rowKey.split(",");
+                staleProducts.add(stockKey(Integer.parseInt(key[0]), Integer.parseInt(key[1])));
+            }
+
+            public void invalidateAll() {
+                productIndexLoaded = false;
+            }
+        });
+    }
+
+    // File a Merchandise row under its name, or take it out of the index when name is null
+    static void indexProduct(int storeID, int productID, String name) {
+        synchronized (productIndexLock) {
+            long key = stockKey(storeID, productID);
+            String old = name == null ? indexedNames.remove(key) : indexedNames.put(key, name);
+            if (old != null) {
+                storeProducts.get(storeID).remove(old, productID);
+                chainProducts.remove(old, storeID);
+            }
+            if (name != null) {
+                storeProducts.computeIfAbsent(storeID, k -> new ProductTrie()).add(name, productID);
+                chainProducts.add(name, storeID);
+            }
+        }
+    }
+
+    // Follow transferred rows to their new keys
+    private static void reindexTransfers(List<TransferLine> lines) {
+        for (TransferLine line : lines) {
+            if (!line.applied) continue;
+            String name = indexedNames.get(stockKey(line.store1ID, line.product1ID));
+            if (name == null) continue;
+            indexProduct(line.store1ID, line.product1ID, null);
+            indexProduct(line.store2ID, line.product2ID, name);
+        }
+    }
+
+    // Build the whole index from Merchandise, on every shard when sharded, and swap it in
+    private static void loadProductIndex() throws SQLException {
+        synchronized (productIndexLock) {
+            staleProducts.clear();
+            Map<Integer, ProductTrie> stores = new ConcurrentHashMap<>();
+            ProductTrie chain = new ProductTrie();
+            Map<Long, String> names = new ConcurrentHashMap<>();
+            if (shards.length > 0) {
+                for (Endpoint shard : shards) {
+                    onEndpoint(shard, () -> {
+                        loadProductRows(stores, chain, names);
+                        return null;
+                    });
+                }
+            } else {
+                loadProductRows(stores, chain, names);
+            }
+            storeProducts = stores;
+            chainProducts = chain;
+            indexedNames = names;
+            productIndexLoaded = true;
+        }
+    }
+
+    private static void loadProductRows(Map<Integer, ProductTrie> stores, ProductTrie chain, Map<Long, String> names) throws SQLException {
+        try (Statement st = db().createStatement();
+             ResultSet rs = st.executeQuery("SELECT storeID, productID, productName FROM Merchandise")) {
+            while (rs.next()) {
+                int storeID = rs.getInt(1);
+                int productID = rs.getInt(2);
+                String name = rs.getString(3);
+                stores.computeIfAbsent(storeID, k -> new ProductTrie()).add(name, productID);
+                chain.add(name, storeID);
+                names.put(stockKey(storeID, productID), name);
+            }
+        }
+    }
+
+    private static void warmProductIndex() {
+        try {
+            loadProductIndex();
+        } catch (SQLException e) {
+            System.out.println("Product name index not loaded, lookups scan Merchandise until it is: " + e.getMessage());
+        }
+    }
+
+    // True when lookups can trust the index, once rows changed elsewhere are reloaded
+    private static boolean productIndexReady() throws SQLException {
+        if (!coherentCachesUsable()) {
+            return false;
+        }
+        if (!productIndexLoaded) {
+            loadProductIndex();
+        }
+        for (Iterator<Long> it = staleProducts.iterator(); it.hasNext(); ) {
+            long key = it.next();
+            it.remove();
+            try {
+                reloadProduct((int) (key >>> 32), (int) key);
+            } catch (SQLException e) {
+                staleProducts.add(key);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    private static String reloadProduct(int storeID, int productID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> reloadProduct(storeID, productID));
+        }
+        productReloads.incrementAndGet();
+        String name = null;
+        try (PreparedStatement ps = db().prepareStatement("SELECT productName FROM Merchandise WHERE storeID = ? AND productID = ?")) {
+            ps.setInt(1, storeID);
+            ps.setInt(2, productID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) name = rs.getString(1);
+            }
+        }
+        indexProduct(storeID, productID, name);
+        return name;
+    }
+
+    private static ProductTrie productTrie(int storeID) {
+        if (storeID <= 0) return chainProducts;
+        ProductTrie trie = storeProducts.get(storeID);
+        return trie != null ? trie : new ProductTrie();
+    }
+
+    // Edits allowed for a name this long; short names would match too much else
+    private static int editBudget(String typed) {
+        return Math.min(PRODUCT_MAX_EDITS, productKey(typed).length() / 4);
+    }
+
+    /**
+     * What a typed name means at a store (storeID 0 for the whole chain): the exact name
+     * ignoring case and spacing, else the one name nearer than any other within the edit
+     * budget. Null when nothing is close enough or two names are equally close.
+     */
+    static ProductMatch resolveProduct(int storeID, String typed) {
+        productLookups.incrementAndGet();
+        ProductTrie trie = productTrie(storeID);
+        ProductMatch match = trie.exact(typed);
+        if (match != null) {
+            return match;
+        }
+        List<ProductMatch> near = trie.within(typed, editBudget(typed), 2);
+        if (near.isEmpty() || (near.size() > 1 && near.get(1).edits == near.get(0).edits)) {
+            return null;
+        }
+        productFuzzyResolves.incrementAndGet();
+        return near.get(0);
+    }
+
+    // Names worth offering for a typed name: those starting with it, then the nearest ones
+    static List<String> suggestProducts(int storeID, String typed) {
+        ProductTrie trie = productTrie(storeID);
+        Set<String> names = new LinkedHashSet<>();
+        for (ProductMatch m : trie.startingWith(typed, PRODUCT_SUGGESTIONS)) names.add(m.name);
+        for (ProductMatch m : trie.within(typed, Math.max(1, editBudget(typed)), PRODUCT_SUGGESTIONS)) names.add(m.name);
+        List<String> ans = new ArrayList<>(names);
+        return ans.size() > PRODUCT_SUGGESTIONS ? ans.subList(0, PRODUCT_SUGGESTIONS) : ans;
+    }
+
+    private static String didYouMean(int storeID, String typed) {
+        List<String> names = suggestProducts(storeID, typed);
+        return names.isEmpty() ? "" : " (did you mean: " + String.join(", ", names) + "?)";
+    }
+
+    // Merchandise keys of every row filed under exactly this name, or null when the index can't say
+    private static List<Long> productKeys(String name) throws SQLException {
+        if (!productIndexReady()) {
+            return null;
+        }
+        List<Long> keys = new ArrayList<>();
+        ProductMatch chain = chainProducts.exact(name);
+        if (chain == null) {
+            return keys;
+        }
+        Set<Integer> stores = new TreeSet<>();
+        for (int storeID : chain.ids) stores.add(storeID);
+        for (int storeID : stores) {
+            ProductMatch match = productTrie(storeID).exact(name);
+            if (match == null) continue;
+            for (int productID : match.ids) keys.add(stockKey(storeID, productID));
+        }
+        return keys;
+    }
+
+    private static String searchProducts(int storeID, String typed) throws SQLException {
+        if (!productIndexReady()) {
+            return "Product name index unavailable, try again shortly.";
+        }
+        productLookups.incrementAndGet();
+        ProductTrie trie = productTrie(storeID);
+        String where = storeID <= 0 ? "across the chain" : "at store " + storeID;
+        StringBuilder ans = new StringBuilder();
+        ProductMatch exact = trie.exact(typed);
+        if (exact != null) {
+            ans.append("Exact match ").append(where).append(": ").append(exact.name)
+               .append(storeID <= 0 ? " (stores " : " (productIDs ").append(Arrays.toString(exact.ids)).append(")\n");
+        }
+        List<ProductMatch> prefixed = trie.startingWith(typed, PRODUCT_SUGGESTIONS);
+        if (!prefixed.isEmpty()) {
+            ans.append("Starting with '").append(typed.trim()).append("':");
+            for (ProductMatch m : prefixed) ans.append("\n  ").append(m.name);
+            ans.append("\n");
+        }
+        List<ProductMatch> near = trie.within(typed, Math.max(1, editBudget(typed)), PRODUCT_SUGGESTIONS);
+        if (!near.isEmpty()) {
+            ans.append("Close spellings:");
+            for (ProductMatch m : near) ans.append("\n  ").append(m.name).append(" (").append(m.edits).append(m.edits == 1 ? " edit)" : " edits)");
+            ans.append("\n");
+        }
+        return ans.length() == 0 ? "No product like '" + typed.trim() + "' " + where + "." : ans.toString().trim();
+    }
+
+    private static String productIndexStats() {
+        return "Product names indexed: " + chainProducts.size() + " chain-wide across " + storeProducts.size() + " stores" +
+                (productIndexLoaded ? "" : " (reload pending)") +
+                "\nLookups: " + productLookups.get() + ", bloom rejections: " + productBloomRejects.get() +
+                ", typo matches accepted: " + productFuzzyResolves.get() + ", rows reloaded: " + productReloads.get() +
+                ", rows awaiting reload: " + staleProducts.size();
+    }
+
+    // ***********************************************************************
+    // STOCK ESCROW
+    // Per-register stock quotas for hot items. Once an item sells often
+    // enough at a store, each register selling it reserves a chunk of its
+    // stock in one short transaction: the units come off the Merchandise row
+    // and onto the register's own StockEscrow row. Its checkouts then take
+    // from that row, which no other register touches, so registers stop
+    // queueing on the one hot Merchandise row. A background worker tops
+    // quotas up as they run low and hands idle ones back to Merchandise,
+    // including quotas left behind by an instance that stopped. A register
+    // is the cashier's staffID. Stock reports count escrowed units as on hand.
+    // ***********************************************************************
+
+    // Units a register reserves at a time; 0 turns escrow off
+    static final int ESCROW_CHUNK = Integer.getInteger("wolfwr.escrowChunk", 20);
+    // Checkout lines of one item at one store within a minute that make it hot
+    static final int ESCROW_HOT_SALES = Integer.getInteger("wolfwr.escrowHotSales", 30);
+    // A quota unused this long goes back to the Merchandise row
+    static final int ESCROW_IDLE_SECONDS = Integer.getInteger("wolfwr.escrowIdleSeconds", 60);
+
+    // Stock on hand of Merchandise row m, counting units held in register quotas
+    static final String ON_HAND = "(m.stockQuantity + COALESCE((SELECT SUM(e.reserved) FROM StockEscrow e " +
+            "WHERE e.storeID = m.storeID AND e.productID = m.productID), 0))";
+
+    // Units this instance's registers hold, by registerID then stockKey. Only saves
+    // attempts that would fail; the StockEscrow rows are what count.
+    private static final Map<Integer, Map<Long, AtomicInteger>> registerQuotas = new ConcurrentHashMap<>();
+    // Checkout lines per item in the current minute
+    private static final Map<Long, AtomicInteger> recentSales = new ConcurrentHashMap<>();
+    // Reservations queued or running, so a register asks once at a time per item
+    private static final Set<String> pendingReservations = ConcurrentHashMap.newKeySet();
+    private static volatile ScheduledExecutorService escrowWorker = null;
+    // Used only on the escrow worker thread
+    private static Connection escrowConnection = null;
+    private static volatile String escrowError = null;
+    private static final AtomicLong escrowReservations = new AtomicLong();
+    private static final AtomicLong escrowUnitsReserved = new AtomicLong();
+    private static final AtomicLong escrowSales = new AtomicLong();
+    private static final AtomicLong escrowFallbacks = new AtomicLong();
+    private static final AtomicLong escrowReturns = new AtomicLong();
+    private static final AtomicLong escrowUnitsReturned = new AtomicLong();
+
+    private static synchronized void startStockEscrow() {
+        if (ESCROW_CHUNK <= 0 || escrowWorker != null) {
+            return;
+        }
+        escrowWorker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "wolfwr-stock-escrow");
+            t.setDaemon(true);
+            return t;
+        });
+        escrowWorker.scheduleAtFixedRate(recentSales::clear, 1, 1, TimeUnit.MINUTES);
+        long every = Math.max(1, ESCROW_IDLE_SECONDS / 2);
+        escrowWorker.scheduleWithFixedDelay(() -> onEscrowWorker(() -> {
+            if (shards.length > 0) {
+                for (Endpoint shard : shards) {
+                    onEndpoint(shard, WolfWR::returnIdleQuotas);
+                }
+                return null;
+            }
+            return returnIdleQuotas();
+        }), every, every, TimeUnit.SECONDS);
+    }
+
+    // Run work on the escrow worker thread with the worker's own connection bound
+    private static void onEscrowWorker(Callable<String> work) {
+        try {
+            if (escrowConnection == null || !escrowConnection.isValid(2)) {
+                escrowConnection = openConnection(jdbcURL);
+            }
+            boundConnection.set(escrowConnection);
+            work.call();
+            escrowError = null;
+        } catch (Exception e) {
+            escrowError = e.getMessage();
+        } finally {
+            boundConnection.remove();
+        }
+    }
+
+    /**
+     * Take a checkout line from the register's quota, inside the checkout's own transaction.
+     * False when the quota can't cover it and the line has to come off the Merchandise row;
+     * either way a hot item's quota is topped up in the background when it runs low.
+     */
+    static boolean sellFromQuota(int storeID, int productID, int registerID, int quantity) throws SQLException {
+        if (escrowWorker == null || quantity <= 0) {
+            return false;
+        }
+        long key = stockKey(storeID, productID);
+        int sales = recentSales.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+        Map<Long, AtomicInteger> quotas = registerQuotas.computeIfAbsent(registerID, k -> new ConcurrentHashMap<>());
+        AtomicInteger quota = quotas.get(key);
+        boolean covered = false;
+        if (quota != null && quota.get() >= quantity) {
+            try (PreparedStatement ps = db().prepareStatement("UPDATE StockEscrow SET reserved = reserved - ? " +
+                    "WHERE storeID = ? AND productID = ? AND registerID = ? AND reserved >= ?")) {
+                ps.setInt(1, quantity);
+                ps.setInt(2, storeID);
+                ps.setInt(3, productID);
+                ps.setInt(4, registerID);
+                ps.setInt(5, quantity);
+                covered = ps.executeUpdate() > 0;
+            }
+            if (covered) {
+                quota.addAndGet(-quantity);
+                escrowSales.incrementAndGet();
+                noteWrite("StockEscrow");
+            } else {
+                // Returned or moved with a transfer since we last looked
+                quotas.remove(key, quota);
+                quota = null;
+            }
+        }
+        if (!covered) {
+            escrowFallbacks.incrementAndGet();
+        }
+        if (sales >= ESCROW_HOT_SALES && (quota == null || quota.get() <= ESCROW_CHUNK / 4)) {
+            requestReservation(storeID, productID, registerID);
+        }
+        return covered;
+    }
+
+    private static void requestReservation(int storeID, int productID, int registerID) {
+        ScheduledExecutorService worker = escrowWorker;
+        String pending = registerID + ":" + stockKey(storeID, productID);
+        if (worker == null || !pendingReservations.add(pending)) {
+            return;
+        }
+        try {
+            worker.execute(() -> {
+                try {
+                    onEscrowWorker(() -> reserveQuota(storeID, productID, registerID));
+                } finally {
+                    pendingReservations.remove(pending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Escrow stopping
+            pendingReservations.remove(pending);
+        }
+    }
+
+    // Move up to ESCROW_CHUNK units, and never more than half of what the row has,
+    // from the Merchandise row to the register's quota
+    private static String reserveQuota(int storeID, int productID, int registerID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> reserveQuota(storeID, productID, registerID));
+        }
+        Connection c = db();
+        boolean wasAutoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        int units = 0;
+        try {
+            try (PreparedStatement ps = c.prepareStatement("SELECT stockQuantity FROM Merchandise WHERE storeID = ? AND productID = ? FOR UPDATE")) {
+                ps.setInt(1, storeID);
+                ps.setInt(2, productID);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) units = Math.min(ESCROW_CHUNK, rs.getInt(1) / 2);
+                }
+            }
+            if (units > 0) {
+                try (PreparedStatement ps = c.prepareStatement("UPDATE Merchandise SET stockQuantity = stockQuantity - ?, version = version + 1 WHERE storeID = ? AND productID = ?")) {
+                    ps.setInt(1, units);
+                    ps.setInt(2, storeID);
+                    ps.setInt(3, productID);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = c.prepareStatement("INSERT INTO StockEscrow (storeID, productID, registerID, reserved) VALUES (?, ?, ?, ?) " +
+                        "ON DUPLICATE KEY UPDATE reserved = reserved + VALUES(reserved)")) {
+                    ps.setInt(1, storeID);
+                    ps.setInt(2, productID);
+                    ps.setInt(3, registerID);
+                    ps.setInt(4, units);
+                    ps.executeUpdate();
+                }
+            }
+            c.commit();
+            noteCommit();
+        } catch (SQLException e) {
+            c.rollback();
+            throw e;
+        } finally {
+            c.setAutoCommit(wasAutoCommit);
+        }
+        if (units > 0) {
+            registerQuotas.computeIfAbsent(registerID, k -> new ConcurrentHashMap<>())
+                    .computeIfAbsent(stockKey(storeID, productID), k -> new AtomicInteger()).addAndGet(units);
+            escrowReservations.incrementAndGet();
+            escrowUnitsReserved.addAndGet(units);
+            noteWrite("Merchandise");
+            noteWrite("StockEscrow");
+        }
+        return null;
+    }
+
+    // Hand every quota on this database that has sat unused for ESCROW_IDLE_SECONDS back to its row
+    private static String returnIdleQuotas() throws SQLException {
+        List<int[]> idle = new ArrayList<>();
+        try (PreparedStatement ps = db().prepareStatement("SELECT storeID, productID, registerID FROM StockEscrow " +
+                "WHERE lastUsed < NOW() - INTERVAL ? SECOND LIMIT 500")) {
+            ps.setInt(1, ESCROW_IDLE_SECONDS);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) idle.add(new int[] {rs.getInt(1), rs.getInt(2), rs.getInt(3)});
+            }
+        }
+        for (int[] q : idle) {
+            returnQuota(q[0], q[1], q[2], true);
+        }
+        return null;
+    }
+
+    /**
+     * Move a register's quota back onto the Merchandise row and drop its StockEscrow row.
+     * The Merchandise row is locked first, as a reservation does. A quota a checkout is
+     * using right now is skipped rather than waited for, and with idleOnly a quota used
+     * since it was picked is left alone.
+     */
+    private static int returnQuota(int storeID, int productID, int registerID, boolean idleOnly) throws SQLException {
+        if (needsShard(storeID)) {
+            int[] units = new int[1];
+            onShard(storeID, () -> {
+                units[0] = returnQuota(storeID, productID, registerID, idleOnly);
+                return null;
+            });
+            return units[0];
+        }
+        Connection c = db();
+        boolean wasAutoCommit = c.getAutoCommit();
+        c.setAutoCommit(false);
+        int units = 0;
+        try {
+            try (PreparedStatement ps = c.prepareStatement("SELECT 1 FROM Merchandise WHERE storeID = ? AND productID = ? FOR UPDATE")) {
+                ps.setInt(1, storeID);
+                ps.setInt(2, productID);
+                // Locked; nothing to read
+                ps.executeQuery().close();
+            }
+            boolean found = false;
+            try (PreparedStatement ps = c.prepareStatement("SELECT reserved FROM StockEscrow WHERE storeID = ? AND productID = ? AND registerID = ?" +
+                    (idleOnly ? " AND lastUsed < NOW() - INTERVAL " + ESCROW_IDLE_SECONDS + " SECOND" : "") + " FOR UPDATE NOWAIT")) {
+                ps.setInt(1, storeID);
+                ps.setInt(2, productID);
+                ps.setInt(3, registerID);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) {
+                        found = true;
+                        units = rs.getInt(1);
+                    }
+                }
+            }
+            if (found) {
+                try (PreparedStatement ps = c.prepareStatement("UPDATE Merchandise SET stockQuantity = stockQuantity + ?, version = version + 1 WHERE storeID = ? AND productID = ?")) {
+                    ps.setInt(1, units);
+                    ps.setInt(2, storeID);
+                    ps.setInt(3, productID);
+                    ps.executeUpdate();
+                }
+                try (PreparedStatement ps = c.prepareStatement("DELETE FROM StockEscrow WHERE storeID = ? AND productID = ? AND registerID = ?")) {
+                    ps.setInt(1, storeID);
+                    ps.setInt(2, productID);
+                    ps.setInt(3, registerID);
+                    ps.executeUpdate();
+                }
+            }
+            c.commit();
+            noteCommit();
+            if (found) {
+                Map<Long, AtomicInteger> quotas = registerQuotas.get(registerID);
+                if (quotas != null) quotas.remove(stockKey(storeID, productID));
+                escrowReturns.incrementAndGet();
+                escrowUnitsReturned.addAndGet(units);
+                noteWrite("Merchandise");
+                noteWrite("StockEscrow");
+            }
+        } catch (SQLException e) {
+            c.rollback();
+            // Busy quota; the next pass picks it up
+            if (lockConflict(e) == 0) throw e;
+        } finally {
+            c.setAutoCommit(wasAutoCommit);
+        }
+        return units;
+    }
+
+    // Give back every quota this instance holds, then stop the worker
+    private static synchronized void stopStockEscrow() {
+        if (escrowWorker == null) {
+            return;
+        }
+        Future<?> returned = escrowWorker.submit(() -> onEscrowWorker(() -> {
+            for (Map.Entry<Integer, Map<Long, AtomicInteger>> register : registerQuotas.entrySet()) {
+                for (long key : new ArrayList<>(register.getValue().keySet())) {
+                    returnQuota((int) (key >>> 32), (int) key, register.getKey(), false);
+                }
+            }
+            return null;
+        }));
+        try {
+            returned.get(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | java.util.concurrent.TimeoutException e) {
+            // Whatever is left is returned as idle by the next instance
+        }
+        escrowWorker.shutdownNow();
+        escrowWorker = null;
+        try {
+            if (escrowConnection != null) escrowConnection.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+        escrowConnection = null;
+    }
+
+    private static String escrowStats() {
+        if (ESCROW_CHUNK <= 0) {
+            return "Stock escrow off (wolfwr.escrowChunk is 0).";
+        }
+        int held = 0;
+        long units = 0;
+        for (Map<Long, AtomicInteger> quotas : registerQuotas.values()) {
+            for (AtomicInteger quota : quotas.values()) {
+                held++;
+                units += quota.get();
+            }
+        }
+        return "Quotas held by this instance: " + held + " (" + units + " units), chunk " + ESCROW_CHUNK +
+                ", hot at " + ESCROW_HOT_SALES + " lines a minute" +
+                "\nReservations: " + escrowReservations.get() + " (" + escrowUnitsReserved.get() + " units)" +
+                ", returns: " + escrowReturns.get() + " (" + escrowUnitsReturned.get() + " units)" +
+                "\nLines sold from quota: " + escrowSales.get() + ", from the Merchandise row: " + escrowFallbacks.get() +
+                (escrowError != null ? "\nLast error: " + escrowError : "");
+    }
+
+    // ***********************************************************************
+    // REORDER ENGINE
+    // Stock on hand of every Merchandise row against its reorder level,
+    // kept in an indexed min-heap ordered by slack (on hand minus reorder
+    // level), so the lowest items are always at the top without scanning
+    // Merchandise. Loaded once at start up and then moved by the methods
+    // that change stock: checkouts, transfers and inventory inserts,
+    // updates and deletes. When an item's slack drops to zero it raises a
+    // reorder event and joins its supplier's draft bill, sized to bring it
+    // back to twice its reorder level. Drafts become Bills through
+    // generateBill when billing staff issue them; each row keeps the ID of
+    // its bill in Merchandise.reorderBillID until it is restocked, so a
+    // restart loads it as billed rather than drafting it again. Checkout
+    // stock moves reach the engine only once their transaction commits.
+    // ***********************************************************************
+
+    static final int DEFAULT_REORDER_LEVEL = Integer.getInteger("wolfwr.reorderLevel", 10);
+    static final int REORDER_EVENTS_KEPT = 100;
+
+    // Min-heap of stockKeys by slack, with each key's heap position so a change is one sift
+    static final class StockHeap {
+        private long[] keys = new long[64];
+        private int[] slack = new int[64];
+        private int size = 0;
+        private final Map<Long, Integer> position = new HashMap<>();
+
+        void set(long key, int value) {
+            Integer at = position.get(key);
+            if (at == null) {
+                if (size == keys.length) {
+                    keys = Arrays.copyOf(keys, size * 2);
+                    slack = Arrays.copyOf(slack, size * 2);
+                }
+                keys[size] = key;
+                slack[size] = value;
+                position.put(key, size);
+                siftUp(size++);
+            } else {
+                int old = slack[at];
+                slack[at] = value;
+                if (value < old) siftUp(at);
+                else siftDown(at);
+            }
+        }
+
+        void remove(long key) {
+            Integer at = position.remove(key);
+            if (at == null) return;
+            size--;
+            if (at == size) return;
+            long moved = keys[size];
+            keys[at] = moved;
+            slack[at] = slack[size];
+            position.put(moved, at);
+            siftUp(at);
+            siftDown(position.get(moved));
+        }
+
+        void clear() {
+            size = 0;
+            position.clear();
+        }
+
+        // Keys with slack at most maxSlack, lowest first, walking only the top of the heap
+        List<Long> lowest(int limit, int maxSlack) {
+            List<Long> ans = new ArrayList<>();
+            PriorityQueue<Integer> frontier = new PriorityQueue<>(Comparator.comparingInt(i -> slack[i]));
+            if (size > 0) frontier.add(0);
+            while (!frontier.isEmpty() && ans.size() < limit) {
+                int i = frontier.poll();
+                if (slack[i] > maxSlack) break;
+                ans.add(keys[i]);
+                if (2 * i + 1 < size) frontier.add(2 * i + 1);
+                if (2 * i + 2 < size) frontier.add(2 * i + 2);
+            }
+            return ans;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (slack[parent] <= slack[i]) break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int least = i;
+                int left = 2 * i + 1;
+                if (left < size && slack[left] < slack[least]) least = left;
+                if (left + 1 < size && slack[left + 1] < slack[least]) least = left + 1;
+                if (least == i) return;
+                swap(i, least);
+                i = least;
+            }
+        }
+
+        private void swap(int a, int b) {
+            long k = keys[a];
+            keys[a] = keys[b];
+            keys[b] = k;
+            int s = slack[a];
+            slack[a] = slack[b];
+            slack[b] = s;
+            position.put(keys[a], a);
+            position.put(keys[b], b);
+        }
+    }
+
+    private static final class StockItem {
+        final int storeID, productID;
+        String name;
+        int onHand, reorderLevel, supplierID;
+        long buyPriceCents;
+        // Bill issued for the current low, 0 if none
+        int billID;
+
+        StockItem(int storeID, int productID) {
+            this.storeID = storeID;
+            this.productID = productID;
+        }
+
+        int slack() {
+            return onHand - reorderLevel;
+        }
+
+        // Units that bring the item back to twice its reorder level
+        int orderQuantity() {
+            return Math.max(1, 2 * reorderLevel - onHand);
+        }
+
+        public String toString() {
+            return name + " (store " + storeID + ", product " + productID + "): " + onHand + " on hand, reorder at " + reorderLevel;
+        }
+    }
+
+    private static final Object reorderLock = new Object();
+    private static final Map<Long, StockItem> stockItems = new HashMap<>();
+    private static final StockHeap stockHeap = new StockHeap();
+    // Items that crossed their reorder level and are not on an issued bill yet
+    private static final Set<Long> reorderPending = new TreeSet<>();
+    // Rows restocked since their bill, with that bill, whose link in Merchandise is still to be cleared
+    private static final Map<Long, Integer> reorderUnbilled = new HashMap<>();
+    private static final ArrayDeque<String> reorderEvents = new ArrayDeque<>();
+    // Rows the coherence poller reported changed elsewhere, reread before the next look
+    private static final Set<Long> staleStock = ConcurrentHashMap.newKeySet();
+    private static volatile boolean reorderLoaded = false;
+    // Slack each row had before a reload, so a reload raises no reorder twice
+    private static Map<Long, Integer> slackBeforeLoad = Collections.emptyMap();
+    private static final AtomicLong reorderEventCount = new AtomicLong();
+    private static final AtomicLong reorderBillsIssued = new AtomicLong();
+
+    static {
+        registerCoherentCache(new CacheInvalidator() {
+            public void invalidate(String table, String rowKey) {
+                if (!"Merchandise".equals(table) && !"StockEscrow".equals(table)) return;
+                String[] key = rowKey.split(",");
+                staleStock.add(stockKey(Integer.parseInt(key[0]), Integer.parseInt(key[1])));
+            }
+
+            public void invalidateAll() {
+                reorderLoaded = false;
+            }
+        });
+    }
+
+    // Re-rank an item after a change and raise or clear its reorder
+    private static void rankStock(StockItem item, int oldSlack) {
+        long key = stockKey(item.storeID, item.productID);
+        int slack = item.slack();
+        stockHeap.set(key, slack);
+        if (slack <= 0 && oldSlack > 0 && item.billID == 0) {
+            reorderPending.add(key);
+            reorderEventCount.incrementAndGet();
+            reorderEvents.addFirst(LocalDate.now() + " reorder " + item.orderQuantity() + " from supplier " + item.supplierID + ": " + item);
+            while (reorderEvents.size() > REORDER_EVENTS_KEPT) reorderEvents.removeLast();
+        } else if (slack > 0) {
+            // Restocked, before its bill went out or after; the next low needs a new bill
+            reorderPending.remove(key);
+            if (item.billID != 0) {
+                reorderUnbilled.put(key, item.billID);
+                item.billID = 0;
+            }
+        }
+    }
+
+    // Start tracking a row, or replace what is known about it
+    static void trackStock(int storeID, int productID, String name, int onHand, int reorderLevel, int supplierID, long buyPriceCents, int billID) {
+        synchronized (reorderLock) {
+            long key = stockKey(storeID, productID);
+            StockItem item = stockItems.get(key);
+            int oldSlack = item != null ? item.slack() : slackBeforeLoad.getOrDefault(key, Integer.MAX_VALUE);
+            if (item == null) {
+                item = new StockItem(storeID, productID);
+                stockItems.put(key, item);
+            }
+            item.name = name;
+            item.onHand = onHand;
+            item.reorderLevel = reorderLevel;
+            item.supplierID = supplierID;
+            item.buyPriceCents = buyPriceCents;
+            item.billID = billID;
+            rankStock(item, oldSlack);
+            stockMatrix.set(storeID, productID, onHand, reorderLevel);
+        }
+    }
+
+    // Stock changed by a write that may still roll back: applied now under autocommit, else at noteCommit
+    private static void stockChangedOnCommit(int storeID, int productID, int delta) throws SQLException {
+        if (db().getAutoCommit()) {
+            stockChanged(storeID, productID, delta);
+        } else {
+            uncommittedStock.get().add(new int[] {storeID, productID, delta});
+        }
+    }
+
+    // Stock of a tracked row went up or down by delta
+    static void stockChanged(int storeID, int productID, int delta) {
+        synchronized (reorderLock) {
+            StockItem item = stockItems.get(stockKey(storeID, productID));
+            if (item == null) return;
+            int oldSlack = item.slack();
+            item.onHand += delta;
+            rankStock(item, oldSlack);
+            stockMatrix.add(storeID, productID, delta);
+        }
+    }
+
+    // Apply the fields an inventory update set; null leaves a field as it was
+    static void stockUpdated(int storeID, int productID, String name, Integer onHand, Integer reorderLevel, Integer supplierID, Long buyPriceCents) {
+        synchronized (reorderLock) {
+            StockItem item = stockItems.get(stockKey(storeID, productID));
+            if (item == null) return;
+            int oldSlack = item.slack();
+            if (name != null) item.name = name;
+            if (onHand != null) item.onHand = onHand;
+            if (reorderLevel != null) item.reorderLevel = reorderLevel;
+            if (supplierID != null) item.supplierID = supplierID;
+            if (buyPriceCents != null) item.buyPriceCents = buyPriceCents;
+            rankStock(item, oldSlack);
+            stockMatrix.set(storeID, productID, item.onHand, item.reorderLevel);
+        }
+    }
+
+    static void untrackStock(int storeID, int productID) {
+        synchronized (reorderLock) {
+            long key = stockKey(storeID, productID);
+            stockItems.remove(key);
+            stockHeap.remove(key);
+            reorderPending.remove(key);
+            stockMatrix.clear(storeID, productID);
+        }
+    }
+
+    // Follow transferred rows to their new keys
+    private static void moveTrackedStock(List<TransferLine> lines) {
+        synchronized (reorderLock) {
+            for (TransferLine line : lines) {
+                if (!line.applied) continue;
+                long from = stockKey(line.store1ID, line.product1ID);
+                long to = stockKey(line.store2ID, line.product2ID);
+                StockItem item = stockItems.get(from);
+                if (item == null) continue;
+                boolean pending = reorderPending.contains(from);
+                untrackStock(line.store1ID, line.product1ID);
+                // Same stock under a new key; not a new crossing
+                StockItem moved = new StockItem(line.store2ID, line.product2ID);
+                moved.name = item.name;
+                moved.onHand = item.onHand;
+                moved.reorderLevel = item.reorderLevel;
+                moved.supplierID = item.supplierID;
+                moved.buyPriceCents = item.buyPriceCents;
+                moved.billID = item.billID;
+                stockItems.put(to, moved);
+                stockHeap.set(to, moved.slack());
+                if (pending) reorderPending.add(to);
+                stockMatrix.set(line.store2ID, line.product2ID, moved.onHand, moved.reorderLevel);
+            }
+        }
+    }
+
+    private static final String TRACKED_STOCK_SQL = "SELECT m.storeID, m.productID, m.productName, " + ON_HAND + ", m.reorderLevel, m.supplierID, " +
+            "CAST(m.buyPrice * 100 AS SIGNED), COALESCE(m.reorderBillID, 0) FROM Merchandise m";
+
+    // The one full read: every row, on every shard when sharded
+    private static void loadReorderEngine() throws SQLException {
+        synchronized (reorderLock) {
+            staleStock.clear();
+            Map<Long, Integer> before = new HashMap<>();
+            for (Map.Entry<Long, StockItem> entry : stockItems.entrySet()) before.put(entry.getKey(), entry.getValue().slack());
+            stockItems.clear();
+            stockHeap.clear();
+            stockMatrix.clearAll();
+            slackBeforeLoad = before;
+            try {
+                if (shards.length > 0) {
+                    for (Endpoint shard : shards) {
+                        onEndpoint(shard, WolfWR::loadTrackedStock);
+                    }
+                } else {
+                    loadTrackedStock();
+                }
+            } finally {
+                slackBeforeLoad = Collections.emptyMap();
+            }
+            reorderPending.retainAll(stockItems.keySet());
+            reorderUnbilled.keySet().retainAll(stockItems.keySet());
+            // Links to bills that never landed, from an issue cut short, leave their rows unbilled
+            Map<Integer, List<StockItem>> linked = new HashMap<>();
+            for (StockItem item : stockItems.values()) {
+                if (item.billID != 0) linked.computeIfAbsent(item.billID, k -> new ArrayList<>()).add(item);
+            }
+            if (!linked.isEmpty()) {
+                Set<Integer> issued = existingBills(linked.keySet());
+                for (Map.Entry<Integer, List<StockItem>> entry : linked.entrySet()) {
+                    if (issued.contains(entry.getKey())) continue;
+                    for (StockItem item : entry.getValue()) {
+                        item.billID = 0;
+                        reorderPending.add(stockKey(item.storeID, item.productID));
+                    }
+                }
+            }
+            reorderLoaded = true;
+        }
+    }
+
+    private static String loadTrackedStock() throws SQLException {
+        try (Statement st = db().createStatement(); ResultSet rs = st.executeQuery(TRACKED_STOCK_SQL)) {
+            while (rs.next()) {
+                trackStock(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getLong(7), rs.getInt(8));
+            }
+        }
+        return null;
+    }
+
+    // Which of these bills exist; Bills live on the primary
+    private static Set<Integer> existingBills(Set<Integer> billIDs) throws SQLException {
+        Set<Integer> found = new HashSet<>();
+        StringBuilder sql = new StringBuilder("SELECT billID FROM Bills WHERE billID IN (");
+        for (int i = 0; i < billIDs.size(); i++) sql.append(i == 0 ? "?" : ", ?");
+        try (PreparedStatement ps = primaryDb().prepareStatement(sql.append(")").toString())) {
+            int index = 1;
+            for (int billID : billIDs) ps.setInt(index++, billID);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) found.add(rs.getInt(1));
+            }
+        }
+        return found;
+    }
+
+    // Point a row at the bill that reorders it
+    private static String linkReorderBill(int storeID, int productID, int billID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> linkReorderBill(storeID, productID, billID));
+        }
+        try (PreparedStatement ps = db().prepareStatement("UPDATE Merchandise SET reorderBillID = ? WHERE storeID = ? AND productID = ?")) {
+            ps.setInt(1, billID);
+            ps.setInt(2, storeID);
+            ps.setInt(3, productID);
+            ps.executeUpdate();
+            noteWrite("Merchandise");
+        }
+        return null;
+    }
+
+    // Clear a row's link to billID; left alone if it was linked to a newer bill meanwhile
+    private static String unlinkReorderBill(int storeID, int productID, int billID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> unlinkReorderBill(storeID, productID, billID));
+        }
+        try (PreparedStatement ps = db().prepareStatement("UPDATE Merchandise SET reorderBillID = NULL WHERE storeID = ? AND productID = ? AND reorderBillID = ?")) {
+            ps.setInt(1, storeID);
+            ps.setInt(2, productID);
+            ps.setInt(3, billID);
+            if (ps.executeUpdate() > 0) noteWrite("Merchandise");
+        }
+        return null;
+    }
+
+    // Write out the links of rows restocked since their bill, so their next low is billed
+    private static void clearReorderBills() throws SQLException {
+        Map<Long, Integer> restocked;
+        synchronized (reorderLock) {
+            if (reorderUnbilled.isEmpty()) return;
+            restocked = new HashMap<>(reorderUnbilled);
+            reorderUnbilled.clear();
+        }
+        for (Iterator<Map.Entry<Long, Integer>> it = restocked.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Integer> entry = it.next();
+            long key = entry.getKey();
+            try {
+                unlinkReorderBill((int) (key >>> 32), (int) key, entry.getValue());
+                it.remove();
+            } catch (SQLException e) {
+                // Whatever is left goes out next time
+                synchronized (reorderLock) {
+                    for (Map.Entry<Long, Integer> left : restocked.entrySet()) reorderUnbilled.putIfAbsent(left.getKey(), left.getValue());
+                }
+                throw e;
+            }
+        }
+    }
+
+    private static void warmReorderEngine() {
+        try {
+            loadReorderEngine();
+        } catch (SQLException e) {
+            System.out.println("Reorder engine not loaded, it loads on first use: " + e.getMessage());
+        }
+    }
+
+    private static String reloadTrackedStock(int storeID, int productID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> reloadTrackedStock(storeID, productID));
+        }
+        try (PreparedStatement ps = db().prepareStatement(TRACKED_STOCK_SQL + " WHERE m.storeID = ? AND m.productID = ?")) {
+            ps.setInt(1, storeID);
+            ps.setInt(2, productID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    trackStock(storeID, productID, rs.getString(3), rs.getInt(4), rs.getInt(5), rs.getInt(6), rs.getLong(7), rs.getInt(8));
+                } else {
+                    untrackStock(storeID, productID);
+                }
+            }
+        }
+        return null;
+    }
+
+    // Load if needed and reread rows other instances changed, before answering from memory
+    private static void refreshReorderEngine() throws SQLException {
+        if (!reorderLoaded || !coherentCachesUsable()) {
+            loadReorderEngine();
+        }
+        for (Iterator<Long> it = staleStock.iterator(); it.hasNext(); ) {
+            long key = it.next();
+            it.remove();
+            try {
+                reloadTrackedStock((int) (key >>> 32), (int) key);
+            } catch (SQLException e) {
+                staleStock.add(key);
+                throw e;
+            }
+        }
+        clearReorderBills();
+    }
+
+    // Set the level at which a row is reordered
+    private static String setReorderLevel(int storeID, int productID, int reorderLevel) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> setReorderLevel(storeID, productID, reorderLevel));
+        }
+        if (reorderLevel < 0) {
+            return "Reorder level cannot be negative.";
+        }
+        try (PreparedStatement ps = db().prepareStatement("UPDATE Merchandise SET reorderLevel = ?, version = version + 1 WHERE storeID = ? AND productID = ?")) {
+            ps.setInt(1, reorderLevel);
+            ps.setInt(2, storeID);
+            ps.setInt(3, productID);
+            if (ps.executeUpdate() == 0) {
+                return "No merchandise for store " + storeID + " product " + productID + ".";
+            }
+            noteWrite("Merchandise");
+        }
+        stockUpdated(storeID, productID, null, null, reorderLevel, null, null);
+        return "Reorder level set.";
+    }
+
+    // Draft bills: pending reorders grouped by supplier, each line with its quantity and cost
+    private static Map<Integer, List<StockItem>> reorderDrafts() {
+        Map<Integer, List<StockItem>> drafts = new TreeMap<>();
+        for (long key : reorderPending) {
+            StockItem item = stockItems.get(key);
+            if (item != null) drafts.computeIfAbsent(item.supplierID, k -> new ArrayList<>()).add(item);
+        }
+        return drafts;
+    }
+
+    private static long draftTotalCents(List<StockItem> lines) {
+        long total = 0;
+        for (StockItem item : lines) {
+            total = Math.addExact(total, Math.multiplyExact(item.buyPriceCents, (long) item.orderQuantity()));
+        }
+        return total;
+    }
+
+    private static String lowStockReport() throws SQLException {
+        refreshReorderEngine();
+        StringBuilder ans = new StringBuilder();
+        synchronized (reorderLock) {
+            List<Long> low = stockHeap.lowest(20, 0);
+            ans.append(low.isEmpty() ? "No items at or below their reorder level." : "Lowest items:");
+            for (long key : low) {
+                ans.append("\n  ").append(stockItems.get(key));
+            }
+            Map<Integer, List<StockItem>> drafts = reorderDrafts();
+            for (Map.Entry<Integer, List<StockItem>> draft : drafts.entrySet()) {
+                ans.append("\nDraft bill for supplier ").append(draft.getKey()).append(": ")
+                   .append(java.math.BigDecimal.valueOf(draftTotalCents(draft.getValue()), 2));
+                for (StockItem item : draft.getValue()) {
+                    ans.append("\n  ").append(item.orderQuantity()).append(" x ").append(item.name)
+                       .append(" for store ").append(item.storeID).append(" at ").append(java.math.BigDecimal.valueOf(item.buyPriceCents, 2));
+                }
+            }
+            ans.append("\nTracked rows: ").append(stockHeap.size()).append(", reorder events: ").append(reorderEventCount.get())
+               .append(", bills issued: ").append(reorderBillsIssued.get());
+            if (!reorderEvents.isEmpty()) {
+                ans.append("\nRecent reorder events:");
+                int shown = 0;
+                for (String event : reorderEvents) {
+                    if (shown++ == 10) break;
+                    ans.append("\n  ").append(event);
+                }
+            }
+        }
+        return ans.toString();
+    }
+
+    // Turn every draft into an unpaid Bill through generateBill, one per supplier
+    private static String issueReorderBills(int staffID) throws SQLException {
+        refreshReorderEngine();
+        Map<Integer, List<StockItem>> drafts;
+        Map<Integer, List<Long>> keys = new HashMap<>();
+        synchronized (reorderLock) {
+            drafts = reorderDrafts();
+            for (Map.Entry<Integer, List<StockItem>> draft : drafts.entrySet()) {
+                List<Long> lines = new ArrayList<>();
+                for (StockItem item : draft.getValue()) lines.add(stockKey(item.storeID, item.productID));
+                keys.put(draft.getKey(), lines);
+            }
+        }
+        if (drafts.isEmpty()) {
+            return "No reorders waiting.";
+        }
+        StringBuilder ans = new StringBuilder();
+        for (Map.Entry<Integer, List<StockItem>> draft : drafts.entrySet()) {
+            long total;
+            synchronized (reorderLock) {
+                total = draftTotalCents(draft.getValue());
+            }
+            // Link the lines before the bill lands: a crash in between leaves links to a
+            // missing bill, which the next load drafts again, instead of a bill the rows forget
+            int billID = nextId(SEQ_BILLS);
+            List<Long> lines = keys.get(draft.getKey());
+            for (long key : lines) {
+                linkReorderBill((int) (key >>> 32), (int) key, billID);
+            }
+            String result = generateBill(billID, total, "unpaid", staffID, draft.getKey());
+            if (!"Billing info entered successfully.".equals(result)) {
+                for (long key : lines) {
+                    unlinkReorderBill((int) (key >>> 32), (int) key, billID);
+                }
+                ans.append("Supplier ").append(draft.getKey()).append(": ").append(result).append("\n");
+                continue;
+            }
+            synchronized (reorderLock) {
+                for (long key : lines) {
+                    StockItem item = stockItems.get(key);
+                    if (item != null && reorderPending.remove(key)) item.billID = billID;
+                }
+            }
+            reorderBillsIssued.incrementAndGet();
+            ans.append("Supplier ").append(draft.getKey()).append(", ").append(draft.getValue().size()).append(" lines, ")
+               .append(java.math.BigDecimal.valueOf(total, 2)).append(": bill ").append(billID).append(". ").append(result).append("\n");
+        }
+        return ans.toString().trim();
+    }
+
+    // ***********************************************************************
+    // EXPIRY TRACKER
+    // Expiration day of every Merchandise row that has one, in a two-level
+    // hierarchical timing wheel: 64 day slots for the current 64-day block,
+    // 64 block slots for the rest of the current 4096-day span, and a sorted
+    // map beyond that. Entries cascade down a level as the cursor reaches
+    // their block, so advancing a day only touches that day's slot. The
+    // cursor runs MARKDOWN_LEAD_DAYS ahead of today; each day it passes
+    // fires as one batch, and with MARKDOWN_PERCENT set each item in it gets
+    // a markdown discount through enterDiscountInfo running to its expiry.
+    // Loaded once at start up, kept current by inventory inserts, updates,
+    // deletes, transfers and purges, and checked hourly for a new day.
+    // ***********************************************************************
+
+    static final int MARKDOWN_LEAD_DAYS = Integer.getInteger("wolfwr.markdownLeadDays", 3);
+    // Markdown given to expiring items, in percent; 0 fires batches without discounting
+    static final double MARKDOWN_PERCENT = Double.parseDouble(System.getProperty("wolfwr.markdownPercent", "30"));
+    static final int EXPIRY_BATCHES_KEPT = 60;
+
+    static final class ExpiryWheel {
+        private static final int BITS = 6;
+        private static final int SLOTS = 1 << BITS;
+        private static final int MASK = SLOTS - 1;
+
+        private final List<Set<Long>> days = new ArrayList<>(SLOTS);
+        private final List<Set<Long>> blocks = new ArrayList<>(SLOTS);
+        private final TreeMap<Long, Set<Long>> far = new TreeMap<>();
+        // Added after the cursor passed their day; they fire on the next advance
+        private final Set<Long> overdue = new HashSet<>();
+        // Expiry epoch day of every entry not yet fired
+        private final Map<Long, Long> dayOf = new HashMap<>();
+        // Next day to fire
+        private long cursor;
+
+        ExpiryWheel(long firstDay) {
+            for (int i = 0; i < SLOTS; i++) {
+                days.add(new HashSet<>());
+                blocks.add(new HashSet<>());
+            }
+            cursor = firstDay;
+        }
+
+        void add(long key, long day) {
+            remove(key);
+            dayOf.put(key, day);
+            slotFor(day, true).add(key);
+        }
+
+        // Expiry day of a removed entry, or null if it was not waiting
+        Long remove(long key) {
+            Long day = dayOf.remove(key);
+            if (day != null) {
+                Set<Long> slot = slotFor(day, false);
+                if (slot != null) {
+                    slot.remove(key);
+                    if (slot.isEmpty() && day >= cursor && (day >> (2 * BITS)) != (cursor >> (2 * BITS))) far.remove(day);
+                }
+            }
+            return day;
+        }
+
+        // Where an entry for day lives given the current cursor
+        private Set<Long> slotFor(long day, boolean create) {
+            if (day < cursor) return overdue;
+            if ((day >> BITS) == (cursor >> BITS)) return days.get((int) (day & MASK));
+            if ((day >> (2 * BITS)) == (cursor >> (2 * BITS))) return blocks.get((int) ((day >> BITS) & MASK));
+            return create ? far.computeIfAbsent(day, k -> new HashSet<>()) : far.get(day);
+        }
+
+        /**
+         * Move the cursor past lastDay and hand each day's entries to fire, oldest day first.
+         * Entries that were overdue fire first, grouped by their own day.
+         */
+        void advance(long lastDay, java.util.function.BiConsumer<Long, List<Long>> fire) {
+            if (!overdue.isEmpty()) {
+                Map<Long, List<Long>> late = new TreeMap<>();
+                for (long key : overdue) late.computeIfAbsent(dayOf.remove(key), k -> new ArrayList<>()).add(key);
+                overdue.clear();
+                late.forEach(fire);
+            }
+            while (cursor <= lastDay) {
+                Set<Long> slot = days.get((int) (cursor & MASK));
+                if (!slot.isEmpty()) {
+                    List<Long> batch = new ArrayList<>(slot);
+                    slot.clear();
+                    for (long key : batch) dayOf.remove(key);
+                    fire.accept(cursor, batch);
+                }
+                cursor++;
+                if ((cursor & MASK) == 0) {
+                    if ((cursor & ((1L << (2 * BITS)) - 1)) == 0) {
+                        // New span: bring its entries in from the far map
+                        Map<Long, Set<Long>> span = far.headMap(cursor + (1L << (2 * BITS)));
+                        List<Set<Long>> moving = new ArrayList<>(span.values());
+                        List<Long> spanDays = new ArrayList<>(span.keySet());
+                        span.clear();
+                        for (int i = 0; i < moving.size(); i++) {
+                            for (long key : moving.get(i)) slotFor(spanDays.get(i), true).add(key);
+                        }
+                    }
+                    // New block: spread its entries over the day slots
+                    Set<Long> block = blocks.get((int) ((cursor >> BITS) & MASK));
+                    List<Long> moving = new ArrayList<>(block);
+                    block.clear();
+                    for (long key : moving) slotFor(dayOf.get(key), true).add(key);
+                }
+            }
+        }
+
+        // Entries due on or before lastDay with their days, soonest first, without moving the cursor
+        TreeMap<Long, List<Long>> upTo(long lastDay) {
+            TreeMap<Long, List<Long>> ans = new TreeMap<>();
+            for (long key : overdue) ans.computeIfAbsent(dayOf.get(key), k -> new ArrayList<>()).add(key);
+            for (long day = cursor; day <= lastDay && (day >> BITS) == (cursor >> BITS); day++) {
+                if (!days.get((int) (day & MASK)).isEmpty()) ans.put(day, new ArrayList<>(days.get((int) (day & MASK))));
+            }
+            for (long block = (cursor >> BITS) + 1; (block << BITS) <= lastDay && (block >> BITS) == (cursor >> (2 * BITS)); block++) {
+                for (long key : blocks.get((int) (block & MASK))) {
+                    long day = dayOf.get(key);
+                    if (day <= lastDay) ans.computeIfAbsent(day, k -> new ArrayList<>()).add(key);
+                }
+            }
+            for (Map.Entry<Long, Set<Long>> entry : far.headMap(lastDay + 1).entrySet()) {
+                ans.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            return ans;
+        }
+
+        Long dayOf(long key) {
+            return dayOf.get(key);
+        }
+
+        long cursor() {
+            return cursor;
+        }
+
+        int size() {
+            return dayOf.size();
+        }
+    }
+
+    private static final Object expiryLock = new Object();
+    private static ExpiryWheel expiryWheel = new ExpiryWheel(LocalDate.now().toEpochDay());
+    // Rows the coherence poller reported changed elsewhere, reread on the next tick
+    private static final Set<Long> staleExpiry = ConcurrentHashMap.newKeySet();
+    private static volatile boolean expiryLoaded = false;
+    private static final ArrayDeque<String> expiryBatches = new ArrayDeque<>();
+    private static ScheduledExecutorService expiryWorker = null;
+    // Used only on the expiry worker thread
+    private static Connection expiryConnection = null;
+    private static volatile String expiryError = null;
+    private static final AtomicLong expiryFired = new AtomicLong();
+    private static final AtomicLong markdownsCreated = new AtomicLong();
+
+    static {
+        registerCoherentCache(new CacheInvalidator() {
+            public void invalidate(String table, String rowKey) {
+                if (!"Merchandise".equals(table)) return;
+                String[] key = rowKey.split(",");
+                staleExpiry.add(stockKey(Integer.parseInt(key[0]), Integer.parseInt(key[1])));
+            }
+
+            public void invalidateAll() {
+                expiryLoaded = false;
+            }
+        });
+    }
+
+    // Track a row's expiry, or stop tracking it when expirationDate is null
+    static void trackExpiry(int storeID, int productID, String expirationDate) {
+        long key = stockKey(storeID, productID);
+        synchronized (expiryLock) {
+            if (expirationDate == null) {
+                expiryWheel.remove(key);
+            } else {
+                expiryWheel.add(key, LocalDate.parse(expirationDate).toEpochDay());
+            }
+        }
+    }
+
+    private static void moveTrackedExpiry(List<TransferLine> lines) {
+        synchronized (expiryLock) {
+            for (TransferLine line : lines) {
+                if (!line.applied) continue;
+                Long day = expiryWheel.remove(stockKey(line.store1ID, line.product1ID));
+                if (day != null) expiryWheel.add(stockKey(line.store2ID, line.product2ID), day);
+            }
+        }
+    }
+
+    // The one full read, at start up or after the coherence poller lost track
+    private static void loadExpiryTracker() throws SQLException {
+        synchronized (expiryLock) {
+            staleExpiry.clear();
+            // Days up to the old cursor already fired; don't fire them again
+            ExpiryWheel wheel = new ExpiryWheel(Math.max(expiryWheel.cursor(), LocalDate.now().toEpochDay()));
+            if (shards.length > 0) {
+                for (Endpoint shard : shards) {
+                    onEndpoint(shard, () -> loadExpiryRows(wheel));
+                }
+            } else {
+                loadExpiryRows(wheel);
+            }
+            expiryWheel = wheel;
+            expiryLoaded = true;
+        }
+    }
+
+    private static String loadExpiryRows(ExpiryWheel wheel) throws SQLException {
+        try (Statement st = db().createStatement();
+             ResultSet rs = st.executeQuery("SELECT storeID, productID, expirationDate FROM Merchandise WHERE expirationDate IS NOT NULL")) {
+            long firstDay = wheel.cursor();
+            while (rs.next()) {
+                long day = rs.getDate(3).toLocalDate().toEpochDay();
+                // Already past at load: marked down on an earlier run, or too late to
+                if (day >= firstDay) wheel.add(stockKey(rs.getInt(1), rs.getInt(2)), day);
+            }
+        }
+        return null;
+    }
+
+    private static String reloadExpiry(int storeID, int productID) throws SQLException {
+        if (needsShard(storeID)) {
+            return onShard(storeID, () -> reloadExpiry(storeID, productID));
+        }
+        String expirationDate = null;
+        try (PreparedStatement ps = db().prepareStatement("SELECT expirationDate FROM Merchandise WHERE storeID = ? AND productID = ?")) {
+            ps.setInt(1, storeID);
+            ps.setInt(2, productID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next() && rs.getDate(1) != null) expirationDate = rs.getDate(1).toString();
+            }
+        }
+        trackExpiry(storeID, productID, expirationDate);
+        return null;
+    }
+
+    private static synchronized void startExpiryTracker() {
+        if (expiryWorker != null) {
+            return;
+        }
+        expiryWorker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread t = new Thread(task, "wolfwr-expiry");
+            t.setDaemon(true);
+            return t;
+        });
+        expiryWorker.scheduleWithFixedDelay(() -> {
+            try {
+                if (expiryConnection == null || !expiryConnection.isValid(2)) {
+                    expiryConnection = openConnection(jdbcURL);
+                }
+                boundConnection.set(expiryConnection);
+                runExpiry();
+                expiryError = null;
+            } catch (SQLException e) {
+                expiryError = e.getMessage();
+            } finally {
+                boundConnection.remove();
+            }
+        }, 0, 1, TimeUnit.HOURS);
+    }
+
+    // Fire every day the cursor has reached, marking its items down
+    private static String runExpiry() throws SQLException {
+        if (!expiryLoaded || !coherentCachesUsable()) {
+            loadExpiryTracker();
+        }
+        for (Iterator<Long> it = staleExpiry.iterator(); it.hasNext(); ) {
+            long key = it.next();
+            it.remove();
+            reloadExpiry((int) (key >>> 32), (int) key);
+        }
+        Map<Long, List<Long>> due = new TreeMap<>();
+        synchronized (expiryLock) {
+            expiryWheel.advance(LocalDate.now().toEpochDay() + MARKDOWN_LEAD_DAYS, due::put);
+        }
+        StringBuilder ans = new StringBuilder();
+        for (Map.Entry<Long, List<Long>> batch : due.entrySet()) {
+            String summary = fireExpiryBatch(LocalDate.ofEpochDay(batch.getKey()), batch.getValue());
+            ans.append(summary).append("\n");
+        }
+        return due.isEmpty() ? "No expiry batches due." : ans.toString().trim();
+    }
+
+    // One day's batch: mark each item down from today until it expires, unless it already has a discount running
+    private static String fireExpiryBatch(LocalDate expires, List<Long> keys) {
+        expiryFired.incrementAndGet();
+        String today = LocalDate.now().toString();
+        int marked = 0;
+        int failed = 0;
+        // An item found after it expired is past marking down
+        if (MARKDOWN_PERCENT > 0 && !expires.isBefore(LocalDate.now())) {
+            for (long key : keys) {
+                int storeID = (int) (key >>> 32);
+                int productID = (int) key;
+                try {
+                    if (hasDiscountOn(storeID, productID, today)) continue;
+                    enterDiscountInfo(0, productID, storeID, MARKDOWN_PERCENT, today, expires.toString());
+                    marked++;
+                } catch (SQLException e) {
+                    failed++;
+                    expiryError = "store " + storeID + " product " + productID + ": " + e.getMessage();
+                }
+            }
+        }
+        markdownsCreated.addAndGet(marked);
+        String summary = today + ": " + keys.size() + " items expiring " + expires + ", " + marked + " marked down " + MARKDOWN_PERCENT + "%" +
+                (failed > 0 ? ", " + failed + " failed" : "");
+        synchronized (expiryBatches) {
+            expiryBatches.addFirst(summary);
+            while (expiryBatches.size() > EXPIRY_BATCHES_KEPT) expiryBatches.removeLast();
+        }
+        return summary;
+    }
+
+    private static boolean hasDiscountOn(int storeID, int productID, String day) throws SQLException {
+        if (needsShard(storeID)) {
+            boolean[] found = new boolean[1];
+            onShard(storeID, () -> {
+                found[0] = hasDiscountOn(storeID, productID, day);
+                return null;
+            });
+            return found[0];
+        }
+        try (PreparedStatement ps = db().prepareStatement("SELECT 1 FROM Discounts WHERE storeID = ? AND productID = ? " +
+                "AND discountStartDate <= ? AND discountEndDate >= ? LIMIT 1")) {
+            ps.setInt(1, storeID);
+            ps.setInt(2, productID);
+            ps.setDate(3, java.sql.Date.valueOf(day));
+            ps.setDate(4, java.sql.Date.valueOf(day));
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    // Items expiring within the next days, by day, and the batches fired so far
+    private static String expiryStatus(int days) {
+        StringBuilder ans = new StringBuilder();
+        long today = LocalDate.now().toEpochDay();
+        synchronized (expiryLock) {
+            ans.append("Tracking ").append(expiryWheel.size()).append(" expiry dates; batches fire ").append(MARKDOWN_LEAD_DAYS)
+               .append(" days ahead, next for ").append(LocalDate.ofEpochDay(expiryWheel.cursor()));
+            for (Map.Entry<Long, List<Long>> day : expiryWheel.upTo(today + days).entrySet()) {
+                List<String> rows = new ArrayList<>();
+                for (long key : day.getValue()) {
+                    if (rows.size() == 10) {
+                        rows.add("...");
+                        break;
+                    }
+                    rows.add("store " + (int) (key >>> 32) + " product " + (int) key);
+                }
+                ans.append("\n  ").append(LocalDate.ofEpochDay(day.getKey())).append(": ").append(day.getValue().size())
+                   .append(" items (").append(String.join(", ", rows)).append(")");
+            }
+        }
+        synchronized (expiryBatches) {
+            if (!expiryBatches.isEmpty()) {
+                ans.append("\nFired batches:");
+                for (String batch : expiryBatches) ans.append("\n  ").append(batch);
+            }
+        }
+        ans.append("\nBatches fired: ").append(expiryFired.get()).append(", markdowns created: ").append(markdownsCreated.get());
+        if (expiryError != null) ans.append("\nLast error: ").append(expiryError);
+        return ans.toString();
+    }
+
+    private static synchronized void stopExpiryTracker() {
+        if (expiryWorker != null) {
+            expiryWorker.shutdownNow();
+            expiryWorker = null;
+        }
+        try {
+            if (expiryConnection != null) expiryConnection.close();
+        } catch (SQLException e) {
+            // Closing anyway
+        }
+        expiryConnection = null;
+    }
+
+    // ***********************************************************************
+    // SUPPLIER PAYABLES
+    // One Payables row per supplier holding the unpaid and paid totals and
+    // bill counts, kept current by generateBill, updateBill and deleteBill
+    // in the same transaction as the bill itself, so a supplier's balance
+    // is a primary-key read instead of a scan of Bills. payBills settles a
+    // list of bills together: it locks them, flips them to paid with one
+    // statement per chunk, moves each supplier's total across once, and
+    // commits once.
+    // ***********************************************************************
+
+    // Bills per IN list when paying in bulk
+    static final int PAY_CHUNK = Integer.getInteger("wolfwr.payChunk", 500);
+
+    private static final AtomicLong billsPaid = new AtomicLong();
+    private static final AtomicLong paymentRuns = new AtomicLong();
+
+    // Run work as one transaction, or as part of the caller's if one is already open
+    private static String inBillTransaction(Callable<String> work) throws SQLException {
+        Connection c = db();
+        boolean own = c.getAutoCommit();
+        if (own) c.setAutoCommit(false);
+        try {
+            String ans = work.call();
+            if (own) {
+                c.commit();
+                noteCommit();
+            }
+            return ans;
+        } catch (Exception e) {
+            if (own) c.rollback();
+            if (e instanceof SQLException) throw (SQLException) e;
+            throw new SQLException("Bill operation failed: " + e.getMessage(), e);
+        } finally {
+            if (own) c.setAutoCommit(true);
+        }
+    }
+
+    // Lock a bill and return {supplierID, amount in cents, 1 if paid}, or null if there is none
+    private static long[] lockBill(int billID) throws SQLException {
+        String sql = "SELECT supplierID, CAST(amountOwed * 100 AS SIGNED), status FROM Bills WHERE billID = ? FOR UPDATE";
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
+            ps.setInt(1, billID);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) return null;
+                return new long[] {rs.getInt(1), rs.getLong(2), "paid".equals(rs.getString(3)) ? 1 : 0};
+            }
+        }
+    }
+
+    // Add cents and a bill count to one side of a supplier's ledger row
+    private static void adjustPayable(int supplierID, String status, long cents, int bills) throws SQLException {
+        String side = "paid".equals(status) ? "paid" : "unpaid";
+        String sql = "INSERT INTO Payables (supplierID, " + side + "Amount, " + side + "Bills) VALUES (?, ? / 100, ?) " +
+                "ON DUPLICATE KEY UPDATE " + side + "Amount = " + side + "Amount + VALUES(" + side + "Amount), " +
+                side + "Bills = " + side + "Bills + VALUES(" + side + "Bills)";
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
+            ps.setInt(1, supplierID);
+            ps.setLong(2, cents);
+            ps.setInt(3, bills);
+            ps.executeUpdate();
+        }
+        noteWrite("Payables");
+    }
+
+    // Mark every listed unpaid bill paid in one transaction; already paid or unknown IDs are skipped
+    public static String payBills(int[] billIDs) throws SQLException {
+        int[] ids = Arrays.stream(billIDs).distinct().sorted().toArray();
+        if (ids.length == 0) return "No bills to pay.";
+        return inBillTransaction(() -> {
+            // supplierID -> {cents, bills} moving from unpaid to paid
+            Map<Integer, long[]> moved = new TreeMap<>();
+            int paid = 0;
+            for (int from = 0; from < ids.length; from += PAY_CHUNK) {
+                int to = Math.min(ids.length, from + PAY_CHUNK);
+                String in = "?" + ", ?".repeat(to - from - 1);
+                // Sorted IDs take the row locks in a fixed order, so concurrent runs cannot deadlock
+                String lockSQL = "SELECT billID, supplierID, CAST(amountOwed * 100 AS SIGNED) FROM Bills " +
+                        "WHERE billID IN (" + in + ") AND status = 'unpaid' ORDER BY billID FOR UPDATE";
+                List<Integer> unpaid = new ArrayList<>();
+                try (PreparedStatement ps = db().prepareStatement(lockSQL)) {
+                    for (int i = from; i < to; i++) ps.setInt(i - from + 1, ids[i]);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        while (rs.next()) {
+                            unpaid.add(rs.getInt(1));
+                            long[] total = moved.computeIfAbsent(rs.getInt(2), k -> new long[2]);
+                            total[0] += rs.getLong(3);
+                            total[1]++;
+                        }
+                    }
+                }
+                if (unpaid.isEmpty()) continue;
+                String paySQL = "UPDATE Bills SET status = 'paid' WHERE billID IN (?" + ", ?".repeat(unpaid.size() - 1) + ")";
+                try (PreparedStatement ps = db().prepareStatement(paySQL)) {
+                    for (int i = 0; i < unpaid.size(); i++) ps.setInt(i + 1, unpaid.get(i));
+                    paid += ps.executeUpdate();
+                }
+            }
+            if (moved.isEmpty()) return "None of the " + ids.length + " bills were unpaid.";
+            String ledgerSQL = "UPDATE Payables SET unpaidAmount = unpaidAmount - ? / 100, unpaidBills = unpaidBills - ?, " +
+                    "paidAmount = paidAmount + ? / 100, paidBills = paidBills + ? WHERE supplierID = ?";
+            long totalCents = 0;
+            try (PreparedStatement ps = db().prepareStatement(ledgerSQL)) {
+                for (Map.Entry<Integer, long[]> e : moved.entrySet()) {
+                    long[] total = e.getValue();
+                    ps.setLong(1, total[0]);
+                    ps.setLong(2, total[1]);
+                    ps.setLong(3, total[0]);
+                    ps.setLong(4, total[1]);
+                    ps.setInt(5, e.getKey());
+                    ps.addBatch();
+                    totalCents += total[0];
+                }
+                ps.executeBatch();
+            }
+            noteWrite("Bills");
+            noteWrite("Payables");
+            billsPaid.addAndGet(paid);
+            paymentRuns.incrementAndGet();
+            return "Paid " + paid + " bills to " + moved.size() + " suppliers totalling " + java.math.BigDecimal.valueOf(totalCents, 2) +
+                   (paid < ids.length ? "; " + (ids.length - paid) + " were already paid or not found." : ".");
+        });
+    }
+
+    // A supplier's balance, or every supplier with a ledger row when supplierID is 0
+    private static String payables(int supplierID) throws SQLException {
+        String sql = "SELECT supplierID, CAST(unpaidAmount * 100 AS SIGNED), unpaidBills, CAST(paidAmount * 100 AS SIGNED), paidBills " +
+                "FROM Payables" + (supplierID > 0 ? " WHERE supplierID = ?" : " ORDER BY supplierID");
+        StringBuilder ans = new StringBuilder();
+        long unpaidCents = 0;
+        long paidCents = 0;
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
+            if (supplierID > 0) ps.setInt(1, supplierID);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    unpaidCents += rs.getLong(2);
+                    paidCents += rs.getLong(4);
+                    ans.append("Supplier ").append(rs.getInt(1))
+                       .append(": unpaid ").append(java.math.BigDecimal.valueOf(rs.getLong(2), 2)).append(" on ").append(rs.getInt(3)).append(" bills")
+                       .append(", paid ").append(java.math.BigDecimal.valueOf(rs.getLong(4), 2)).append(" on ").append(rs.getInt(5)).append(" bills\n");
+                }
+            }
+        }
+        if (ans.length() == 0) {
+            return supplierID > 0 ? "Nothing billed for supplier " + supplierID + "." : "No supplier bills yet.";
+        }
+        if (supplierID <= 0) {
+            ans.append("Total unpaid ").append(java.math.BigDecimal.valueOf(unpaidCents, 2))
+               .append(", paid ").append(java.math.BigDecimal.valueOf(paidCents, 2))
+               .append("; bulk payments: ").append(paymentRuns.get()).append(" runs, ").append(billsPaid.get()).append(" bills");
+        }
+        return ans.toString().trim();
+    }
+
+    // ***********************************************************************
+    // STOCK MATRIX AND REBALANCING
+    // On-hand stock of every store and product in flat int arrays, one row
+    // per store and one column per productID, kept by the reorder engine's
+    // hooks so it is filled by that engine's single load and follows every
+    // sale, update, delete and transfer after it. Transfers here move a
+    // whole Merchandise row to a store that does not hold that product yet,
+    // so the advisor looks for idle surplus: rows holding at least
+    // REBALANCE_SURPLUS_FACTOR times their reorder level that appear in no
+    // Transactions of the last REBALANCE_WINDOW_DAYS days while the same
+    // product sells elsewhere. Each goes to a store that lacks the product,
+    // busiest store first; retired stores neither give nor receive, and a
+    // purged store's row leaves the matrix. Products are planned
+    // independently, so they are planned in parallel on a snapshot taken
+    // under the engine's lock.
+    // ***********************************************************************
+
+    static final int REBALANCE_SURPLUS_FACTOR = Integer.getInteger("wolfwr.rebalanceSurplusFactor", 4);
+    // Days of sales history that decide whether a row is idle
+    static final int REBALANCE_WINDOW_DAYS = Integer.getInteger("wolfwr.rebalanceWindowDays", 30);
+
+    private static final AtomicLong rebalancePlans = new AtomicLong();
+    private static final AtomicLong rebalanceLinesApplied = new AtomicLong();
+
+    // Guarded by reorderLock, like the rest of the reorder engine's state
+    private static final StockMatrix stockMatrix = new StockMatrix();
+
+    static final class StockMatrix {
+        // onHand of a cell whose store does not stock the product
+        static final int NOT_STOCKED = Integer.MIN_VALUE;
+
+        final Map<Integer, Integer> rowOf = new HashMap<>();
+        final Map<Integer, Integer> columnOf = new HashMap<>();
+        int[] storeIDs = new int[8];
+        int[] productIDs = new int[64];
+        int stores, products;
+        // Cell (row, column) sits at row * columns + column
+        int columns = 64;
+        int[] onHand = filled(8 * 64, NOT_STOCKED);
+        int[] level = new int[8 * 64];
+
+        private static int[] filled(int length, int value) {
+            int[] cells = new int[length];
+            Arrays.fill(cells, value);
+            return cells;
+        }
+
+        private int row(int storeID) {
+            Integer row = rowOf.get(storeID);
+            if (row != null) return row;
+            if (stores == storeIDs.length) {
+                storeIDs = Arrays.copyOf(storeIDs, stores * 2);
+                int cells = storeIDs.length * columns;
+                int used = onHand.length;
+                onHand = Arrays.copyOf(onHand, cells);
+                Arrays.fill(onHand, used, cells, NOT_STOCKED);
+                level = Arrays.copyOf(level, cells);
+            }
+            storeIDs[stores] = storeID;
+            rowOf.put(storeID, stores);
+            return stores++;
+        }
+
+        private int column(int productID) {
+            Integer column = columnOf.get(productID);
+            if (column != null) return column;
+            if (products == columns) {
+                // Widen every row; cells keep their row and column
+                int wider = columns * 2;
+                int[] newOnHand = filled(storeIDs.length * wider, NOT_STOCKED);
+                int[] newLevel = new int[storeIDs.length * wider];
+                for (int r = 0; r < stores; r++) {
+                    System.arraycopy(onHand, r * columns, newOnHand, r * wider, columns);
+                    System.arraycopy(level, r * columns, newLevel, r * wider, columns);
+                }
+                onHand = newOnHand;
+                level = newLevel;
+                columns = wider;
+                productIDs = Arrays.copyOf(productIDs, wider);
+            }
+            productIDs[products] = productID;
+            columnOf.put(productID, products);
+            return products++;
+        }
+
+        // Cell of a key, or -1 when either side has never been seen
+        private int existing(int storeID, int productID) {
+            Integer row = rowOf.get(storeID);
+            Integer column = columnOf.get(productID);
+            return row == null || column == null ? -1 : row * columns + column;
+        }
+
+        void set(int storeID, int productID, int stock, int reorderLevel) {
+            int r = row(storeID);
+            int cell = r * columns + column(productID);
+            onHand[cell] = stock;
+            level[cell] = reorderLevel;
+        }
+
+        void add(int storeID, int productID, int delta) {
+            int cell = existing(storeID, productID);
+            if (cell < 0 || onHand[cell] == NOT_STOCKED) return;
+            onHand[cell] += delta;
+        }
+
+        void clear(int storeID, int productID) {
+            int cell = existing(storeID, productID);
+            if (cell < 0) return;
+            onHand[cell] = NOT_STOCKED;
+            level[cell] = 0;
+        }
+
+        // Drop a store's row; the last row takes its place
+        void removeStore(int storeID) {
+            Integer row = rowOf.remove(storeID);
+            if (row == null) return;
+            int last = --stores;
+            if (row != last) {
+                System.arraycopy(onHand, last * columns, onHand, row * columns, columns);
+                System.arraycopy(level, last * columns, level, row * columns, columns);
+                storeIDs[row] = storeIDs[last];
+                rowOf.put(storeIDs[row], row);
+            }
+            Arrays.fill(onHand, last * columns, (last + 1) * columns, NOT_STOCKED);
+            Arrays.fill(level, last * columns, (last + 1) * columns, 0);
+        }
+
+        // Keeps the row and column indexes, a reload refills the same shape
+        void clearAll() {
+            Arrays.fill(onHand, NOT_STOCKED);
+            Arrays.fill(level, 0);
+        }
+
+        StockMatrix copy() {
+            StockMatrix c = new StockMatrix();
+            c.rowOf.putAll(rowOf);
+            c.columnOf.putAll(columnOf);
+            c.storeIDs = Arrays.copyOf(storeIDs, stores);
+            c.productIDs = Arrays.copyOf(productIDs, products);
+            c.stores = stores;
+            c.products = products;
+            c.columns = columns;
+            c.onHand = Arrays.copyOf(onHand, stores * columns);
+            c.level = Arrays.copyOf(level, stores * columns);
+            return c;
+        }
+    }
+
+    // Moves for one product: idle surplus rows, largest first, each to a different store
+    // that lacks the product, taken in the given store order, which leaves out retired stores
+    private static List<TransferLine> planProduct(StockMatrix m, int[] sold, boolean[] retired, int column, int[] storeOrder) {
+        int selling = 0;
+        List<Integer> sources = new ArrayList<>();
+        for (int r = 0; r < m.stores; r++) {
+            int cell = r * m.columns + column;
+            if (m.onHand[cell] == StockMatrix.NOT_STOCKED || retired[r]) continue;
+            selling += sold[cell];
+            if (sold[cell] == 0 && m.onHand[cell] >= REBALANCE_SURPLUS_FACTOR * Math.max(1, m.level[cell])) sources.add(r);
+        }
+        if (selling == 0 || sources.isEmpty()) {
+            return Collections.emptyList();
+        }
+        sources.sort((a, b) -> Integer.compare(m.onHand[b * m.columns + column], m.onHand[a * m.columns + column]));
+        List<TransferLine> lines = new ArrayList<>();
+        int next = 0;
+        for (int r : storeOrder) {
+            if (next == sources.size()) break;
+            if (m.onHand[r * m.columns + column] != StockMatrix.NOT_STOCKED) continue;
+            int source = sources.get(next++);
+            lines.add(new TransferLine(m.storeIDs[source], m.storeIDs[r], m.productIDs[column], m.productIDs[column]));
+        }
+        return lines;
+    }
+
+    // The recommended manifest, in product order, at most MAX_MANIFEST_LINES lines
+    private static List<TransferLine> planRebalance() throws SQLException {
+        refreshReorderEngine();
+        // Stores still open; a store purged elsewhere also leaves this matrix here
+        Set<Integer> open = new HashSet<>();
+        Set<Integer> existing = new HashSet<>();
+        try (Statement st = primaryDb().createStatement(); ResultSet rs = st.executeQuery("SELECT storeID, retired FROM Stores")) {
+            while (rs.next()) {
+                existing.add(rs.getInt(1));
+                if (!rs.getBoolean(2)) open.add(rs.getInt(1));
+            }
+        }
+        StockMatrix m;
+        // productID of each tracked row, by store and name as checkout lists it in Transactions
+        Map<Integer, Map<String, Integer>> productsByName = new HashMap<>();
+        synchronized (reorderLock) {
+            for (int storeID : new ArrayList<>(stockMatrix.rowOf.keySet())) {
+                if (!existing.contains(storeID)) stockMatrix.removeStore(storeID);
+            }
+            m = stockMatrix.copy();
+            for (StockItem item : stockItems.values()) {
+                productsByName.computeIfAbsent(item.storeID, k -> new HashMap<>()).put(productKey(item.name), item.productID);
+            }
+        }
+        int[] sold = new int[m.stores * m.columns];
+        if (shards.length > 0) {
+            for (Endpoint shard : shards) {
+                onEndpoint(shard, () -> readWindowSales(m, productsByName, sold));
+            }
+        } else {
+            readWindowSales(m, productsByName, sold);
+        }
+        boolean[] retired = new boolean[m.stores];
+        for (int r = 0; r < m.stores; r++) retired[r] = !open.contains(m.storeIDs[r]);
+        // Busiest stores receive first
+        long[] storeSold = new long[m.stores];
+        for (int r = 0; r < m.stores; r++) {
+            for (int c = 0; c < m.products; c++) storeSold[r] += sold[r * m.columns + c];
+        }
+        int[] storeOrder = java.util.stream.IntStream.range(0, m.stores).filter(r -> !retired[r]).boxed()
+                .sorted((a, b) -> storeSold[a] != storeSold[b] ? Long.compare(storeSold[b], storeSold[a]) : Integer.compare(m.storeIDs[a], m.storeIDs[b]))
+                .mapToInt(Integer::intValue).toArray();
+        List<List<TransferLine>> perProduct = java.util.stream.IntStream.range(0, m.products).parallel()
+                .mapToObj(c -> planProduct(m, sold, retired, c, storeOrder))
+                .collect(java.util.stream.Collectors.toList());
+        List<TransferLine> plan = new ArrayList<>();
+        for (List<TransferLine> lines : perProduct) {
+            for (TransferLine line : lines) {
+                if (plan.size() == MAX_MANIFEST_LINES) break;
+                plan.add(line);
+            }
+        }
+        rebalancePlans.incrementAndGet();
+        return plan;
+    }
+
+    // Count each cell's sales lines in the window; Transactions lists products by name
+    private static String readWindowSales(StockMatrix m, Map<Integer, Map<String, Integer>> productsByName, int[] sold) throws SQLException {
+        String sql = "SELECT storeID, productList FROM Transactions WHERE purchaseDate >= ? AND storeID IS NOT NULL";
+        try (PreparedStatement ps = db().prepareStatement(sql)) {
+            ps.setDate(1, java.sql.Date.valueOf(LocalDate.now().minusDays(REBALANCE_WINDOW_DAYS)));
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Integer row = m.rowOf.get(rs.getInt(1));
+                    Map<String, Integer> products = productsByName.get(rs.getInt(1));
+                    if (row == null || products == null) continue;
+                    for (String item : rs.getString(2).split(",")) {
+                        Integer column = m.columnOf.get(products.get(productKey(item)));
+                        if (column != null) sold[row * m.columns + column]++;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String rebalanceAdvice() throws SQLException {
+        List<TransferLine> plan = planRebalance();
+        StringBuilder ans = new StringBuilder();
+        synchronized (reorderLock) {
+            ans.append("Stock matrix: ").append(stockMatrix.stores).append(" stores x ").append(stockMatrix.products).append(" products");
+        }
+        if (plan.isEmpty()) {
+            return ans.append("\nNo idle surplus to move; stock with no sales in the last " + REBALANCE_WINDOW_DAYS + " days, while selling elsewhere, shows up here.").toString();
+        }
+        ans.append("\nRecommended transfers (").append(plan.size()).append("):");
+        for (TransferLine line : plan) ans.append("\n  ").append(line);
+        return ans.append("\nPlans computed: ").append(rebalancePlans.get()).append(", lines applied so far: ").append(rebalanceLinesApplied.get()).toString();
+    }
+
+    // Recompute the plan and run it as one transfer manifest
+    private static String applyRebalance(String transferDate, int staffID) throws SQLException {
+        List<TransferLine> plan = planRebalance();
+        if (plan.isEmpty()) {
+            return "Nothing to rebalance.";
+        }
+        String result = processTransferManifest(plan, transferDate, staffID);
+        for (TransferLine line : plan) {
+            if (line.applied) rebalanceLinesApplied.incrementAndGet();
+        }
+        return result;
     }
 
 }
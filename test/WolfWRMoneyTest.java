@@ -0,0 +1,159 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Exact-rounding checks for WolfWR.Money. The project has no build file, so this runs as a
+ * plain program next to WolfWR.java:
+ *
+ *   javac -d out WolfWR.java test/WolfWRMoneyTest.java
+ *   java -cp out WolfWRMoneyTest
+ *
+ * It prints every failed check and exits with status 1 if there was any.
+ */
+public class WolfWRMoneyTest {
+
+    private static final List<String> failures = new ArrayList<>();
+    private static int checks = 0;
+
+    public static void main(String[] args) {
+        halfCentDiscounts();
+        basisPointPercentages();
+        negativeAmounts();
+        consoleAmounts();
+        largeTotals();
+        overflow();
+        perLineRounding();
+
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        System.out.println(checks + " checks, " + failures.size() + " failed.");
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    // A discount landing on exactly half a cent rounds up, like DECIMAL(10,2)
+    private static void halfCentDiscounts() {
+        // 5 cents at 10% off is 4.5 cents
+        check("5c at 10% off", 5, WolfWR.Money.discounted(5, 1, 1000));
+        // 1.25 at 50% off is 62.5 cents
+        check("1.25 at 50% off", 63, WolfWR.Money.discounted(125, 1, 5000));
+        // 3 x 0.15 at 50% off is 22.5 cents
+        check("3 x 0.15 at 50% off", 23, WolfWR.Money.discounted(15, 3, 5000));
+        // Just under half a cent rounds down: 0.49 at 1% off is 48.51 cents
+        check("0.49 at 1% off", 49, WolfWR.Money.discounted(49, 1, 100));
+        check("0.01 at 50% off", 1, WolfWR.Money.discounted(1, 1, 5000));
+        check("0.01 at 50.01% off", 0, WolfWR.Money.discounted(1, 1, 5001));
+        check("no discount", 1999, WolfWR.Money.discounted(1999, 1, 0));
+        check("free", 0, WolfWR.Money.discounted(1999, 7, WolfWR.Money.WHOLE_BP));
+    }
+
+    // Promotions and the reward rate are whole basis points, so fractional percents stay exact
+    private static void basisPointPercentages() {
+        // 12.5% of 10.00
+        check("12.5% of 10.00", 125, WolfWR.Money.percentOf(1000, 1250));
+        // 0.01% of 50.00 is half a cent
+        check("0.01% of 50.00", 1, WolfWR.Money.percentOf(5000, 1));
+        check("0.01% of 49.99", 0, WolfWR.Money.percentOf(4999, 1));
+        // 2% reward on 12.25 is 24.5 cents
+        check("2% of 12.25", 25, WolfWR.Money.percentOf(1225, 200));
+        // 33.33% off 3 x 1.00 is 200.01 cents
+        check("3 x 1.00 at 33.33% off", 200, WolfWR.Money.discounted(100, 3, 3333));
+        check("100% of 7.77", 777, WolfWR.Money.percentOf(777, WolfWR.Money.WHOLE_BP));
+    }
+
+    // Refunds and corrections round half away from zero, mirroring positive amounts
+    private static void negativeAmounts() {
+        check("-0.05 at 10% off", -5, WolfWR.Money.discounted(-5, 1, 1000));
+        check("2% of -12.25", -25, WolfWR.Money.percentOf(-1225, 200));
+        check("-7 * 3 / 4", -5, WolfWR.Money.mulDivHalfUp(-7, 3, 4));
+        check("-5 * 1 / 4", -1, WolfWR.Money.mulDivHalfUp(-5, 1, 4));
+    }
+
+    // Console input goes through its shortest decimal form, not the binary double
+    private static void consoleAmounts() {
+        check("1.005", 101, WolfWR.Money.fromDouble(1.005));
+        check("2.675", 268, WolfWR.Money.fromDouble(2.675));
+        check("0.1 + 0.2", 30, WolfWR.Money.fromDouble(0.1 + 0.2));
+        check("19.99", 1999, WolfWR.Money.fromDouble(19.99));
+        check("-1.005", -101, WolfWR.Money.fromDouble(-1.005));
+        check("99999999.99", 9999999999L, WolfWR.Money.fromDouble(99999999.99));
+    }
+
+    // Lines near the top of the range and totals past a double's exact cents still round exactly
+    private static void largeTotals() {
+        // The largest line discounted() takes is Long.MAX_VALUE / WHOLE_BP cents
+        long big = 900000000000001L;
+        check("9000000000000.01 no discount", big, WolfWR.Money.discounted(big, 1, 0));
+        check("9000000000000.01 at 50% off", 450000000000001L, WolfWR.Money.discounted(big, 1, 5000));
+        // Largest DECIMAL(10,2) price times a large quantity
+        // 99999999.99 x 1000 at 0.01% off is 9998999999000.1 cents
+        check("99999999.99 x 1000 at 0.01% off", 9998999999000L, WolfWR.Money.discounted(9999999999L, 1000, 1));
+        long total = 0;
+        for (int i = 0; i < 1000; i++) {
+            total = Math.addExact(total, WolfWR.Money.discounted(9999999999L, 1000, 0));
+        }
+        // Past 2^53 cents, where a double total would start dropping cents
+        check("1000 lines of 99999999.99 x 1000", 9999999999L * 1000 * 1000, total);
+        check("2^53 + 1 cents", (1L << 53) + 1, Math.addExact(1L << 53, WolfWR.Money.discounted(1, 1, 0)));
+    }
+
+    // Amounts too large for a long fail loudly instead of wrapping
+    private static void overflow() {
+        checkThrows("unit x quantity overflow", () -> WolfWR.Money.discounted(Long.MAX_VALUE / 2, 3, 0));
+        checkThrows("amount x bp overflow", () -> WolfWR.Money.percentOf(Long.MAX_VALUE / 100, 200));
+        checkThrows("basket total overflow", () -> {
+            long total = WolfWR.Money.discounted(Long.MAX_VALUE / WolfWR.Money.WHOLE_BP, 1, 0);
+            for (int i = 0; i < WolfWR.Money.WHOLE_BP + 1; i++) {
+                total = Math.addExact(total, WolfWR.Money.discounted(Long.MAX_VALUE / WolfWR.Money.WHOLE_BP, 1, 0));
+            }
+        });
+        checkThrows("too many digits", () -> WolfWR.Money.fromDouble(1e30));
+    }
+
+    // Checkout rounds each line and adds the rounded lines, so a receipt's lines always add up to its total
+    private static void perLineRounding() {
+        long[] units = {5, 5, 15, 125};
+        int[] quantities = {1, 1, 3, 1};
+        long[] promotions = {1000, 1000, 5000, 5000};
+        long perLine = 0;
+        long before = 0;
+        for (int i = 0; i < units.length; i++) {
+            perLine = Math.addExact(perLine, WolfWR.Money.discounted(units[i], quantities[i], promotions[i]));
+            before = Math.addExact(before, units[i] * quantities[i]);
+        }
+        // Lines: 4.5 -> 5, 4.5 -> 5, 22.5 -> 23, 62.5 -> 63
+        check("sum of rounded lines", 96, perLine);
+        // Rounding the whole basket once would give 4.5 + 4.5 + 22.5 + 62.5 = 94 cents
+        long[] exactHalves = {45, 45, 225, 625};
+        long tenths = 0;
+        for (long h : exactHalves) tenths += h;
+        check("whole basket rounded once", 94, WolfWR.Money.mulDivHalfUp(tenths, 1, 10));
+        check("undiscounted basket", 180, before);
+        // A line never rounds by more than half a cent, so n lines differ from the whole by at most n/2 cents
+        check("per-line within n/2 cents of whole basket", 1, Math.abs(perLine - 94) * 2 <= units.length ? 1 : 0);
+        // The same line rung twice equals one line of double the quantity only when it does not land on a half cent
+        check("2 x (1 @ 0.05, 10% off)", 10, 2 * WolfWR.Money.discounted(5, 1, 1000));
+        check("1 x (2 @ 0.05, 10% off)", 9, WolfWR.Money.discounted(5, 2, 1000));
+        check("2 x (1 @ 0.10, 10% off)", 18, 2 * WolfWR.Money.discounted(10, 1, 1000));
+        check("1 x (2 @ 0.10, 10% off)", 18, WolfWR.Money.discounted(10, 2, 1000));
+    }
+
+    private static void check(String name, long expected, long actual) {
+        checks++;
+        if (expected != actual) {
+            failures.add(name + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private static void checkThrows(String name, Runnable work) {
+        checks++;
+        try {
+            work.run();
+            failures.add(name + ": expected ArithmeticException, none thrown");
+        } catch (ArithmeticException e) {
+            // Expected
+        }
+    }
+}